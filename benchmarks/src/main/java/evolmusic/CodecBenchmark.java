@@ -0,0 +1,102 @@
+package evolmusic;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding melodies for the neural net and decoding them for playback or
+ * midi export, over a whole population per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    // Distinct strings kept in memory, cycled through for large populations
+    // so a million 852-character lines don't have to fit in the heap.
+    private static final int STRING_POOL = 4096;
+
+    @Param({"200", "1000", "10000", "100000", "1000000"})
+    public int populationSize;
+
+    private Melody[] population;
+    private String[] songs;
+    private String[] lines;
+
+    private final Bitifier bitifier = new Bitifier();
+    private final Notationizer notationizer = new Notationizer();
+    private final char[] line = new char[Bitifier.LINE_LENGTH];
+
+    @Setup
+    public void setUp() {
+        RandomMelody random = new RandomMelody(Melody.NUMBER_MEASURES, 4,
+                new SplittableRandom(42));
+        population = new Melody[populationSize];
+        for (int i = 0; i < population.length; i++) {
+            population[i] = random.getMelody();
+        }
+
+        songs = new String[Math.min(STRING_POOL, populationSize)];
+        lines = new String[songs.length];
+        for (int i = 0; i < songs.length; i++) {
+            songs[i] = notationizer.translate(population[i]);
+            bitifier.encode(population[i], line, 0);
+            // Leave out the trailing newline
+            lines[i] = new String(line, 0, line.length - 1);
+        }
+    }
+
+    @Benchmark
+    public void bitifierTranslate(Blackhole blackhole) {
+        for (int i = 0; i < populationSize; i++) {
+            blackhole.consume(bitifier.translate(songs[i % songs.length]));
+        }
+    }
+
+    @Benchmark
+    public void bitifierEncode(Blackhole blackhole) {
+        for (Melody melody : population) {
+            blackhole.consume(bitifier.encode(melody, line, 0));
+        }
+    }
+
+    @Benchmark
+    public void notationizerTranslate(Blackhole blackhole) {
+        for (int i = 0; i < populationSize; i++) {
+            blackhole.consume(notationizer.translate(lines[i % lines.length]));
+        }
+    }
+
+    @Benchmark
+    public void notationizerTranslateMelody(Blackhole blackhole) {
+        for (Melody melody : population) {
+            blackhole.consume(notationizer.translate(melody));
+        }
+    }
+
+    @Benchmark
+    public void midiWriterSequence(Blackhole blackhole)
+            throws InvalidMidiDataException {
+        for (int i = 0; i < populationSize; i++) {
+            blackhole.consume(MidiWriter.toSequence(population, i, i + 1));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package evolmusic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The steps of one generation outside of scoring: generating random
+ * melodies, breeding, selecting seeds and writing the melody file, over a
+ * whole population per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EvolutionBenchmark {
+
+    private static final int NUMBER_SEEDS = 40;
+
+    @Param({"200", "1000", "10000", "100000", "1000000"})
+    public int populationSize;
+
+    private Melody[] population;
+    private Melody[] seeds;
+    private int[] parents;
+    private double[] scores;
+    private File melodyFile;
+
+    private RandomMelody random;
+    private Breeder breeder;
+
+    @Setup
+    public void setUp() throws IOException {
+        SplittableRandom rng = new SplittableRandom(42);
+        random = new RandomMelody(Melody.NUMBER_MEASURES, 4, rng.split());
+        breeder = new Breeder(Melody.NUMBER_MEASURES, 4, rng.split());
+
+        population = new Melody[populationSize];
+        scores = new double[populationSize];
+        parents = new int[2 * populationSize];
+        for (int i = 0; i < populationSize; i++) {
+            population[i] = random.getMelody();
+            scores[i] = rng.nextDouble();
+            parents[2 * i] = rng.nextInt(NUMBER_SEEDS);
+            parents[2 * i + 1] = rng.nextInt(NUMBER_SEEDS);
+        }
+        seeds = new Melody[NUMBER_SEEDS];
+        System.arraycopy(population, 0, seeds, 0, Math.min(NUMBER_SEEDS,
+                populationSize));
+
+        melodyFile = File.createTempFile("melodies", ".in");
+    }
+
+    @TearDown
+    public void tearDown() {
+        melodyFile.delete();
+    }
+
+    @Benchmark
+    public void randomMelodyString(Blackhole blackhole) {
+        for (int i = 0; i < populationSize; i++) {
+            blackhole.consume(random.getMelodyString());
+        }
+    }
+
+    @Benchmark
+    public void randomMelody(Blackhole blackhole) {
+        for (int i = 0; i < populationSize; i++) {
+            blackhole.consume(random.getMelody());
+        }
+    }
+
+    @Benchmark
+    public void breed(Blackhole blackhole) {
+        for (int i = 0; i < populationSize; i++) {
+            blackhole.consume(breeder.breed(seeds[parents[2 * i]],
+                    seeds[parents[2 * i + 1]]));
+        }
+    }
+
+    @Benchmark
+    public int[] getSeedIndices() {
+        return EvolutionaryMusic.getSeedIndices(scores, NUMBER_SEEDS);
+    }
+
+    @Benchmark
+    public void writeMelodiesToFile() {
+        EvolutionaryMusic.writeMelodiesToFile(melodyFile.getPath(),
+                population);
+    }
+}
@@ -0,0 +1,116 @@
+package evolmusic;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Connects the islands of an island-model evolution. Every few
+ * generations each island sends copies of its best seeds to another
+ * island, around a ring or to a randomly chosen island.
+ *
+ * Islands wait for each other at every migration, so migrants always
+ * arrive in the same generation they were sent.
+ */
+public class Archipelago {
+
+    private final int numberIslands;
+    private final int interval;
+    private final int migrants;
+    private final boolean ring;
+    private final long seed;
+
+    private final Melody[][] outboxes;
+    private final Melody[][] inboxes;
+    private final CyclicBarrier barrier;
+    private int generation;
+
+    /**
+     * @param numberIslands number of islands, each running on its own thread
+     * @param interval number of generations between migrations
+     * @param migrants number of seeds each island sends per migration
+     * @param ring true to send to the next island, false for a random one
+     * @param random random number stream for picking random islands
+     */
+    public Archipelago(int numberIslands, int interval, int migrants,
+                       boolean ring, SplittableRandom random) {
+        // Each migration picks from its own stream, so a resumed run picks
+        // the same islands.
+        seed = random.nextLong();
+        this.numberIslands = numberIslands;
+        this.interval = interval;
+        this.migrants = migrants;
+        this.ring = ring;
+        outboxes = new Melody[numberIslands][];
+        inboxes = new Melody[numberIslands][];
+
+        // Runs once every island has filled its outbox.
+        barrier = new CyclicBarrier(numberIslands, new Runnable() {
+            @Override
+            public void run() {
+                exchange();
+            }
+        });
+    }
+
+    /**
+     * @param generation generation number, starting from 1
+     * @return true if islands migrate after this generation
+     */
+    public boolean isMigration(int generation) {
+        return generation % interval == 0;
+    }
+
+    /**
+     * Sends an island's best seeds and receives another island's. Blocks
+     * until every island has reached the migration.
+     *
+     * @param island index of the calling island
+     * @param generation generation number, the same for every island
+     * @param seeds the island's seeds, best first
+     * @return the seeds with the worst replaced by the immigrants
+     */
+    public Melody[] migrate(int island, int generation, Melody[] seeds) {
+        Melody[] emigrants = new Melody[Math.min(migrants, seeds.length)];
+        System.arraycopy(seeds, 0, emigrants, 0, emigrants.length);
+        outboxes[island] = emigrants;
+        this.generation = generation;
+
+        try {
+            barrier.await();
+        } catch (InterruptedException e) {
+            System.out.println("Migration was interrupted. Exiting...");
+            e.printStackTrace();
+            System.exit(1);
+        } catch (BrokenBarrierException e) {
+            System.out.println("An island stopped during migration. " +
+                    "Exiting...");
+            System.exit(1);
+        }
+
+        Melody[] immigrants = inboxes[island];
+        Melody[] newSeeds = seeds.clone();
+        System.arraycopy(immigrants, 0, newSeeds,
+                newSeeds.length - immigrants.length, immigrants.length);
+        return newSeeds;
+    }
+
+    /**
+     * Moves every outbox to the inbox of the island it is sent to.
+     */
+    private void exchange() {
+        SplittableRandom random = ring ? null
+                : RandomStreams.derive(seed, generation);
+        for (int island = 0; island < numberIslands; island++) {
+            int source;
+            if (ring) {
+                source = (island + numberIslands - 1) % numberIslands;
+            } else {
+                // Any island except this one.
+                source = (island + 1 + random.nextInt(numberIslands - 1))
+                        % numberIslands;
+            }
+            inboxes[island] = outboxes[source];
+        }
+    }
+}
@@ -1,185 +1,129 @@
 package evolmusic;
 
-import java.util.BitSet;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 
 /**
  * Converts a JFugue-compatible melody string to a 1-hot encoding of a melody.
  *
+ * Lines for the neural net ("0.0 bit bit ...") are encoded by copying a
+ * line of all zeros and setting the melody's bits, into a reusable buffer,
+ * so no strings are built per melody. The buffers make a Bitifier
+ * not thread-safe, use one per thread.
+ *
  * @author Kim Merrill
  * @date May 2, 2013
  */
 public class Bitifier implements Translator {
 
-    private static final int CHORD_LENGTH = 12; // number of bits in chord
-    private static final String CHORD_SUFFIX = OCTAVES[0] + WHOLE_NOTE;
-
-    @Override
-    public String translate(String song) {
-        String[] measures = song.split(SPACE);
-        String[] measure1 = splitChord(measures[0]);
-        String[] measure2 = splitChord(measures[1]);
-        return formatChord(measure1[0]) + formatChord(measure2[0])
-                + formatMelody(measure1[1]) + formatMelody(measure2[1]);
-    }
-
-    /**
-     * Parses string to separate out chord prefix and melody string.
-     *
-     * @param measure JFugue string with (optional) chord prepended to melody -
-     * e.x. C5w+E5w+G5w+A5iiii_D5ii_G4ii
-     * @return 2-element array of chord separated chord and melody string
-     * @pre chord strictly precedes melody in string
-     */
-    private String[] splitChord(String measure) {
-        String chord, melody;
-        // Last "+" indicates end of chord string
-        int index = measure.lastIndexOf(PLUS);
-        if (index < 0) {
-            chord = "";
-            melody = measure;
-        } else {
-            chord = measure.substring(0, index + 1);
-            melody = measure.substring(index + 1, measure.length());
+    public static final String DEFAULT_SCORE = "0.0 ";
+    // "0.0 " followed by the bits separated by spaces and a newline.
+    public static final int LINE_LENGTH = DEFAULT_SCORE.length()
+            + 2 * Melody.DIMENSION;
+
+    private static final char[] ZEROS = new char[LINE_LENGTH];
+    private static final byte[] ZERO_BYTES = new byte[LINE_LENGTH];
+    static {
+        DEFAULT_SCORE.getChars(0, DEFAULT_SCORE.length(), ZEROS, 0);
+        for (int i = DEFAULT_SCORE.length(); i < LINE_LENGTH; i += 2) {
+            ZEROS[i] = '0';
+            ZEROS[i + 1] = ' ';
+        }
+        ZEROS[LINE_LENGTH - 1] = '\n';
+        for (int i = 0; i < LINE_LENGTH; i++) {
+            ZERO_BYTES[i] = (byte) ZEROS[i];
         }
-        return new String[]{chord, melody};
     }
 
-    /**
-     * Creates bit string encoding of chord string.
-     *
-     * @param chordString JFugue string representing chord - e.x. C5w+E5w+G5w
-     * @return bit string representing chord
-     * @pre all notes in chord have pre-set octave and duration "5w"
-     */
-    private String formatChord(String chordString) {
-        chordString = chordString.replaceAll(CHORD_SUFFIX, "");
-        String[] notes = chordString.split("\\+");
-        return bitifyChord(notes);
-    }
+    private final int[] setBits = new int[Melody.MAX_SET_BITS];
+    private final char[] line = new char[LINE_LENGTH];
 
-    /**
-     * Creates bit string encoding of melody string.
-     *
-     * @param melodyString JFugue string representing melody - e.x.
-     * C5iiii_F#6ii_G6ii
-     * @return bit string representing melody
-     * @pre string contains only sequential notes separated by "_"
-     */
-    private String formatMelody(String melodyString) {
-        String bitMelody = "";
-        String[] notes = melodyString.split("_");
-        for (String note : notes) {
-            bitMelody += bitifyNote(note);
-        }
-        return bitMelody;
+    @Override
+    public String translate(String song) {
+        return translate(Melody.valueOf(song));
     }
 
     /**
-     * Creates bit string encoding of notes as chord.
+     * Creates bit string encoding of a packed melody.
      *
-     * @param notes array of JFugue notes
-     * @return bit string representing chord
-     * @pre notes are valid JFugue strings
+     * @param melody packed melody
+     * @return 424-character bit string, equal to translate() of the
+     * melody's JFugue string
      */
-    private String bitifyChord(String[] notes) {
-        BitSet bitVector = new BitSet(CHORD_LENGTH);
-        for (String note : notes) {
-            // Check for no-chord case
-            if (!note.isEmpty()) {
-                // Set bit corresponding to note in chord
-                bitVector.set(NOTES.indexOf(note));
-            }
+    public String translate(Melody melody) {
+        char[] bitString = new char[Melody.DIMENSION];
+        for (int i = 0; i < Melody.DIMENSION; i++) {
+            bitString[i] = '0';
         }
-        return makeBitString(bitVector, CHORD_LENGTH);
+        int count = melody.getSetBits(setBits);
+        for (int i = 0; i < count; i++) {
+            bitString[setBits[i]] = '1';
+        }
+        return new String(bitString);
     }
 
     /**
-     * Creates bit string encoding of note.
+     * Encodes a melody as a line of the neural net's input file.
      *
-     * @param note JFugue string representing single note - e.x. C5ii
-     * @return bit string representing note
-     * @pre note is valid JFugue string in one of pre-set octaves "4" or "5"
-     * with
-     * durations specified in only eighth notes - i.e. "i"s only
+     * @param melody packed melody
+     * @param buffer receives LINE_LENGTH characters, ending in a newline
+     * @param offset index in buffer to start writing at
+     * @return index in buffer after the line
      */
-    private String bitifyNote(String note) {
-        int offset = 1;
-        BitSet bitVector = new BitSet(NOTE_BITS);
-
-        // Check if note is a rest
-        if (note.substring(0, 1).equals(REST)) {
-            return bitifyRest(note);
-        }
-
-        int durIndex = note.indexOf("i");
-        String duration = note.substring(durIndex, note.length());
-        String octave = note.substring(durIndex - 1, durIndex);
-        String pitch = note.substring(0, durIndex - 1);
-
-        // If note is in higher octave, set bit in second 12-bit section
-        if (octave.equals(OCTAVES[1])) {
-            offset += 12;
+    public int encode(Melody melody, char[] buffer, int offset) {
+        System.arraycopy(ZEROS, 0, buffer, offset, LINE_LENGTH);
+        int count = melody.getSetBits(setBits);
+        for (int i = 0; i < count; i++) {
+            buffer[offset + DEFAULT_SCORE.length() + 2 * setBits[i]] = '1';
         }
-        bitVector.set(NOTES.indexOf(pitch) + offset);
-        String bitString = makeBitString(bitVector, NOTE_BITS);
-
-        // If note has duration longer than one eighth note, "tie over" note by
-        // appending bit strings for remaining eighth note durations.
-        return bitString + bitifyTiedOver(bitString, duration.length());
+        return offset + LINE_LENGTH;
     }
 
     /**
-     * Creates bit string encoding of tied-over note. e.x. C5ii is
-     * represented as
-     * 01000000000000000000000001100000000000000000000000 - method returns
-     * 1100000000000000000000000
+     * Encodes a melody as an ASCII line of the neural net's input file.
      *
-     * @param noteBitString JFugue string representing single note
-     * @param duration duration of note in terms of eighth notes
-     * @return bit string representing tied-over note
-     * @pre noteBitString is valid JFugue note
+     * @param melody packed melody
+     * @param buffer receives LINE_LENGTH bytes at its position, ending in a
+     * newline
      */
-    private String bitifyTiedOver(String noteBitString, int duration) {
-        String bitString = "";
-        // Setting first bit indicates note should be tied over from
-        // previous note.
-        noteBitString = "1" + noteBitString.substring(1, noteBitString.length
-                ());
-        for (int i = 1; i < duration; i++) {
-            bitString += noteBitString;
+    public void encode(Melody melody, ByteBuffer buffer) {
+        int offset = buffer.position() + DEFAULT_SCORE.length();
+        buffer.put(ZERO_BYTES);
+        int count = melody.getSetBits(setBits);
+        for (int i = 0; i < count; i++) {
+            buffer.put(offset + 2 * setBits[i], (byte) '1');
         }
-        return bitString;
     }
 
     /**
-     * Creates bit encoding of given rest.
+     * Writes a melody as a line of the neural net's input file.
      *
-     * @param note JFugue-encoding of a rest - e.x. Riii
-     * @return bit string representing rest
-     * @pre note is a JFugue rest
+     * @param melody packed melody
+     * @param out writer to append the line, with its newline, to
+     * @throws IOException if writing fails
      */
-    private String bitifyRest(String note) {
-        String duration = note.substring(1, note.length());
-        String bitString = makeBitString(new BitSet(NOTE_BITS), NOTE_BITS);
-        return bitString + bitifyTiedOver(bitString, duration.length());
+    public void write(Melody melody, Writer out) throws IOException {
+        write(melody.getMeasure(0), melody.getMeasure(1), out);
     }
 
     /**
-     * Constructs bit string representation of a bit vector.
+     * Writes a packed melody as a line of the neural net's input file,
+     * without a Melody object.
      *
-     * @param bitVector
-     * @param length desired number of bits in bit string
-     * @return bit string equivalent
-     * @pre bit vector is of length at least "length"
+     * @param first packed first measure
+     * @param second packed second measure
+     * @param out writer to append the line, with its newline, to
+     * @throws IOException if writing fails
      */
-    private String makeBitString(BitSet bitVector, int length) {
-        assert (bitVector.length() <= length);
-        String bitString = "";
-        for (int i = 0; i < length; i++) {
-            boolean bit = bitVector.get(i);
-            bitString += bit ? 1 : 0;
+    public void write(long first, long second, Writer out)
+            throws IOException {
+        System.arraycopy(ZEROS, 0, line, 0, LINE_LENGTH);
+        int count = Melody.getSetBits(first, second, setBits);
+        for (int i = 0; i < count; i++) {
+            line[DEFAULT_SCORE.length() + 2 * setBits[i]] = '1';
         }
-        return bitString.trim();
+        out.write(line, 0, LINE_LENGTH);
     }
 
     //	public static void main(String[] args) {
@@ -1,7 +1,6 @@
 package evolmusic;
 
-import java.util.Random;
-import java.util.ArrayList;
+import java.util.SplittableRandom;
 
 /**
  * NOTE: Only works with two measure melodies.
@@ -12,90 +11,163 @@ public class Breeder {
     private int numberMeasures;
     private int beatsPerMeasure;
 
-    private static final ArrayList<String> PITCHES = Translator.NOTES;
+    private SplittableRandom random;
 
-    private Random random = new Random();
+    // Random melodies to mutate with.
+    private RandomMelody randomGenerator;
 
-    public Breeder(int numberMeasures, int beatsPerMeasure) {
+    // Measures of both parents being bred, the first parent's first.
+    private final long[] parentMeasures =
+            new long[2 * Melody.NUMBER_MEASURES];
+
+    /**
+     * @param numberMeasures Measures per melody, must be 2.
+     * @param beatsPerMeasure Beats per measure.
+     * @param random Random number stream, used only by this thread.
+     */
+    public Breeder(int numberMeasures, int beatsPerMeasure,
+                   SplittableRandom random) {
+        // Make sure the melodies are of the right size.
+        if (numberMeasures != Melody.NUMBER_MEASURES) {
+            System.out.println("Measures are of the wrong length. Exiting.");
+            System.exit(1);
+        }
         this.numberMeasures = numberMeasures;
         this.beatsPerMeasure = beatsPerMeasure;
+        this.random = random;
+        this.randomGenerator = new RandomMelody(numberMeasures,
+                beatsPerMeasure, random);
     }
 
     /**
-     * Returns an array of the chords in the measures.
+     * Builds one measure of the offspring from a random chord and a random
+     * measure melody of either parent, picked from parentMeasures.
      *
-     * @param measures The measures representing a song.
-     * @return An array of chords in the song.
+     * @return The packed measure.
      */
-    private String[] getChords(String[] measures) {
-        String[] chords = new String[measures.length];
+    private long breedMeasure() {
+        // Pick the chord for the measure.
+        long chord = parentMeasures[random.nextInt(2 * numberMeasures)]
+                & Melody.CHORD_MASK;
 
-        // The end of a chord is denoted by the last "+" in the measure.
-        for (int i = 0; i < measures.length; i++) {
-            int chordEndIndex = measures[i].lastIndexOf("+") + 1;
-            chords[i] = measures[i].substring(0, chordEndIndex);
-        }
+        // Pick the measure to substitute in.
+        long melody = parentMeasures[random.nextInt(2 * numberMeasures)]
+                & ~Melody.CHORD_MASK;
 
-        return chords;
+        return chord | melody;
     }
 
-    private String[] getMelody(String[] measures) {
-        String[] melody = new String[measures.length];
-
-        // Take each note in each measure and add it to a list of the melody.
-        for (int i = 0; i < measures.length; i++) {
-            int melodyStartIndex = measures[i].lastIndexOf("+") + 1;
-            melody[i] = measures[i].substring(melodyStartIndex);
+    public Melody breed(Melody melodyOne, Melody melodyTwo) {
+        for (int i = 0; i < numberMeasures; i++) {
+            parentMeasures[i] = melodyOne.getMeasure(i);
+            parentMeasures[numberMeasures + i] = melodyTwo.getMeasure(i);
         }
 
-        // Convert it back to an array before returning.
-        return melody;
+        // Put together the melody measure-by-measure.
+        long first = breedMeasure();
+        long second = breedMeasure();
+        return new Melody(first, second);
     }
 
-    public String breed(String melodyOne, String melodyTwo) {
-        String offspring = "";
-
-        // Split up the two measures.
-        String[] measures1 = melodyOne.split(" ");
-        String[] measures2 = melodyTwo.split(" ");
-
-        // Make sure the passed in melodies are of the right size.
-        if ((measures1.length != numberMeasures) ||
-                (measures2.length != numberMeasures)) {
-            System.out.println("Measures are of the wrong length. Exiting.");
-            System.exit(1);
+    /**
+     * Breeds a new melody from a random seed and either another seed or,
+     * MUTATION_RATE percent of the time, a random melody (mutation).
+     *
+     * @param seeds The melodies to pick parents from.
+     * @param MUTATION_RATE The chance of mutation, in percent.
+     * @return The offspring.
+     */
+    public Melody breed(Melody[] seeds, int MUTATION_RATE) {
+        Melody melodyOne, melodyTwo;
+        int numSeeds = seeds.length;
+
+        // First melody to breed.
+        melodyOne = seeds[random.nextInt(numSeeds)];
+
+        // Either breed the first melody with a random one (mutation),
+        // or pick another of the seeds to breed with.
+        if (random.nextInt(100) < (MUTATION_RATE - 1)) {
+            melodyTwo = randomGenerator.getMelody();
+        } else {
+            melodyTwo = seeds[random.nextInt(numSeeds)];
+            int tries = 1;
+            while (melodyTwo.equals(melodyOne)) {
+                // Seeds can all be copies of one melody, mutate instead.
+                if (tries++ == numSeeds) {
+                    melodyTwo = randomGenerator.getMelody();
+                    break;
+                }
+                melodyTwo = seeds[random.nextInt(numSeeds)];
+            }
         }
 
-        // Arrays holding the chords of the melodies.
-        String[] chords1 = getChords(measures1);
-        String[] chords2 = getChords(measures2);
-
-        // Arrays holding the single-note melody.
-        String[] melody1 = getMelody(measures1);
-        String[] melody2 = getMelody(measures2);
-
-        // Copy over chords from both melodies into a single array.
-        String[] chords = new String[2 * numberMeasures];
-        System.arraycopy(chords1, 0, chords, 0, chords1.length);
-        System.arraycopy(chords2, 0, chords, chords1.length, chords2.length);
+        return breed(melodyOne, melodyTwo);
+    }
 
-        // Copy over melodies into a single array.
-        String[] melodies = new String[2 * numberMeasures];
-        System.arraycopy(melody1, 0, melodies, 0, melody1.length);
-        System.arraycopy(melody2, 0, melodies, melody1.length, melody2.length);
+    /**
+     * Breeds a melody of the next generation from seeds of the current
+     * one, like breed(Melody[], int), straight from the packed measures.
+     * The offspring's parents are recorded, with NO_PARENT for a random
+     * melody.
+     *
+     * @param parents The generation the seeds are in.
+     * @param seedIndices The indices of the seeds in parents.
+     * @param MUTATION_RATE The chance of mutation, in percent.
+     * @param offspring The generation to breed into.
+     * @param index The index of the offspring in its generation.
+     */
+    public void breed(PopulationStore.Generation parents, int[] seedIndices,
+                      int MUTATION_RATE, PopulationStore.Generation offspring,
+                      int index) {
+        int numSeeds = seedIndices.length;
+
+        // First melody to breed.
+        int one = seedIndices[random.nextInt(numSeeds)];
+
+        // Either breed the first melody with a random one (mutation),
+        // or pick another of the seeds to breed with.
+        int two = PopulationStore.NO_PARENT;
+        if (random.nextInt(100) >= (MUTATION_RATE - 1)) {
+            two = seedIndices[random.nextInt(numSeeds)];
+            int tries = 1;
+            while (isSame(parents, one, two)) {
+                // Seeds can all be copies of one melody, mutate instead.
+                if (tries++ == numSeeds) {
+                    two = PopulationStore.NO_PARENT;
+                    break;
+                }
+                two = seedIndices[random.nextInt(numSeeds)];
+            }
+        }
 
-        // Put together the melody measure-by-measure.
         for (int i = 0; i < numberMeasures; i++) {
-            // Pick the chord for the measure.
-            offspring += chords[random.nextInt(chords.length)];
-
-            // Pick the measure to substitute in.
-            offspring += melodies[random.nextInt(melodies.length)];
-
-            // Separate measures with a space.
-            offspring += " ";
+            parentMeasures[i] = parents.getMeasure(one, i);
+        }
+        if (two == PopulationStore.NO_PARENT) {
+            for (int i = 0; i < numberMeasures; i++) {
+                parentMeasures[numberMeasures + i] =
+                        randomGenerator.nextMeasure();
+            }
+        } else {
+            for (int i = 0; i < numberMeasures; i++) {
+                parentMeasures[numberMeasures + i] =
+                        parents.getMeasure(two, i);
+            }
         }
 
-        return offspring;
+        long first = breedMeasure();
+        long second = breedMeasure();
+        offspring.setMelody(index, first, second);
+        offspring.setParents(index, one, two);
+    }
+
+    /**
+     * @return true if the melodies at both indices are equal
+     */
+    private boolean isSame(PopulationStore.Generation generation, int one,
+                           int two) {
+        return generation.getMeasure(one, 0) == generation.getMeasure(two, 0)
+                && generation.getMeasure(one, 1)
+                == generation.getMeasure(two, 1);
     }
 }
@@ -0,0 +1,124 @@
+package evolmusic;
+
+/**
+ * Skips scoring melodies whose score is already in a FitnessCache, such as
+ * the seeds copied into the next generation or offspring identical to an
+ * earlier melody. Only the misses are passed on to the underlying scorer,
+ * in one batch.
+ */
+public class CachingScorer implements Scorer {
+
+    private final Scorer scorer;
+    private final FitnessCache cache;
+
+    private int hits;
+    private int misses;
+
+    // Misses of a PopulationStore generation, packed together to be scored
+    // in one batch. Grown when a larger range comes in.
+    private PopulationStore.Generation missed;
+    private int[] missedIndices = new int[0];
+
+    /**
+     * @param scorer scorer for melodies that aren't cached
+     * @param cache cache to look up and store scores in
+     */
+    public CachingScorer(Scorer scorer, FitnessCache cache) {
+        this.scorer = scorer;
+        this.cache = cache;
+    }
+
+    @Override
+    public void score(Melody[] melodies, int from, int to, double[] scores) {
+        Melody[] missed = new Melody[to - from];
+        int[] missedIndices = new int[to - from];
+        int count = 0;
+
+        for (int i = from; i < to; i++) {
+            double score = cache.get(melodies[i].fingerprint());
+            if (!Double.isNaN(score)) {
+                scores[i] = score;
+                hits++;
+            } else {
+                missed[count] = melodies[i];
+                missedIndices[count] = i;
+                count++;
+            }
+        }
+        misses += count;
+        if (count == 0) {
+            return;
+        }
+
+        double[] missedScores = new double[count];
+        scorer.score(missed, 0, count, missedScores);
+        for (int i = 0; i < count; i++) {
+            scores[missedIndices[i]] = missedScores[i];
+            cache.put(missed[i].fingerprint(), missedScores[i]);
+        }
+    }
+
+    @Override
+    public void score(PopulationStore.Generation generation, int from,
+                      int to) {
+        if (missed == null || missed.size() < to - from) {
+            missed = new PopulationStore.Generation(to - from);
+            missedIndices = new int[to - from];
+        }
+        int count = 0;
+
+        for (int i = from; i < to; i++) {
+            long first = generation.getMeasure(i, 0);
+            long second = generation.getMeasure(i, 1);
+            double score = cache.get(Melody.fingerprint(first, second));
+            if (!Double.isNaN(score)) {
+                generation.setScore(i, score);
+                hits++;
+            } else {
+                missed.setMelody(count, first, second);
+                missedIndices[count] = i;
+                count++;
+            }
+        }
+        misses += count;
+        if (count == 0) {
+            return;
+        }
+
+        scorer.score(missed, 0, count);
+        for (int i = 0; i < count; i++) {
+            double score = missed.getScore(i);
+            generation.setScore(missedIndices[i], score);
+            cache.put(Melody.fingerprint(missed.getMeasure(i, 0),
+                    missed.getMeasure(i, 1)), score);
+        }
+    }
+
+    /**
+     * @return number of melodies found in the cache since the last reset
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of melodies scored since the last reset
+     */
+    public int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Starts counting hits and misses from zero, e.x. every generation.
+     */
+    public void resetCounters() {
+        hits = 0;
+        misses = 0;
+    }
+
+    @Override
+    public void close() {
+        scorer.close();
+        cache.close();
+    }
+}
@@ -0,0 +1,446 @@
+package evolmusic;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Snapshots of a generational run, every few generations, so a run that
+ * dies can go on from its last snapshot instead of starting over.
+ *
+ * A snapshot holds the configuration of the run, the generation number,
+ * the hall of fame, and the current generation of every island with its
+ * scores and parents. Random choices are made from streams derived from
+ * the run's seed and the generation number, so the seed is all the random
+ * state there is, and a resumed run makes the same melodies as one that
+ * never stopped.
+ *
+ * Islands wait for each other at every snapshot, and the last one to
+ * arrive writes it. The snapshot is written to a temporary file and
+ * renamed over the last one, so a run killed while writing leaves the
+ * previous snapshot whole.
+ *
+ * File: HEADER_BYTES of little-endian header (MAGIC, VERSION, generation,
+ * seed, checksum of the weights, population size, number of islands,
+ * migration interval, migrants, 1 for a ring, NUMBER_SEEDS, MUTATION_RATE,
+ * size of the hall of fame, 1 if duplicates are bred again, radius of
+ * fitness sharing, candidates per offspring), then HALL_OF_FAME_BYTES per
+ * hall of fame melody (both measures and the score), then every island's
+ * generation as written by PopulationStore.Generation, then the weights of
+ * every island's Surrogate if offspring are picked from candidates.
+ */
+public class Checkpoint {
+
+    private static final long MAGIC = 0x45564F4C434B5054L; // "EVOLCKPT"
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 76;
+    private static final int HALL_OF_FAME_BYTES = 24;
+
+    private final String filename;
+    private final int interval;
+    private final HallOfFame hallOfFame;
+
+    // Configuration of the run.
+    private final long seed;
+    private final long weights;
+    private final int populationSize;
+    private final int numberIslands;
+    private final int migrationInterval;
+    private final int migrants;
+    private final boolean ring;
+    private final boolean dedupe;
+    private final int sharingRadius;
+    private final int candidates;
+
+    // Generation number and islands' generations of the last snapshot.
+    private int generation;
+    private final PopulationStore.Generation[] populations;
+    private final Surrogate[] surrogates;
+    private final CyclicBarrier barrier;
+
+    /**
+     * @param filename file to save snapshots to
+     * @param interval number of generations between snapshots
+     * @param seed seed of the run
+     * @param weights FitnessCache.checksum() of the weights file
+     * @param populationSize number of melodies on every island
+     * @param numberIslands number of islands, each running on its own thread
+     * @param migrationInterval number of generations between migrations
+     * @param migrants number of seeds each island sends per migration
+     * @param ring true if islands send to the next island
+     * @param dedupe true if offspring identical to another melody are bred
+     *               again
+     * @param sharingRadius radius of fitness sharing, or 0 for none
+     * @param candidates number of candidates bred per offspring for a
+     *                   surrogate to pick from, or 0 for none
+     * @param hallOfFame best melodies of the run
+     */
+    public Checkpoint(String filename, int interval, long seed, long weights,
+                      int populationSize, int numberIslands,
+                      int migrationInterval, int migrants, boolean ring,
+                      boolean dedupe, int sharingRadius, int candidates,
+                      HallOfFame hallOfFame) {
+        this.filename = filename;
+        this.interval = interval;
+        this.hallOfFame = hallOfFame;
+        this.seed = seed;
+        this.weights = weights;
+        this.populationSize = populationSize;
+        this.numberIslands = numberIslands;
+        this.migrationInterval = migrationInterval;
+        this.migrants = migrants;
+        this.ring = ring;
+        this.dedupe = dedupe;
+        this.sharingRadius = sharingRadius;
+        this.candidates = candidates;
+        populations = new PopulationStore.Generation[numberIslands];
+        surrogates = new Surrogate[numberIslands];
+
+        // Runs once every island has handed over its generation.
+        barrier = new CyclicBarrier(numberIslands, new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+    }
+
+    /**
+     * Reads the last snapshot of a run, to go on from it. The hall of fame
+     * of the snapshot is offered to hallOfFame.
+     *
+     * @param filename file the snapshots were saved to, and will be again
+     * @param interval number of generations between snapshots
+     * @param weights FitnessCache.checksum() of the weights file
+     * @param hallOfFame empty hall of fame of the resumed run
+     * @return the snapshot, with the configuration of the run
+     */
+    public static Checkpoint read(String filename, int interval,
+                                  long weights, HallOfFame hallOfFame) {
+        long start = System.nanoTime();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(filename);
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = readFully(channel, HEADER_BYTES);
+            if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+                System.out.println("Unknown file format for " + filename
+                        + ". Exiting.");
+                System.exit(1);
+            }
+            if (header.getLong(24) != weights) {
+                System.out.println("The weights changed since " + filename
+                        + " was saved. Exiting.");
+                System.exit(1);
+            }
+            if (header.getInt(52) != EvolutionaryMusic.NUMBER_SEEDS
+                    || header.getInt(56) != EvolutionaryMusic.MUTATION_RATE) {
+                System.out.println(filename + " was saved with other seeds "
+                        + "or mutation rate. Exiting.");
+                System.exit(1);
+            }
+
+            int generation = header.getInt(12);
+            int populationSize = header.getInt(32);
+            int numberIslands = header.getInt(36);
+            int hallOfFameSize = header.getInt(60);
+            int sharingRadius = header.getInt(68);
+            int candidates = header.getInt(72);
+            long surrogateBytes = candidates > 0 ? 8 * Surrogate.WEIGHTS : 0;
+            if (generation <= 0 || populationSize <= 0 || numberIslands <= 0
+                    || hallOfFameSize < 0 || sharingRadius < 0
+                    || sharingRadius > SimilarityIndex.MAX_RADIUS
+                    || candidates < 0
+                    || channel.size() != HEADER_BYTES
+                    + (long) hallOfFameSize * HALL_OF_FAME_BYTES
+                    + numberIslands * (PopulationStore.Generation
+                    .getBytes(populationSize) + surrogateBytes)) {
+                System.out.println("Malformed checkpoint " + filename
+                        + ". Exiting.");
+                System.exit(1);
+            }
+
+            Checkpoint checkpoint = new Checkpoint(filename, interval,
+                    header.getLong(16), weights, populationSize,
+                    numberIslands, header.getInt(40), header.getInt(44),
+                    header.getInt(48) == 1, header.getInt(64) == 1,
+                    sharingRadius, candidates, hallOfFame);
+            checkpoint.generation = generation;
+
+            ByteBuffer best = readFully(channel,
+                    hallOfFameSize * HALL_OF_FAME_BYTES);
+            for (int i = 0; i < best.capacity(); i += HALL_OF_FAME_BYTES) {
+                hallOfFame.offer(new Melody(best.getLong(i),
+                        best.getLong(i + 8)), best.getDouble(i + 16));
+            }
+            for (int i = 0; i < numberIslands; i++) {
+                checkpoint.populations[i] =
+                        new PopulationStore.Generation(populationSize);
+                checkpoint.populations[i].read(channel);
+            }
+            for (int i = 0; i < numberIslands && candidates > 0; i++) {
+                ByteBuffer buffer = readFully(channel,
+                        8 * Surrogate.WEIGHTS);
+                double[] surrogateWeights = new double[Surrogate.WEIGHTS];
+                buffer.asDoubleBuffer().get(surrogateWeights);
+                checkpoint.surrogates[i] = new Surrogate(surrogateWeights);
+            }
+
+            System.out.println("Resumed from generation "
+                    + generation + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+            return checkpoint;
+        } catch (IOException e) {
+            System.out.println("Error reading checkpoint " + filename
+                    + ". Exiting.");
+            System.exit(1);
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * @return generation number of the snapshot read, or 0 for a new run
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param island index of the island
+     * @return the island's generation in the snapshot read, or null for a
+     * new run
+     */
+    public PopulationStore.Generation getPopulation(int island) {
+        return generation == 0 ? null : populations[island];
+    }
+
+    /**
+     * @param island index of the island
+     * @return the island's surrogate in the snapshot read, or null for a
+     * new run or one without surrogates
+     */
+    public Surrogate getSurrogate(int island) {
+        return generation == 0 ? null : surrogates[island];
+    }
+
+    /**
+     * @return seed of the run
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return number of melodies on every island
+     */
+    public int getPopulationSize() {
+        return populationSize;
+    }
+
+    /**
+     * @return number of islands
+     */
+    public int getNumberIslands() {
+        return numberIslands;
+    }
+
+    /**
+     * @return number of generations between migrations
+     */
+    public int getMigrationInterval() {
+        return migrationInterval;
+    }
+
+    /**
+     * @return number of seeds each island sends per migration
+     */
+    public int getMigrants() {
+        return migrants;
+    }
+
+    /**
+     * @return true if islands send to the next island, false for a random
+     * one
+     */
+    public boolean isRing() {
+        return ring;
+    }
+
+    /**
+     * @return true if offspring identical to another melody are bred again
+     */
+    public boolean isDedupe() {
+        return dedupe;
+    }
+
+    /**
+     * @return radius of fitness sharing, or 0 for none
+     */
+    public int getSharingRadius() {
+        return sharingRadius;
+    }
+
+    /**
+     * @return number of candidates bred per offspring for a surrogate to
+     * pick from, or 0 for none
+     */
+    public int getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * @param generation generation number, starting from 1
+     * @return true if a snapshot is saved after this generation is scored
+     */
+    public boolean isCheckpoint(int generation) {
+        return generation % interval == 0
+                && generation < EvolutionaryMusic.NUMBER_GENERATIONS;
+    }
+
+    /**
+     * Hands over an island's scored generation. Blocks until every island
+     * has handed over its own and the snapshot is written.
+     *
+     * @param island index of the calling island
+     * @param generation generation number, the same for every island
+     * @param population the island's generation, with its scores
+     * @param surrogate the island's surrogate, trained on the generation,
+     *                  or null if there are no candidates
+     */
+    public void save(int island, int generation,
+                     PopulationStore.Generation population,
+                     Surrogate surrogate) {
+        populations[island] = population;
+        surrogates[island] = surrogate;
+        this.generation = generation;
+
+        try {
+            barrier.await();
+        } catch (InterruptedException e) {
+            System.out.println("Checkpoint was interrupted. Exiting...");
+            e.printStackTrace();
+            System.exit(1);
+        } catch (BrokenBarrierException e) {
+            System.out.println("An island stopped during a checkpoint. " +
+                    "Exiting...");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and renames it over the
+     * last one.
+     */
+    private void write() {
+        long start = System.nanoTime();
+        Melody[] best = hallOfFame.getMelodies();
+        double[] bestScores = hallOfFame.getScores();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES
+                + best.length * HALL_OF_FAME_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(generation);
+        header.putLong(seed);
+        header.putLong(weights);
+        header.putInt(populationSize);
+        header.putInt(numberIslands);
+        header.putInt(migrationInterval);
+        header.putInt(migrants);
+        header.putInt(ring ? 1 : 0);
+        header.putInt(EvolutionaryMusic.NUMBER_SEEDS);
+        header.putInt(EvolutionaryMusic.MUTATION_RATE);
+        header.putInt(best.length);
+        header.putInt(dedupe ? 1 : 0);
+        header.putInt(sharingRadius);
+        header.putInt(candidates);
+        for (int i = 0; i < best.length; i++) {
+            header.putLong(best[i].getMeasure(0));
+            header.putLong(best[i].getMeasure(1));
+            header.putDouble(bestScores[i]);
+        }
+        header.flip();
+
+        File temporary = new File(filename + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temporary);
+            FileChannel channel = out.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            for (PopulationStore.Generation population : populations) {
+                population.write(channel);
+            }
+            for (int i = 0; i < numberIslands && candidates > 0; i++) {
+                ByteBuffer buffer = ByteBuffer.allocate(8 * Surrogate.WEIGHTS)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                buffer.asDoubleBuffer().put(surrogates[i].getWeights());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(true);
+            out.close();
+            out = null;
+
+            Files.move(temporary.toPath(), new File(filename).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Error saving checkpoint " + filename
+                    + ". Exiting.");
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            close(out);
+        }
+
+        System.out.println("Checkpoint of generation " + generation
+                + " saved in " + (System.nanoTime() - start) / 1000000
+                + " ms");
+    }
+
+    /**
+     * @param channel channel to read from
+     * @param bytes number of bytes to read
+     * @return little-endian buffer holding the bytes
+     * @throws IOException if the channel can't be read or ends early
+     */
+    private static ByteBuffer readFully(FileChannel channel, int bytes)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void close(Closeable file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.out.println("Error while closing file");
+                System.exit(1);
+            }
+        }
+    }
+}
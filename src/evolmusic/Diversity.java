@@ -0,0 +1,76 @@
+package evolmusic;
+
+import java.util.Arrays;
+
+/**
+ * How varied a generation is: the number of different melodies in it, and
+ * the mean Hamming distance between the 424-bit encodings of two of its
+ * melodies.
+ *
+ * The mean distance is computed from how many melodies set each bit,
+ * without comparing melodies: a bit set by c of n melodies differs between
+ * 2c(n - c) of the n(n - 1) ordered pairs of melodies.
+ *
+ * Not thread-safe, every island measures with its own Diversity.
+ */
+public class Diversity {
+
+    private final int[] bitCounts = new int[Melody.DIMENSION];
+    private final int[] setBits = new int[Melody.MAX_SET_BITS];
+    private long[] fingerprints = new long[0];
+
+    private int unique;
+    private double meanDistance;
+
+    /**
+     * Measures a generation.
+     *
+     * @param generation the generation
+     */
+    public void measure(PopulationStore.Generation generation) {
+        int size = generation.size();
+        if (fingerprints.length < size) {
+            fingerprints = new long[size];
+        }
+        Arrays.fill(bitCounts, 0);
+        for (int i = 0; i < size; i++) {
+            long first = generation.getMeasure(i, 0);
+            long second = generation.getMeasure(i, 1);
+            int count = Melody.getSetBits(first, second, setBits);
+            for (int j = 0; j < count; j++) {
+                bitCounts[setBits[j]]++;
+            }
+            fingerprints[i] = Melody.fingerprint(first, second);
+        }
+
+        // Equal fingerprints are taken for equal melodies.
+        Arrays.sort(fingerprints, 0, size);
+        unique = size == 0 ? 0 : 1;
+        for (int i = 1; i < size; i++) {
+            if (fingerprints[i] != fingerprints[i - 1]) {
+                unique++;
+            }
+        }
+
+        double pairs = 0;
+        for (int count : bitCounts) {
+            pairs += 2.0 * count * (size - count);
+        }
+        meanDistance = size < 2 ? 0 : pairs / ((double) size * (size - 1));
+    }
+
+    /**
+     * @return number of different melodies in the last generation measured
+     */
+    public int getUnique() {
+        return unique;
+    }
+
+    /**
+     * @return mean distance in bits between two melodies of the last
+     * generation measured
+     */
+    public double getMeanDistance() {
+        return meanDistance;
+    }
+}
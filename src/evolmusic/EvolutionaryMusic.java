@@ -9,33 +9,18 @@ import java.util.*;
  */
 public class EvolutionaryMusic {
 
-    // Random number generator for mutation and for picking seeds.
-    private static Random random = new Random();
-
     // Constants that determine evolutionary rate and length.
-    private static final int NUMBER_GENERATIONS = 1000;
-    private static final int MUTATION_RATE = 10;
-    private static final int NUMBER_SEEDS = 40;
+    static final int NUMBER_GENERATIONS = 1000;
+    static final int MUTATION_RATE = 10;
+    static final int NUMBER_SEEDS = 40;
 
     // Constants to determine constraints.
-    private static final int POPULATION_SIZE = 200;
-    private static final int NUMBER_MEASURES = 2;
-    private static final int BEATS_PER_MEASURE = 4;
-
-    // Random melody generator.
-    private static final RandomMelody randomGenerator = new RandomMelody(
-            NUMBER_MEASURES,
-            BEATS_PER_MEASURE
-    );
-
-    // Breeder to breed melodies.
-    private static Breeder breeder = new Breeder(
-            NUMBER_MEASURES,
-            BEATS_PER_MEASURE
-    );
+    static final int POPULATION_SIZE = 200;
+    static final int NUMBER_MEASURES = 2;
+    static final int BEATS_PER_MEASURE = 4;
 
     // Milestones to save midi files.
-    private static final Set<Integer> MILESTONES =
+    static final Set<Integer> MILESTONES =
             new HashSet<Integer>(Arrays.asList(new Integer[]{
                     1,
                     20,
@@ -46,8 +31,27 @@ public class EvolutionaryMusic {
                     1000
             }));
 
-    // MelodyPlayer instance used to save midi files.
-    private static final MelodyPlayer player = new MelodyPlayer();
+    // Island model defaults: generations between migrations, and the
+    // number of seeds each island sends per migration.
+    private static final int MIGRATION_INTERVAL = 10;
+    private static final int MIGRANTS = 4;
+
+    // Generations between checkpoints of a generational run.
+    private static final int CHECKPOINT_INTERVAL = 10;
+
+    // External neural net and the weights it was trained to.
+    static final String NEURAL_NET = "vendor/neural-net/test";
+    static final String WEIGHTS_FILE =
+            "vendor/neural-net/licks.weights.save";
+
+    // Number of scores kept in memory by the fitness cache.
+    private static final int DEFAULT_CACHE_SIZE = 1 << 16;
+
+    // Saves midi files in the background. The queue holds a few
+    // milestones' worth of seeds.
+    private static final int EXPORT_QUEUE_SIZE = 4 * NUMBER_SEEDS;
+    private static final MidiExporter exporter =
+            new MidiExporter(EXPORT_QUEUE_SIZE);
 
     /**
      * Creates a directory at path/name. All neccessary parent directories will
@@ -56,7 +60,7 @@ public class EvolutionaryMusic {
      * @param path Directory to create, including relative path. DO NOT include
      * a leading slash.
      */
-    private static void createFolder(String path) {
+    static void createFolder(String path) {
         File directory = new File(path);
 
         // Make sure it doesn't already exist.
@@ -115,73 +119,59 @@ public class EvolutionaryMusic {
      * @param filename The name of the file to write the melodies to.
      * @param population The population of melodies.
      */
-    private static void writeMelodiesToFile(String filename,
-                                            String[] population) {
-        final String DEFAULT_SCORE = "0.0 ";
-
-        // Create bitifier to translate JFugue compatible melodies to a
-        // string of bits that can be read by the neural net.
+    static void writeMelodiesToFile(String filename,
+                                    Melody[] population) {
+        // Create bitifier to translate melodies to lines of bits that can be
+        // read by the neural net.
         Bitifier bitifier = new Bitifier();
 
-        PrintWriter w = null;
+        Writer w = null;
         try {
-            w = new PrintWriter(new FileWriter(filename));
-            w.println("1 424");
+            w = new BufferedWriter(new FileWriter(filename), 1 << 16);
+            w.write("1 " + Melody.DIMENSION + "\n");
 
-            for (String melody : population) {
-                String bitString;
-
-                // Translate melody and insert spaces between each bit.
-                System.out.println(melody); // TODO REMOVE
-                bitString = bitifier.translate(melody);
-                bitString = bitString.replace("", " ").trim();
-
-                // Write to melody file.
-                w.println(DEFAULT_SCORE + bitString);
+            // Write each melody's line straight to the melody file.
+            for (Melody melody : population) {
+                bitifier.write(melody, w);
             }
         } catch (IOException e) {
             System.out.println("Error writing melodies to file for " +
                     "neural net. Exiting program...");
             System.exit(1);
         } finally {
-            if (w != null)
-                w.close();
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    System.out.println("Error while closing file");
+                    System.exit(1);
+                }
+            }
         }
     }
 
     /**
      * Test the melodies in <inFile> and saves the scores to <outFile> using
-     * the neural net.
+     * the neural net. What the neural net prints goes to the console.
      *
      * @param inFile Name of file with melodies.
      * @param outFile Name of file to write scores.
-     * @param printOutput True if output of command should be written.
      */
-    private static void testMelodies(String inFile, String outFile,
-                                     boolean printOutput) {
+    static void testMelodies(String inFile, String outFile) {
 
         // Construct command to run the neural net.
         final String[] COMMAND = {
-                "vendor/neural-net/test",
-                "vendor/neural-net/licks.weights.save",
+                NEURAL_NET,
+                WEIGHTS_FILE,
                 inFile,
                 outFile
         };
 
-        // Run the command, and print output if user wanted it.
         Process process = null;
         try {
-            process = Runtime.getRuntime().exec(COMMAND);
-
-            if (printOutput) {
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(process.getInputStream())
-                );
-                String line;
-                while ((line = in.readLine()) != null) {
-                    System.out.println(line);
-                }
-            }
+            process = new ProcessBuilder(COMMAND)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
         } catch (IOException e) {
             System.out.println(
                     "Error running command: " + Arrays.toString(COMMAND)
@@ -189,182 +179,580 @@ public class EvolutionaryMusic {
             e.printStackTrace();
             System.exit(1);
         } finally {
-            try {
-                if (process != null) {
-                    process.waitFor();
-                }
-            } catch (InterruptedException e) {
-                System.out.println("Command was interrupted while executing." +
-                        " Exiting...");
-                e.printStackTrace();
-                System.exit(1);
-            }
+            waitFor(process);
         }
     }
 
     /**
-     * Get the indices in <population> of the melodies with the highest
-     * scores.
+     * Reads the scores the neural net wrote to a text file.
      *
      * @param scoreFile The file containing the scores of the melodies.
-     * @param numSeeds The number of seeds we want (the top _ scores).
-     * @return An array of the indices of the top melodies (in descending order
-     *         of score).
+     * @param scores Receives the score of each melody, in population
+     *               order.
      */
-    private static int[] getSeedIndices(String scoreFile, int numSeeds) {
-        // Read all the scores from the file
-        HashMap<Double, Integer> scoreMap = new HashMap<Double, Integer>();
-        int lineNumber = 1;
-        BufferedReader r = null;
+    static void readScores(String scoreFile, double[] scores) {
+        InputStream in = null;
         try {
-            r = new BufferedReader(new FileReader(scoreFile));
-
-            // Read each line and add the score to hashmap with its index.
-            String line;
-            while ((line = r.readLine()) != null) {
-                scoreMap.put(Double.parseDouble(line), lineNumber);
-                lineNumber++;
+            in = new FileInputStream(scoreFile);
+            ScoreParser parser = new ScoreParser(in);
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = parser.next();
             }
         } catch (FileNotFoundException e) {
             System.out.println("File not found. Exiting.");
             System.exit(1);
         } catch (IOException e) {
-            System.out.println("Error reading file. Exiting");
+            System.out.println("Error reading file " + scoreFile + ": "
+                    + e.getMessage() + ". Exiting.");
             System.exit(1);
         } finally {
-            // Close the read stream.
-            if (r != null) {
+            if (in != null) {
                 try {
-                    r.close();
+                    in.close();
                 } catch (IOException e) {
                     System.out.println("Error while closing file");
                     System.exit(1);
                 }
             }
         }
+    }
 
-        // Array of indices of highest scored melodies.
-        int[] seeds = new int[numSeeds];
+    /**
+     * Tests the melodies in <inFile> with the neural net, reading every
+     * score from its output as soon as it is written instead of from a
+     * file once it exits. The neural net is given "-" as its score file,
+     * and must then write nothing but the scores to stdout.
+     *
+     * @param inFile Name of file with melodies.
+     * @param scores Receives the score of each melody, in population
+     *               order.
+     * @param offset Index of the first melody among the melodies scored,
+     *               for the indices offered to top.
+     * @param top Heap offered every score as soon as it is read, or null.
+     */
+    static void streamScores(String inFile, double[] scores, int offset,
+                             TopK top) {
+        final String[] COMMAND = {NEURAL_NET, WEIGHTS_FILE, inFile, "-"};
 
-        // Get all the scores by themselves
-        Set<Double> scores = scoreMap.keySet();
+        Process process = null;
+        try {
+            process = new ProcessBuilder(COMMAND)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        } catch (IOException e) {
+            System.out.println(
+                    "Error running command: " + Arrays.toString(COMMAND)
+            );
+            e.printStackTrace();
+            System.exit(1);
+        }
 
-        for (int i = 0; i < numSeeds; i++) {
-            // Sort the list to get the max score.
-            List<Double> scoreList = new ArrayList<Double>(scores);
-            Collections.sort(scoreList);
-            double maxScore = scoreList.get(scoreList.size() - 1);
+        IOException error = null;
+        try {
+            ScoreParser parser = new ScoreParser(process.getInputStream());
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = parser.next();
+                if (top != null) {
+                    top.offer(offset + i, scores[i]);
+                }
+            }
+        } catch (IOException e) {
+            // Don't wait for a neural net still writing something else.
+            error = e;
+            process.destroy();
+        }
+        int status = waitFor(process);
+
+        if (error != null || status != 0) {
+            System.out.println("Error reading scores of command "
+                    + Arrays.toString(COMMAND) + ": " + (error != null
+                    ? error.getMessage() : "exited with status " + status)
+                    + ". --stream-scores needs a neural net that writes "
+                    + "only its scores to stdout when its score file is "
+                    + "\"-\". Exiting.");
+            System.exit(1);
+        }
+    }
 
-            // Grab the index of the max score in the map.
-            int maxIndex = scoreMap.get(maxScore) - 1;
+    /**
+     * Waits for the neural net to exit.
+     *
+     * @param process The neural net's process, or null if it didn't start.
+     * @return The exit status of the process, or 0 if it didn't start.
+     */
+    private static int waitFor(Process process) {
+        try {
+            if (process != null) {
+                return process.waitFor();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Command was interrupted while executing." +
+                    " Exiting...");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        return 0;
+    }
 
-            // TODO remove
-            System.out.println("Max Score: " + maxScore);
-            System.out.println("Max Index: " + maxIndex);
+    /**
+     * Get the indices in <population> of the melodies with the highest
+     * scores.
+     *
+     * @param populationScores The score of each melody in the population.
+     * @param numSeeds The number of seeds we want (the top _ scores).
+     * @return An array of the indices of the top melodies (in descending order
+     *         of score).
+     */
+    static int[] getSeedIndices(double[] populationScores,
+                                int numSeeds) {
+        // Keep the best scores in a bounded heap, ties go to the lower index.
+        return TopK.select(populationScores, numSeeds);
+    }
 
-            seeds[i] = maxIndex;
-            scoreMap.remove(maxScore);
+    /**
+     * Get the indices in a generation of the melodies with the highest
+     * scores.
+     *
+     * @param generation The scored generation.
+     * @param top Heap of the size of the number of seeds, cleared first.
+     * @return An array of the indices of the top melodies (in descending order
+     *         of score).
+     */
+    static int[] getSeedIndices(PopulationStore.Generation generation,
+                                TopK top) {
+        top.clear();
+        for (int i = 0; i < generation.size(); i++) {
+            top.offer(i, generation.getScore(i));
         }
+        return top.getIndices();
+    }
 
-        return seeds;
+    /**
+     * Get the indices in a generation of the melodies with the highest
+     * scores under fitness sharing: a score is divided by the niche count of
+     * its melody, so a crowd of near copies doesn't take every seed.
+     *
+     * @param generation The scored generation.
+     * @param top Heap of the size of the number of seeds, cleared first.
+     * @param index Index holding every melody of the generation, with the
+     *              sharing radius.
+     * @return An array of the indices of the top melodies (in descending order
+     *         of shared score).
+     */
+    static int[] getSeedIndices(PopulationStore.Generation generation,
+                                TopK top, SimilarityIndex index) {
+        top.clear();
+        for (int i = 0; i < generation.size(); i++) {
+            // A melody is in its own niche, so sharing never raises a score
+            // and a melody already below the heap can be skipped.
+            double score = generation.getScore(i);
+            if (score < top.getThreshold()) {
+                continue;
+            }
+            double niche = index.getNiche(generation.getMeasure(i, 0),
+                    generation.getMeasure(i, 1));
+            top.offer(i, score > 0 ? score / niche : score * niche);
+        }
+        return top.getIndices();
     }
 
-    private static String getNewMelody(String[] seeds, int MUTATION_RATE) {
-        String melodyOne, melodyTwo;
-        int numSeeds = seeds.length;
+    /**
+     * @param evaluations number of melodies scored
+     * @param start System.nanoTime() when scoring started
+     * @return melodies scored per second since start
+     */
+    static long getRate(long evaluations, long start) {
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        return evaluations * 1000000000L / elapsed;
+    }
 
-        // First melody to breed.
-        melodyOne = seeds[random.nextInt(numSeeds)];
+    /**
+     * Saves a melody to a midi file in the background. The file is written
+     * by the time main returns.
+     *
+     * @param melody The melody to save.
+     * @param filename The midi file to save to (.mid extension).
+     */
+    static void saveMidi(Melody melody, String filename) {
+        exporter.save(melody, filename);
+    }
 
-        // Either breed the first melody with a random one (mutation),
-        // or pick another of the seeds to breed with.
-        if (random.nextInt(100) < (MUTATION_RATE - 1)) {
-            melodyTwo = randomGenerator.getMelodyString();
-        } else {
-            melodyTwo = seeds[random.nextInt(numSeeds)];
-            while (melodyTwo.equals(melodyOne)) {
-                melodyTwo = seeds[random.nextInt(numSeeds)];
+    /**
+     * Saves melodies to one midi file in the background, a track per
+     * melody.
+     *
+     * @param melodies The melodies to save.
+     * @param filename The midi file to save to (.mid extension).
+     */
+    static void saveMidi(Melody[] melodies, String filename) {
+        exporter.save(melodies, filename);
+    }
+
+    /**
+     * Scores with the given workers, in parallel if there is more than one.
+     *
+     * @param workers The scorers to use, each used by one thread.
+     * @return A scorer for whole populations.
+     */
+    private static Scorer getScorer(Scorer[] workers) {
+        if (workers.length == 1) {
+            return workers[0];
+        }
+        return new ShardedScorer(workers);
+    }
+
+    /**
+     * Reads a numeric commandline option given as "<name> <value>".
+     *
+     * @param options The commandline arguments.
+     * @param name The name of the option, e.x. "--workers".
+     * @param defaultValue The value to use if the option isn't given.
+     * @return The value of the option.
+     */
+    static int getOption(List<String> options, String name,
+                         int defaultValue) {
+        int index = options.indexOf(name);
+        if (index < 0) {
+            return defaultValue;
+        }
+        try {
+            int value = Integer.parseInt(options.get(index + 1));
+            if (value > 0) {
+                return value;
             }
+        } catch (IndexOutOfBoundsException e) {
+            // Fall through to the error below.
+        } catch (NumberFormatException e) {
+            // Fall through to the error below.
         }
+        System.out.println(name + " needs a positive number. Exiting.");
+        System.exit(1);
+        return defaultValue;
+    }
 
-        // Breed them in the Breeder class then return the result.
-        return breeder.breed(melodyOne, melodyTwo);
+    /**
+     * Reads a commandline option given as "<name> <value>".
+     *
+     * @param options The commandline arguments.
+     * @param name The name of the option, e.x. "--topology".
+     * @param defaultValue The value to use if the option isn't given.
+     * @return The value of the option.
+     */
+    static String getOption(List<String> options, String name,
+                            String defaultValue) {
+        int index = options.indexOf(name);
+        if (index < 0) {
+            return defaultValue;
+        }
+        if (index + 1 >= options.size()) {
+            System.out.println(name + " needs a value. Exiting.");
+            System.exit(1);
+        }
+        return options.get(index + 1);
+    }
+
+    /**
+     * Reads the seed of the run, given as "--seed N", or picks one.
+     *
+     * @param options The commandline arguments.
+     * @return The seed.
+     */
+    private static long getSeed(List<String> options) {
+        String seed = getOption(options, "--seed", null);
+        if (seed == null) {
+            return new SplittableRandom().nextLong();
+        }
+        try {
+            return Long.parseLong(seed);
+        } catch (NumberFormatException e) {
+            System.out.println("--seed needs a number. Exiting.");
+            System.exit(1);
+            return 0;
+        }
     }
 
     /**
      * Main method that checks commandline parameters and then runs the program
      * with either default or given values.
      *
-     * @param args Commandline arguments. Use "-i" to run interactively.
+     * @param args Commandline arguments, listed in the README. Use "-i" to
+     * run interactively.
      */
-    public static void main(String[] args) {        // Hashmap of the score
-        // of seeds for next generation, and the seeds.
-        int[] seedIndices;
+    public static void main(String[] args) {
+        List<String> options = Arrays.asList(args);
+        boolean logHistory = options.contains("--history");
+        boolean streamScores = options.contains("--stream-scores");
+        boolean inProcess = options.contains("--in-process");
+        boolean process = options.contains("--process");
+        boolean steadyState = options.contains("--steady-state");
+        int coordinatorPort = getOption(options, "--coordinator", 0);
+        if ((inProcess ? 1 : 0) + (process ? 1 : 0)
+                + (coordinatorPort > 0 ? 1 : 0) > 1) {
+            System.out.println("Use one of --in-process, --process and "
+                    + "--coordinator. Exiting.");
+            System.exit(1);
+        }
 
-        // Populate our population with random melodies.
-        String[] population = new String[POPULATION_SIZE];
-        for (int i = 0; i < population.length; i++) {
-            population[i] = randomGenerator.getMelodyString();
+        // The neural net binary is the reference scorer, run every
+        // generation unless another scorer is asked for.
+        boolean external = !inProcess && !process && coordinatorPort == 0;
+        if (streamScores && !external) {
+            System.out.println("--stream-scores reads the scores of the "
+                    + "neural net binary. Exiting.");
+            System.exit(1);
         }
 
-        // Create a temporary folder for our temp files for the neural net.
         final String BASE_DIRECTORY = "melodies";
-        deleteFolder(BASE_DIRECTORY);
-        createFolder(BASE_DIRECTORY);
-
-        // Evolve for {NUMBER_GENERATIONS} generations.
-        for (int i = 0; i < NUMBER_GENERATIONS; i++) {
-            final String GENERATION_DIR = BASE_DIRECTORY + "/" + (i + 1);
-            final String MELODY_FILE = GENERATION_DIR + "/" + "melodies.in";
-            final String SCORE_FILE = GENERATION_DIR + "/" + "scores.save";
+        boolean resume = options.contains("--resume");
+        String checkpointFile = getOption(options, "--checkpoint",
+                BASE_DIRECTORY + "/CHECKPOINT");
+        int checkpointInterval = getOption(options, "--checkpoint-interval",
+                CHECKPOINT_INTERVAL);
+        int historySegments = getOption(options, "--history-segments", 0);
+        HallOfFame hallOfFame = new HallOfFame(NUMBER_SEEDS);
+
+        // A resumed run goes on with the configuration it was started with.
+        Checkpoint checkpoint = null;
+        long seed;
+        int numIslands;
+        int populationSize;
+        int migrationInterval;
+        int migrants;
+        boolean ring;
+        boolean dedupe;
+        int sharingRadius;
+        int candidates;
+        if (resume) {
+            checkpoint = Checkpoint.read(checkpointFile, checkpointInterval,
+                    FitnessCache.checksum(WEIGHTS_FILE), hallOfFame);
+            seed = checkpoint.getSeed();
+            numIslands = checkpoint.getNumberIslands();
+            populationSize = checkpoint.getPopulationSize();
+            migrationInterval = checkpoint.getMigrationInterval();
+            migrants = checkpoint.getMigrants();
+            ring = checkpoint.isRing();
+            dedupe = checkpoint.isDedupe();
+            sharingRadius = checkpoint.getSharingRadius();
+            candidates = checkpoint.getCandidates();
+        } else {
+            seed = getSeed(options);
+            numIslands = getOption(options, "--islands", 1);
+            populationSize = getOption(options, "--population",
+                    POPULATION_SIZE);
+            migrationInterval = getOption(options, "--migration-interval",
+                    MIGRATION_INTERVAL);
+            migrants = getOption(options, "--migrants", MIGRANTS);
+            String topology = getOption(options, "--topology", "ring");
+            if (!topology.equals("ring") && !topology.equals("random")) {
+                System.out.println("Unknown topology " + topology
+                        + ". Exiting.");
+                System.exit(1);
+            }
+            ring = topology.equals("ring");
+            dedupe = options.contains("--dedupe");
+            sharingRadius = getOption(options, "--sharing", 0);
+            if (sharingRadius > SimilarityIndex.MAX_RADIUS) {
+                System.out.println("The sharing radius can't be more than "
+                        + SimilarityIndex.MAX_RADIUS + ". Exiting.");
+                System.exit(1);
+            }
+            candidates = getOption(options, "--surrogate", 0);
+        }
 
+        if (steadyState && (external || numIslands > 1 || resume || dedupe
+                || sharingRadius > 0 || candidates > 0
+                || coordinatorPort > 0)) {
+            System.out.println("--steady-state scores a single population " +
+                    "with --in-process or --process, without --dedupe, " +
+                    "--sharing, --surrogate or --coordinator, and can't " +
+                    "resume. Exiting.");
+            System.exit(1);
+        }
+        if (coordinatorPort > 0 && options.contains("--segment-cache")) {
+            System.out.println("--coordinator scores on ScoringWorkers, " +
+                    "without --segment-cache. Exiting.");
+            System.exit(1);
+        }
+        if (populationSize <= NUMBER_SEEDS) {
+            System.out.println("The population must be larger than the "
+                    + NUMBER_SEEDS + " seeds. Exiting.");
+            System.exit(1);
+        }
+        int numWorkers = getOption(options, "--workers", Math.max(1,
+                Runtime.getRuntime().availableProcessors() / numIslands));
 
-            // Write melodies to a file to run the neural net on.
-            createFolder(GENERATION_DIR);
-            writeMelodiesToFile(MELODY_FILE, population);
+        // Every random choice of the run follows from one seed.
+        RandomStreams streams = new RandomStreams(seed);
+        System.out.println("Seed: " + streams.getSeed());
 
-            // Run the neural net.
-            testMelodies(MELODY_FILE, SCORE_FILE, true);
+        // Create a temporary folder for our temp files for the neural net.
+        // A resumed run keeps the files saved before it stopped.
+        if (!resume) {
+            deleteFolder(BASE_DIRECTORY);
+            createFolder(BASE_DIRECTORY);
+            if (!steadyState) {
+                checkpoint = new Checkpoint(checkpointFile,
+                        checkpointInterval, seed,
+                        FitnessCache.checksum(WEIGHTS_FILE), populationSize,
+                        numIslands, migrationInterval, migrants, ring,
+                        dedupe, sharingRadius, candidates, hallOfFame);
+            }
+        }
 
-            // Get the indices of the highest scores.
-            seedIndices = getSeedIndices(SCORE_FILE, NUMBER_SEEDS);
+        // With --in-process, load the neural net weights once, shared by
+        // every worker of every island. ScoringWorkers score through one
+        // coordinator shared by every island.
+        NeuralNet neuralNet = null;
+        ScoringCoordinator coordinator = null;
+        if (coordinatorPort > 0) {
+            coordinator = new ScoringCoordinator(coordinatorPort,
+                    WEIGHTS_FILE);
+        } else if (inProcess) {
+            neuralNet = NeuralNet.load(WEIGHTS_FILE);
+        }
+        int segmentCache = getOption(options, "--segment-cache", 0);
+        if (segmentCache > 0 && neuralNet == null) {
+            System.out.println("--segment-cache needs --in-process. "
+                    + "Exiting.");
+            System.exit(1);
+        }
 
-            // If we have reached a milestone, save some midi files.
-            if (MILESTONES.contains(i + 1)) {
-                final String SAVE_FOLDER =
-                        BASE_DIRECTORY + "/0GEN_" + (i + 1) + "SAVED";
-                createFolder(SAVE_FOLDER);
+        // The disk cache is tagged with the weights only, so it must not
+        // hold scores that differ from the neural net's.
+        if (segmentCache > 0 && options.contains("--disk-cache")) {
+            System.out.println("--segment-cache scores can't be cached on "
+                    + "disk, use it without --disk-cache. Exiting.");
+            System.exit(1);
+        }
 
-                for (int index : seedIndices) {
-                    final String SAVE_FILE =
-                            SAVE_FOLDER + "/RANK_" + index + ".mid";
-                    player.save(population[index], SAVE_FILE);
-                }
+        // Cache scores so unchanged seeds and repeated offspring aren't
+        // scored again. Every island shares the cache.
+        FitnessCache cache = null;
+        if (!external) {
+            int cacheSize = getOption(options, "--cache-size",
+                    DEFAULT_CACHE_SIZE);
+            String diskCache = getOption(options, "--disk-cache", null);
+            if (diskCache != null) {
+                cache = new FitnessCache(cacheSize, diskCache, WEIGHTS_FILE);
+            } else {
+                cache = new FitnessCache(cacheSize);
             }
+        }
 
-            // If we are on the last generation, we can break at this point.
-            if (i + 1 == NUMBER_GENERATIONS) break;
+        // Time every phase, and with --metrics dump the times every
+        // generation.
+        Metrics metrics = new Metrics(numIslands,
+                options.contains("--metrics") ? BASE_DIRECTORY : null);
 
-            // Get the top melodies of this generation.
-            String[] seeds = new String[NUMBER_SEEDS];
-            for (int j = 0; j < seeds.length; j++) {
-                seeds[j] = population[seedIndices[j]];
+        Archipelago archipelago = null;
+        if (numIslands > 1) {
+            archipelago = new Archipelago(numIslands, migrationInterval,
+                    migrants, ring, streams.split());
+        }
+
+        // Give every island its own scorer and folder.
+        List<Scorer> scorers = new ArrayList<Scorer>();
+        List<HistoryLog> histories = new ArrayList<HistoryLog>();
+        Thread[] threads = new Thread[numIslands];
+        for (int i = 0; i < numIslands; i++) {
+            String directory = BASE_DIRECTORY;
+            if (numIslands > 1) {
+                directory = BASE_DIRECTORY + "/ISLAND_" + (i + 1);
+                createFolder(directory);
             }
 
-            // Recreate the population for the next generation.
-            population = new String[POPULATION_SIZE];
+            Scorer[] workers = new Scorer[numWorkers];
+            if (!external && coordinator == null) {
+                for (int j = 0; j < workers.length; j++) {
+                    if (segmentCache > 0) {
+                        // Every worker keeps its own partial sums.
+                        workers[j] = new SegmentScorer(neuralNet,
+                                segmentCache);
+                    } else if (neuralNet != null) {
+                        workers[j] = neuralNet;
+                    } else {
+                        workers[j] = new ScorerProcess(NEURAL_NET,
+                                WEIGHTS_FILE);
+                    }
+                }
+            }
 
-            // Copy over the first few from the seeds of last generation.
-            System.arraycopy(seeds, 0, population, 0, seeds.length);
+            Runnable island;
+            if (steadyState) {
+                // Every worker scores its own offspring, one at a time.
+                for (int j = 0; j < workers.length; j++) {
+                    workers[j] = new CachingScorer(workers[j], cache);
+                    scorers.add(workers[j]);
+                }
+                island = new SteadyStateIsland(workers, populationSize,
+                        hallOfFame, directory, streams.split());
+            } else {
+                Metrics.Timer timer = metrics.newTimer(i);
+                Scorer scorer;
+                if (external) {
+                    // Seeds are selected as the scores stream in, unless
+                    // sharing needs the whole population first.
+                    scorer = new ExternalScorer(directory, streamScores,
+                            sharingRadius == 0, timer);
+                } else if (coordinator != null) {
+                    scorer = new CachingScorer(coordinator, cache);
+                } else {
+                    scorer = new CachingScorer(getScorer(workers), cache);
+                }
+                scorers.add(scorer);
+                HistoryLog history = null;
+                if (logHistory) {
+                    history = new HistoryLog(directory + "/HISTORY",
+                            populationSize, historySegments,
+                            resume ? checkpoint.getGeneration() : 0);
+                    histories.add(history);
+                }
+                island = new Island(i, populationSize, scorer, archipelago,
+                        hallOfFame, directory, history, checkpoint, dedupe,
+                        sharingRadius, candidates, timer, streams.split());
+            }
+            threads[i] = new Thread(island, "island-" + (i + 1));
+        }
 
-            // Breed the rest of the population.
-            for (int n = seeds.length; n < population.length; n++) {
-                System.out.println("hello"); // TODO remove
-                population[n] = getNewMelody(seeds, MUTATION_RATE);
+        // Evolve every island and wait for all of them to finish.
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
             }
+        } catch (InterruptedException e) {
+            System.out.println("Evolution was interrupted. Exiting...");
+            e.printStackTrace();
+            System.exit(1);
+        }
 
-            // TODO
+        // Closing a caching scorer also closes the shared cache.
+        for (Scorer scorer : scorers) {
+            scorer.close();
+        }
+        for (HistoryLog history : histories) {
+            history.close();
+        }
+        if (!steadyState) {
+            metrics.printSummary();
         }
+        metrics.close();
+
+        // Save the best melodies of the whole run.
+        final String HALL_OF_FAME = BASE_DIRECTORY + "/HALL_OF_FAME";
+        createFolder(HALL_OF_FAME);
+        Melody[] best = hallOfFame.getMelodies();
+        double[] bestScores = hallOfFame.getScores();
+        for (int i = 0; i < best.length; i++) {
+            System.out.println("Hall of fame " + (i + 1) + ": "
+                    + bestScores[i]);
+            saveMidi(best[i], HALL_OF_FAME + "/RANK_" + (i + 1) + ".mid");
+        }
+        saveMidi(best, HALL_OF_FAME + "/ALL.mid");
+
+        // Wait for the midi files still being saved.
+        exporter.close();
 
         // TODO: rest of program
     }
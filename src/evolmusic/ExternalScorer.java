@@ -0,0 +1,111 @@
+package evolmusic;
+
+import java.io.File;
+
+/**
+ * Runs the external neural net binary once per generation, exchanging
+ * melodies and scores through melodies.in and scores.save in
+ * <directory>/EXCHANGE. The files are replaced every generation, a
+ * HistoryLog keeps the generations themselves.
+ *
+ * Text scores can be streamed instead, parsed from the binary's output as
+ * it writes them, for a binary that takes "-" as its score file and then
+ * writes nothing but the scores there.
+ * The seeds can then be selected as the scores come in too.
+ *
+ * Writing, running the neural net and reading its scores are timed as
+ * phases of the island's generation. Streamed scores are parsed while the
+ * neural net runs, so they are timed with it.
+ */
+public class ExternalScorer implements Scorer {
+
+    private static final String EXCHANGE_DIR = "EXCHANGE";
+
+    private final String directory;
+    private final boolean stream;
+    private final Metrics.Timer timer;
+
+    // Seeds of the melodies last scored, offered every streamed score, or
+    // null if they aren't selected here.
+    private final TopK seeds;
+    private boolean seedsSelected;
+
+    /**
+     * @param directory directory to create the exchange folder in
+     * @param stream true to parse text scores from the binary's output
+     * @param selectSeeds true to select seeds while streamed scores are
+     *                    parsed
+     * @param timer timer of the island scoring with this scorer
+     */
+    public ExternalScorer(String directory, boolean stream,
+                          boolean selectSeeds, Metrics.Timer timer) {
+        this.directory = directory;
+        this.stream = stream;
+        this.timer = timer;
+        seeds = stream && selectSeeds
+                ? new TopK(EvolutionaryMusic.NUMBER_SEEDS) : null;
+        EvolutionaryMusic.createFolder(directory + "/" + EXCHANGE_DIR);
+    }
+
+    /**
+     * @return indices of the seeds among the melodies last scored, best
+     * first, as EvolutionaryMusic.getSeedIndices() selects them, or null
+     * if they weren't selected while scoring
+     */
+    public int[] getSeedIndices() {
+        return seedsSelected ? seeds.getIndices() : null;
+    }
+
+    @Override
+    public void score(Melody[] melodies, int from, int to, double[] scores) {
+        final String GENERATION_DIR = directory + "/" + EXCHANGE_DIR;
+
+        Melody[] population = melodies;
+        if (from != 0 || to != melodies.length) {
+            population = new Melody[to - from];
+            System.arraycopy(melodies, from, population, 0, to - from);
+        }
+
+        seedsSelected = false;
+        double[] populationScores;
+        if (stream) {
+            // Write melodies to a file to run the neural net on, and parse
+            // its scores while it runs.
+            final String MELODY_FILE = GENERATION_DIR + "/" + "melodies.in";
+            timer.start(Phase.BITIFY_AND_WRITE);
+            EvolutionaryMusic.writeMelodiesToFile(MELODY_FILE, population);
+            timer.stop(Phase.BITIFY_AND_WRITE, population.length);
+            timer.start(Phase.NEURAL_NET);
+            populationScores = new double[population.length];
+            if (seeds != null) {
+                seeds.clear();
+            }
+            EvolutionaryMusic.streamScores(MELODY_FILE, populationScores,
+                    from, seeds);
+            seedsSelected = seeds != null;
+            timer.stop(Phase.NEURAL_NET, population.length);
+        } else {
+            // Write melodies to a file to run the neural net on.
+            final String MELODY_FILE = GENERATION_DIR + "/" + "melodies.in";
+            final String SCORE_FILE = GENERATION_DIR + "/" + "scores.save";
+            new File(SCORE_FILE).delete(); // never read last generation's
+            timer.start(Phase.BITIFY_AND_WRITE);
+            EvolutionaryMusic.writeMelodiesToFile(MELODY_FILE, population);
+            timer.stop(Phase.BITIFY_AND_WRITE, population.length);
+            timer.start(Phase.NEURAL_NET);
+            EvolutionaryMusic.testMelodies(MELODY_FILE, SCORE_FILE);
+            timer.stop(Phase.NEURAL_NET, population.length);
+            timer.start(Phase.SCORE_PARSE);
+            populationScores = new double[population.length];
+            EvolutionaryMusic.readScores(SCORE_FILE, populationScores);
+            timer.stop(Phase.SCORE_PARSE, population.length);
+        }
+        System.arraycopy(populationScores, 0, scores, from,
+                populationScores.length);
+    }
+
+    @Override
+    public void close() {
+        // The neural net exits after every generation.
+    }
+}
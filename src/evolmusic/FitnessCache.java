@@ -0,0 +1,243 @@
+package evolmusic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers the scores of melodies by their fingerprint.
+ *
+ * The first tier is a bounded in-memory hash table of primitive arrays, so
+ * looking up and storing scores allocates nothing. Each fingerprint has
+ * MAX_PROBES slots, and the least recently used of them is replaced when
+ * all are taken. The optional second tier is a memory-mapped hash table on
+ * disk that persists between runs. It is tagged with a checksum of the
+ * weights file, and cleared when the weights change.
+ *
+ * Thread-safe, islands share one cache.
+ */
+public class FitnessCache {
+
+    // On-disk table: header, then SLOTS entries of (fingerprint, score).
+    private static final long MAGIC = 0x45564F4C43414348L; // "EVOLCACH"
+    private static final int HEADER_BYTES = 24;
+    private static final int SLOT_BYTES = 16;
+    private static final int SLOTS = 1 << 20;
+    private static final int MAX_PROBES = 8;
+    private static final long EMPTY = 0;
+
+    // In-memory table. A slot is free while its stamp is EMPTY, and
+    // otherwise holds the tick it was last used at.
+    private final int mask;
+    private final long[] keys;
+    private final double[] scores;
+    private final long[] stamps;
+    private long tick;
+
+    private RandomAccessFile file;
+    private MappedByteBuffer disk;
+
+    /**
+     * Creates a cache with only the in-memory tier.
+     *
+     * @param capacity number of scores kept in memory, rounded up to a
+     *                 power of two
+     */
+    public FitnessCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity) * 2 - 1);
+        mask = size - 1;
+        keys = new long[size];
+        scores = new double[size];
+        stamps = new long[size];
+    }
+
+    /**
+     * Creates a cache with both tiers.
+     *
+     * @param capacity number of scores kept in memory, rounded up to a
+     *                 power of two
+     * @param cacheFile file holding the on-disk tier, created if needed
+     * @param weightsFile weights the cached scores were computed with
+     */
+    public FitnessCache(int capacity, String cacheFile, String weightsFile) {
+        this(capacity);
+        long weights = checksum(weightsFile);
+        try {
+            file = new RandomAccessFile(cacheFile, "rw");
+            disk = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_BYTES + (long) SLOTS * SLOT_BYTES);
+
+            // Scores from other weights are useless, start over.
+            if (disk.getLong(0) != MAGIC || disk.getLong(8) != weights
+                    || disk.getInt(16) != SLOTS) {
+                for (int i = 0; i < SLOTS; i++) {
+                    disk.putLong(HEADER_BYTES + i * SLOT_BYTES, EMPTY);
+                }
+                disk.putLong(0, MAGIC);
+                disk.putLong(8, weights);
+                disk.putInt(16, SLOTS);
+            }
+        } catch (IOException e) {
+            System.out.println("Error opening fitness cache " + cacheFile
+                    + ". Exiting.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Looks up a score, first in memory and then on disk.
+     *
+     * @param fingerprint Melody.fingerprint() of the melody
+     * @return the cached score, or NaN if the melody hasn't been scored
+     */
+    public synchronized double get(long fingerprint) {
+        int index = findInMemory(fingerprint);
+        if (stamps[index] != EMPTY && keys[index] == fingerprint) {
+            stamps[index] = ++tick;
+            return scores[index];
+        }
+        if (disk != null) {
+            int slot = find(fingerprint);
+            if (slot >= 0 && disk.getLong(slot) == key(fingerprint)) {
+                double score = disk.getDouble(slot + 8);
+                keep(index, fingerprint, score);
+                return score;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Stores a score in both tiers. NaN scores aren't stored, since get()
+     * couldn't tell them from a miss.
+     *
+     * @param fingerprint Melody.fingerprint() of the melody
+     * @param score the melody's score
+     */
+    public synchronized void put(long fingerprint, double score) {
+        if (Double.isNaN(score)) {
+            return;
+        }
+        keep(findInMemory(fingerprint), fingerprint, score);
+        if (disk != null) {
+            int slot = find(fingerprint);
+            if (slot < 0) {
+                // Probe sequence is full, replace its first entry.
+                slot = offset(fingerprint, 0);
+            }
+            disk.putLong(slot, key(fingerprint));
+            disk.putDouble(slot + 8, score);
+        }
+    }
+
+    /**
+     * Writes the on-disk tier back to the file and closes it.
+     */
+    public synchronized void close() {
+        if (disk == null) {
+            return;
+        }
+        disk.force();
+        disk = null;
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.out.println("Error while closing fitness cache");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Linear probing in the in-memory table.
+     *
+     * @param fingerprint Melody.fingerprint() of the melody
+     * @return index of the melody's slot, or else of a free slot it belongs
+     * in, or else of the least recently used slot it could replace
+     */
+    private int findInMemory(long fingerprint) {
+        int oldest = (int) (fingerprint & mask);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int index = (int) ((fingerprint + probe) & mask);
+            if (stamps[index] == EMPTY || keys[index] == fingerprint) {
+                return index;
+            }
+            if (stamps[index] < stamps[oldest]) {
+                oldest = index;
+            }
+        }
+        return oldest;
+    }
+
+    private void keep(int index, long fingerprint, double score) {
+        keys[index] = fingerprint;
+        scores[index] = score;
+        stamps[index] = ++tick;
+    }
+
+    /**
+     * Linear probing in the on-disk table.
+     *
+     * @param fingerprint Melody.fingerprint() of the melody
+     * @return offset of the melody's slot or of the empty slot it belongs
+     * in, or -1 if all probed slots hold other melodies
+     */
+    private int find(long fingerprint) {
+        long key = key(fingerprint);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = offset(fingerprint, probe);
+            long stored = disk.getLong(slot);
+            if (stored == key || stored == EMPTY) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static int offset(long fingerprint, int probe) {
+        int index = (int) ((fingerprint + probe) & (SLOTS - 1));
+        return HEADER_BYTES + index * SLOT_BYTES;
+    }
+
+    /**
+     * Fingerprint as stored on disk, never EMPTY.
+     */
+    private static long key(long fingerprint) {
+        return fingerprint == EMPTY ? 1 : fingerprint;
+    }
+
+    /**
+     * @param filename file to checksum
+     * @return CRC32 of the file's contents and its length
+     */
+    static long checksum(String filename) {
+        CRC32 crc = new CRC32();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(filename);
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading weights file " + filename
+                    + ". Exiting.");
+            System.exit(1);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    System.out.println("Error while closing file");
+                    System.exit(1);
+                }
+            }
+        }
+        return crc.getValue() ^ (new File(filename).length() << 32);
+    }
+}
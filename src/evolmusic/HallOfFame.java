@@ -0,0 +1,85 @@
+package evolmusic;
+
+/**
+ * The best distinct melodies found over a whole run, across every island.
+ *
+ * Thread-safe, islands offer their seeds to the same hall of fame.
+ */
+public class HallOfFame {
+
+    private final Melody[] melodies;
+    private final double[] scores;
+    private int size;
+
+    /**
+     * @param capacity number of melodies to keep
+     */
+    public HallOfFame(int capacity) {
+        melodies = new Melody[capacity];
+        scores = new double[capacity];
+    }
+
+    /**
+     * Adds a melody if it scores better than the worst one kept.
+     *
+     * @param melody the melody
+     * @param score its score
+     */
+    public synchronized void offer(Melody melody, double score) {
+        int worst = 0;
+        for (int i = 0; i < size; i++) {
+            if (melodies[i].equals(melody)) {
+                scores[i] = Math.max(scores[i], score);
+                return;
+            }
+            if (scores[i] < scores[worst]) {
+                worst = i;
+            }
+        }
+
+        if (size < melodies.length) {
+            melodies[size] = melody;
+            scores[size] = score;
+            size++;
+        } else if (size > 0 && score > scores[worst]) {
+            melodies[worst] = melody;
+            scores[worst] = score;
+        }
+    }
+
+    /**
+     * @return the melodies kept, best score first
+     */
+    public synchronized Melody[] getMelodies() {
+        Melody[] sorted = new Melody[size];
+        double[] sortedScores = new double[size];
+        getSorted(sorted, sortedScores);
+        return sorted;
+    }
+
+    /**
+     * @return the scores of the melodies kept, best first
+     */
+    public synchronized double[] getScores() {
+        Melody[] sorted = new Melody[size];
+        double[] sortedScores = new double[size];
+        getSorted(sorted, sortedScores);
+        return sortedScores;
+    }
+
+    /**
+     * Insertion sort by descending score, the hall of fame is small.
+     */
+    private void getSorted(Melody[] sorted, double[] sortedScores) {
+        for (int i = 0; i < size; i++) {
+            int j = i;
+            while (j > 0 && sortedScores[j - 1] < scores[i]) {
+                sorted[j] = sorted[j - 1];
+                sortedScores[j] = sortedScores[j - 1];
+                j--;
+            }
+            sorted[j] = melodies[i];
+            sortedScores[j] = scores[i];
+        }
+    }
+}
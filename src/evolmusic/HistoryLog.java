@@ -0,0 +1,332 @@
+package evolmusic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Every scored generation of an island, appended to a log of segment
+ * files in place of a folder of text files per generation. HistoryReader
+ * reads it back.
+ *
+ * A segment holds SEGMENT_GENERATIONS generations, or fewer if they would
+ * take more than SEGMENT_BYTES, so it can be mapped. Each generation is
+ * RECORD_BYTES per melody, in population order, followed by the
+ * population indices of its seeds, best first. A melody is its two chords
+ * and 16 slot codes of CODE_BITS: 0 for a rest, 1-24 for a pitch, or TIE
+ * for a slot tied to the one before it, which holds the same pitch in
+ * every melody RandomMelody, Breeder and Melody.valueOf make. The score
+ * follows as a double.
+ *
+ * The index file has INDEX_BYTES per generation: its number, segment,
+ * offset in the segment, number of melodies and number of seeds. All
+ * numbers are little-endian.
+ *
+ * Only the newest segments are kept if a retention is given. A resumed
+ * run drops what was logged after its checkpoint, then appends.
+ */
+public class HistoryLog {
+
+    public static final String INDEX_FILE = "index";
+    public static final int SEGMENT_GENERATIONS = 100;
+    public static final long SEGMENT_BYTES = 1L << 30;
+    public static final int MELODY_BYTES = 13;
+    public static final int RECORD_BYTES = MELODY_BYTES + 8;
+    public static final int INDEX_BYTES = 24;
+
+    static final int CODE_BITS = 5;
+    static final int TIE = 25;
+
+    // Chord and slot codes of one measure.
+    private static final int MEASURE_CODE_BITS = Melody.CHORD_BITS
+            + Melody.SLOTS_PER_MEASURE * CODE_BITS; // 52
+    private static final long MEASURE_CODE_MASK =
+            (1L << MEASURE_CODE_BITS) - 1;
+
+    // Generations are encoded in chunks of this many bytes.
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private final String directory;
+    private final int retainedSegments;
+    private final int segmentGenerations;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer entry = ByteBuffer.allocate(INDEX_BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    private RandomAccessFile index;
+    private RandomAccessFile segment;
+    private int segmentNumber = -1;
+
+    /**
+     * @param directory directory of the log, created if needed
+     * @param populationSize number of melodies in every generation
+     * @param retainedSegments number of newest segments to keep, or 0 to
+     * keep every segment
+     * @param resumedGeneration generation a resumed run goes on from, or 0
+     * for a new log
+     */
+    public HistoryLog(String directory, int populationSize,
+                      int retainedSegments, int resumedGeneration) {
+        this.directory = directory;
+        this.retainedSegments = retainedSegments;
+        long generationBytes = (long) populationSize * RECORD_BYTES
+                + 4 * EvolutionaryMusic.NUMBER_SEEDS;
+        segmentGenerations = (int) Math.max(1, Math.min(SEGMENT_GENERATIONS,
+                SEGMENT_BYTES / generationBytes));
+        EvolutionaryMusic.createFolder(directory);
+        try {
+            index = new RandomAccessFile(getIndexFile(directory), "rw");
+            truncate(resumedGeneration);
+        } catch (IOException e) {
+            System.out.println("Error opening history " + directory
+                    + ". Exiting.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param directory directory of a log
+     * @return its index file
+     */
+    static File getIndexFile(String directory) {
+        return new File(directory, INDEX_FILE);
+    }
+
+    /**
+     * @param directory directory of a log
+     * @param segment segment number
+     * @return the segment file
+     */
+    static File getSegmentFile(String directory, int segment) {
+        return new File(directory, String.format("%06d.seg", segment));
+    }
+
+    /**
+     * @param generation generation number, starting from 1
+     * @return number of the segment holding the generation
+     */
+    private int getSegment(int generation) {
+        return (generation - 1) / segmentGenerations;
+    }
+
+    /**
+     * Appends a scored generation.
+     *
+     * @param generation generation number, one more than the last appended
+     * @param population the scored generation
+     * @param seedIndices indices of its seeds, best first
+     */
+    public void append(int generation, PopulationStore.Generation population,
+                       int[] seedIndices) {
+        try {
+            if (getSegment(generation) != segmentNumber) {
+                openSegment(getSegment(generation));
+            }
+            FileChannel channel = segment.getChannel();
+            long offset = channel.size();
+            channel.position(offset);
+
+            buffer.clear();
+            for (int i = 0; i < population.size(); i++) {
+                if (buffer.remaining() < RECORD_BYTES) {
+                    flush(channel);
+                }
+                pack(population.getMeasure(i, 0), population.getMeasure(i, 1),
+                        buffer);
+                buffer.putDouble(population.getScore(i));
+            }
+            for (int seed : seedIndices) {
+                if (buffer.remaining() < 4) {
+                    flush(channel);
+                }
+                buffer.putInt(seed);
+            }
+            flush(channel);
+
+            // The index entry goes last, so a generation is only read once
+            // all of it is written.
+            entry.clear();
+            entry.putInt(generation);
+            entry.putInt(segmentNumber);
+            entry.putLong(offset);
+            entry.putInt(population.size());
+            entry.putInt(seedIndices.length);
+            entry.flip();
+            FileChannel indexChannel = index.getChannel();
+            indexChannel.position(indexChannel.size());
+            while (entry.hasRemaining()) {
+                indexChannel.write(entry);
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing history " + directory
+                    + ". Exiting.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Closes the files of the log.
+     */
+    public void close() {
+        try {
+            index.close();
+            if (segment != null) {
+                segment.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error while closing history");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Packs a melody into MELODY_BYTES bytes: the first measure's 52 bits
+     * and the low 12 of the second's in a long, then the second's other 40
+     * bits.
+     *
+     * @param first packed first measure
+     * @param second packed second measure
+     * @param buffer little-endian buffer to put the bytes in
+     */
+    static void pack(long first, long second, ByteBuffer buffer) {
+        long one = encode(first);
+        long two = encode(second);
+        buffer.putLong(one | two << MEASURE_CODE_BITS);
+        long rest = two >>> (Long.SIZE - MEASURE_CODE_BITS);
+        for (int i = 0; i < MELODY_BYTES - 8; i++) {
+            buffer.put((byte) (rest >>> (8 * i)));
+        }
+    }
+
+    /**
+     * Unpacks what pack() packed.
+     *
+     * @param buffer little-endian buffer holding the bytes
+     * @param offset index of the first byte
+     * @return the melody
+     */
+    static Melody unpack(ByteBuffer buffer, int offset) {
+        long low = buffer.getLong(offset);
+        long rest = 0;
+        for (int i = 0; i < MELODY_BYTES - 8; i++) {
+            rest |= (buffer.get(offset + 8 + i) & 0xFFL) << (8 * i);
+        }
+        long two = low >>> MEASURE_CODE_BITS
+                | rest << (Long.SIZE - MEASURE_CODE_BITS);
+        return new Melody(decode(low & MEASURE_CODE_MASK), decode(two));
+    }
+
+    /**
+     * @param measure packed measure, as in Melody
+     * @return its chord and slot codes in MEASURE_CODE_BITS bits
+     */
+    private static long encode(long measure) {
+        long codes = measure & Melody.CHORD_MASK;
+        int previous = Melody.REST;
+        for (int slot = 0; slot < Melody.SLOTS_PER_MEASURE; slot++) {
+            int code = Melody.slot(measure, slot);
+            int pitch = code & Melody.PITCH_MASK;
+            boolean tied = (code & Melody.TIED) != 0;
+            long slotCode = tied && slot > 0 && pitch == previous ? TIE
+                    : pitch;
+            codes |= slotCode << (Melody.CHORD_BITS + slot * CODE_BITS);
+            previous = pitch;
+        }
+        return codes;
+    }
+
+    /**
+     * @param codes chord and slot codes of a measure
+     * @return packed measure, as in Melody
+     */
+    private static long decode(long codes) {
+        long measure = codes & Melody.CHORD_MASK;
+        int previous = Melody.REST;
+        for (int slot = 0; slot < Melody.SLOTS_PER_MEASURE; slot++) {
+            int code = (int) (codes >>> (Melody.CHORD_BITS
+                    + slot * CODE_BITS)) & ((1 << CODE_BITS) - 1);
+            boolean tied = code == TIE;
+            int pitch = tied ? previous : code;
+            measure |= Melody.slotBits(pitch, tied, slot);
+            previous = pitch;
+        }
+        return measure;
+    }
+
+    /**
+     * Writes the buffer to the channel and clears it.
+     */
+    private void flush(FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Starts appending to a segment, and deletes segments past retention.
+     */
+    private void openSegment(int number) throws IOException {
+        if (segment != null) {
+            segment.close();
+        }
+        segment = new RandomAccessFile(getSegmentFile(directory, number),
+                "rw");
+        segmentNumber = number;
+
+        if (retainedSegments > 0) {
+            for (int old = number - retainedSegments; old >= 0; old--) {
+                File file = getSegmentFile(directory, old);
+                if (!file.exists()) {
+                    break;
+                }
+                if (!file.delete()) {
+                    System.out.println("Error deleting " + file + ".");
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every generation after the given one from the index and the
+     * segments, e.x. generations logged after the checkpoint a run resumes
+     * from. A half-written index entry is dropped too.
+     *
+     * @param generation last generation to keep, 0 to keep none
+     */
+    private void truncate(int generation) throws IOException {
+        long entries = index.length() / INDEX_BYTES;
+        long keep = 0;
+        long segmentEnd = 0;
+        int lastSegment = -1;
+        for (long i = 0; i < entries; i++) {
+            index.seek(i * INDEX_BYTES);
+            index.readFully(entry.array());
+            if (entry.getInt(0) > generation) {
+                break;
+            }
+            keep = i + 1;
+            lastSegment = entry.getInt(4);
+            segmentEnd = entry.getLong(8) + (long) entry.getInt(16)
+                    * RECORD_BYTES + 4L * entry.getInt(20);
+        }
+        index.setLength(keep * INDEX_BYTES);
+
+        // Later segments only hold dropped generations.
+        for (int number = lastSegment + 1; ; number++) {
+            File file = getSegmentFile(directory, number);
+            if (!file.exists() || !file.delete()) {
+                break;
+            }
+        }
+        if (lastSegment >= 0) {
+            openSegment(lastSegment);
+            segment.setLength(segmentEnd);
+        }
+    }
+}
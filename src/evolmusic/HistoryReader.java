@@ -0,0 +1,236 @@
+package evolmusic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the generations a HistoryLog wrote, e.x. to find the best melody
+ * of every generation after a run. Segments are memory-mapped when first
+ * read, so only the generations looked at are read from disk.
+ *
+ * Generations whose segment was deleted by the log's retention are
+ * skipped. Not thread-safe.
+ */
+public class HistoryReader {
+
+    private final String directory;
+
+    // Index entries of the readable generations, in generation order.
+    private final int[] generations;
+    private final int[] segments;
+    private final long[] offsets;
+    private final int[] sizes;
+    private final int[] seedCounts;
+
+    private final Map<Integer, ByteBuffer> mapped =
+            new HashMap<Integer, ByteBuffer>();
+
+    /**
+     * @param directory directory of the log
+     */
+    public HistoryReader(String directory) {
+        this.directory = directory;
+        ByteBuffer index = map(HistoryLog.getIndexFile(directory));
+        int entries = index.capacity() / HistoryLog.INDEX_BYTES;
+
+        int count = 0;
+        int[] allSegments = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            allSegments[i] = index.getInt(i * HistoryLog.INDEX_BYTES + 4);
+            if (HistoryLog.getSegmentFile(directory, allSegments[i])
+                    .exists()) {
+                count++;
+            }
+        }
+
+        generations = new int[count];
+        segments = new int[count];
+        offsets = new long[count];
+        sizes = new int[count];
+        seedCounts = new int[count];
+        int j = 0;
+        for (int i = 0; i < entries; i++) {
+            if (!HistoryLog.getSegmentFile(directory, allSegments[i])
+                    .exists()) {
+                continue;
+            }
+            int entry = i * HistoryLog.INDEX_BYTES;
+            generations[j] = index.getInt(entry);
+            segments[j] = allSegments[i];
+            offsets[j] = index.getLong(entry + 8);
+            sizes[j] = index.getInt(entry + 16);
+            seedCounts[j] = index.getInt(entry + 20);
+            j++;
+        }
+    }
+
+    /**
+     * @return number of the first generation that can be read, or 0 if
+     * none can
+     */
+    public int getFirstGeneration() {
+        return generations.length == 0 ? 0 : generations[0];
+    }
+
+    /**
+     * @return number of the last generation logged, or 0 if none was
+     */
+    public int getLastGeneration() {
+        return generations.length == 0 ? 0
+                : generations[generations.length - 1];
+    }
+
+    /**
+     * @param generation generation number
+     * @return number of melodies in the generation
+     */
+    public int size(int generation) {
+        return sizes[find(generation)];
+    }
+
+    /**
+     * @param generation generation number
+     * @param index index of the melody in its generation
+     * @return the melody
+     */
+    public Melody getMelody(int generation, int index) {
+        int entry = find(generation);
+        check(entry, index);
+        return HistoryLog.unpack(getSegment(entry),
+                getRecord(entry, index));
+    }
+
+    /**
+     * @param generation generation number
+     * @param index index of the melody in its generation
+     * @return its score
+     */
+    public double getScore(int generation, int index) {
+        int entry = find(generation);
+        check(entry, index);
+        return getSegment(entry).getDouble(getRecord(entry, index)
+                + HistoryLog.MELODY_BYTES);
+    }
+
+    /**
+     * @param generation generation number
+     * @return number of seeds, the melodies ranked in the generation
+     */
+    public int getRanked(int generation) {
+        return seedCounts[find(generation)];
+    }
+
+    /**
+     * @param generation generation number
+     * @param rank 0 for the best melody, up to getRanked() - 1
+     * @return index of the melody of the given rank in its generation
+     */
+    public int getIndex(int generation, int rank) {
+        int entry = find(generation);
+        if (rank < 0 || rank >= seedCounts[entry]) {
+            throw new IndexOutOfBoundsException("Rank " + rank);
+        }
+        return getSegment(entry).getInt(getRecord(entry, sizes[entry])
+                + 4 * rank);
+    }
+
+    /**
+     * @param generation generation number
+     * @return the best melody of the generation
+     */
+    public Melody getBest(int generation) {
+        return getMelody(generation, getIndex(generation, 0));
+    }
+
+    /**
+     * @param generation generation number
+     * @return score of the best melody of the generation
+     */
+    public double getBestScore(int generation) {
+        return getScore(generation, getIndex(generation, 0));
+    }
+
+    /**
+     * @return position of the generation in the index arrays
+     */
+    private int find(int generation) {
+        // Generations are logged in increasing order.
+        int low = 0;
+        int high = generations.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (generations[middle] < generation) {
+                low = middle + 1;
+            } else if (generations[middle] > generation) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        throw new IllegalArgumentException("Generation " + generation
+                + " is not in " + directory);
+    }
+
+    private void check(int entry, int index) {
+        if (index < 0 || index >= sizes[entry]) {
+            throw new IndexOutOfBoundsException("Melody " + index);
+        }
+    }
+
+    /**
+     * @return offset of a melody's record in its segment, or of the seed
+     * indices after the last record
+     */
+    private int getRecord(int entry, int index) {
+        return (int) (offsets[entry]
+                + (long) index * HistoryLog.RECORD_BYTES);
+    }
+
+    /**
+     * @return the segment holding an index entry's generation
+     */
+    private ByteBuffer getSegment(int entry) {
+        ByteBuffer segment = mapped.get(segments[entry]);
+        if (segment == null) {
+            segment = map(HistoryLog.getSegmentFile(directory,
+                    segments[entry]));
+            mapped.put(segments[entry], segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Maps a whole file for reading.
+     */
+    private static ByteBuffer map(File filename) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(filename, "r");
+            MappedByteBuffer buffer = file.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, file.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } catch (IOException e) {
+            System.out.println("Error mapping file " + filename
+                    + ". Exiting.");
+            System.exit(1);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    System.out.println("Error while closing file");
+                    System.exit(1);
+                }
+            }
+        }
+        return null;
+    }
+}
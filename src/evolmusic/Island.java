@@ -0,0 +1,475 @@
+package evolmusic;
+
+import java.util.SplittableRandom;
+
+/**
+ * One population evolving on its own: every generation it is scored, the
+ * best melodies are kept as seeds, and the seeds are bred into the next
+ * generation. Islands of an Archipelago run on separate threads and
+ * exchange seeds every few generations.
+ *
+ * A run with a single island is the plain generational evolution. The
+ * population lives off the heap in a PopulationStore, the next generation
+ * bred into one buffer while the current one is read from the other.
+ *
+ * Populations tend to fill up with copies of a few melodies. Offspring
+ * identical to a melody already in the next generation can be bred again,
+ * and seeds can be selected with fitness sharing, which divides a score by
+ * the number of melodies near it in a SimilarityIndex.
+ *
+ * Offspring can also be picked from several candidates each, by a
+ * Surrogate that learns from every generation's scores, so more melodies
+ * are tried for the same number scored.
+ */
+public class Island implements Runnable {
+
+    // Times an offspring is bred again while it is a duplicate.
+    private static final int BREED_ATTEMPTS = 8;
+
+    // Number of offspring whose candidates are ranked together.
+    private static final int BATCH_OFFSPRING = 1 << 12;
+
+    private final int id;
+    private final int populationSize;
+    private final Scorer scorer;
+    private final Archipelago archipelago;
+    private final HallOfFame hallOfFame;
+    private final String directory;
+    private final HistoryLog history;
+    private final Checkpoint checkpoint;
+    private final boolean dedupe;
+    private final int sharingRadius;
+    private final int candidates;
+    private final Metrics.Timer timer;
+
+    // Seed of the island's random streams, one per generation so a resumed
+    // run breeds the same melodies.
+    private final long seed;
+
+    // Heap of the best scores, reused every generation.
+    private final TopK topSeeds = new TopK(EvolutionaryMusic.NUMBER_SEEDS);
+
+    // Melodies of the generation being bred and then scored, or null if
+    // neither dedupe nor sharing is on.
+    private final SimilarityIndex index;
+    private final Diversity diversity = new Diversity();
+
+    // Surrogate picking offspring from candidates, the candidates of a
+    // batch and their predictions, and the prediction of every offspring of
+    // the generation being bred, or null if there are no candidates.
+    private Surrogate surrogate;
+    private final PopulationStore.Generation candidatePool;
+    private final double[] candidatePredictions;
+    private final TopK candidateRanking;
+    private final double[] predictions;
+
+    /**
+     * @param id index of the island in its archipelago
+     * @param populationSize number of melodies in every generation
+     * @param scorer scorer used only by this island
+     * @param archipelago islands to migrate between, or null if this is the
+     *                    only island
+     * @param hallOfFame best melodies across every island
+     * @param directory directory for this island's files
+     * @param history log to append every scored generation to, or null
+     * @param checkpoint snapshots of the run to save and maybe resume from,
+     *                   or null
+     * @param dedupe true to breed offspring identical to another melody
+     *               again
+     * @param sharingRadius radius of fitness sharing, up to
+     *                      SimilarityIndex.MAX_RADIUS, or 0 for none
+     * @param candidates number of candidates bred per offspring for a
+     *                   surrogate to pick from, or 0 to breed offspring
+     *                   directly
+     * @param timer times the island's phases, only on its thread
+     * @param random random number stream of this island
+     */
+    public Island(int id, int populationSize, Scorer scorer,
+                  Archipelago archipelago, HallOfFame hallOfFame,
+                  String directory, HistoryLog history,
+                  Checkpoint checkpoint, boolean dedupe, int sharingRadius,
+                  int candidates, Metrics.Timer timer,
+                  SplittableRandom random) {
+        this.id = id;
+        this.populationSize = populationSize;
+        this.scorer = scorer;
+        this.archipelago = archipelago;
+        this.hallOfFame = hallOfFame;
+        this.directory = directory;
+        this.history = history;
+        this.checkpoint = checkpoint;
+        this.dedupe = dedupe;
+        this.sharingRadius = sharingRadius;
+        this.candidates = candidates;
+        this.timer = timer;
+        seed = random.nextLong();
+        if (dedupe || sharingRadius > 0) {
+            index = new SimilarityIndex(populationSize, sharingRadius);
+        } else {
+            index = null;
+        }
+        if (candidates > 0) {
+            int poolSize = candidates * Math.min(BATCH_OFFSPRING,
+                    populationSize - EvolutionaryMusic.NUMBER_SEEDS);
+            candidatePool = new PopulationStore.Generation(poolSize);
+            candidatePredictions = new double[poolSize];
+            candidateRanking = new TopK(poolSize);
+            predictions = new double[populationSize];
+            surrogate = new Surrogate();
+        } else {
+            candidatePool = null;
+            candidatePredictions = null;
+            candidateRanking = null;
+            predictions = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        // Number of the generation in population, starting from 1.
+        int generation;
+        // Indices of the seeds for the next generation.
+        int[] seedIndices;
+        PopulationStore store;
+        PopulationStore.Generation population;
+
+        long start = System.nanoTime();
+        long evaluations = 0;
+        if (checkpoint != null && checkpoint.getGeneration() > 0) {
+            // Go on from a scored generation.
+            generation = checkpoint.getGeneration();
+            timer.setGeneration(generation);
+            store = new PopulationStore(checkpoint.getPopulation(id));
+            population = store.getCurrent();
+            if (surrogate != null) {
+                surrogate = checkpoint.getSurrogate(id);
+            }
+            if (index != null) {
+                index.clear();
+                for (int i = 0; i < populationSize; i++) {
+                    index.add(population.getMeasure(i, 0),
+                            population.getMeasure(i, 1));
+                }
+            }
+            timer.start(Phase.SELECTION);
+            seedIndices = select(population);
+            timer.stop(Phase.SELECTION, populationSize);
+            saveMilestone(population, generation, seedIndices);
+        } else {
+            // Populate our population with random melodies.
+            generation = 1;
+            timer.setGeneration(generation);
+            store = new PopulationStore(populationSize);
+            population = store.getCurrent();
+            timer.start(Phase.RANDOM_GENERATION);
+            RandomMelody randomGenerator = new RandomMelody(
+                    EvolutionaryMusic.NUMBER_MEASURES,
+                    EvolutionaryMusic.BEATS_PER_MEASURE,
+                    RandomStreams.derive(seed, 0));
+            if (index != null) {
+                index.clear();
+            }
+            for (int i = 0; i < populationSize; i++) {
+                int attempts = 0;
+                do {
+                    population.setMelody(i, randomGenerator.nextMeasure(),
+                            randomGenerator.nextMeasure());
+                } while (isDuplicate(population, i, ++attempts));
+                population.setParents(i, PopulationStore.NO_PARENT,
+                        PopulationStore.NO_PARENT);
+                addToIndex(population, i);
+            }
+            timer.stop(Phase.RANDOM_GENERATION, populationSize);
+            seedIndices = evaluate(population, generation);
+            evaluations += populationSize;
+        }
+
+        // Evolve for {NUMBER_GENERATIONS} generations.
+        while (true) {
+            if (checkpoint != null && checkpoint.isCheckpoint(generation)) {
+                timer.start(Phase.CHECKPOINT);
+                checkpoint.save(id, generation, population, surrogate);
+                timer.stop(Phase.CHECKPOINT, populationSize);
+            }
+
+            // If we are on the last generation, we can break at this point.
+            if (generation == EvolutionaryMusic.NUMBER_GENERATIONS) {
+                timer.endGeneration();
+                break;
+            }
+
+            // Trade the best seeds with another island.
+            if (archipelago != null && archipelago.isMigration(generation)) {
+                timer.start(Phase.MIGRATION);
+                migrate(population, generation, seedIndices);
+                timer.stop(Phase.MIGRATION, seedIndices.length);
+            }
+
+            // Recreate the population for the next generation.
+            timer.start(Phase.BREEDING);
+            breed(population, store.getNext(), generation, seedIndices);
+            timer.stop(Phase.BREEDING, populationSize - seedIndices.length);
+            timer.endGeneration();
+            store.swap();
+            population = store.getCurrent();
+            generation++;
+            timer.setGeneration(generation);
+
+            seedIndices = evaluate(population, generation);
+            evaluations += populationSize;
+        }
+
+        System.out.println(getName() + "Evaluations per second: "
+                + EvolutionaryMusic.getRate(evaluations, start));
+    }
+
+    /**
+     * Scores a generation, logs it, and offers its seeds to the hall of
+     * fame.
+     *
+     * @param population the generation
+     * @param generation generation number, starting from 1
+     * @return indices of the seeds, best first
+     */
+    private int[] evaluate(PopulationStore.Generation population,
+                           int generation) {
+        timer.start(Phase.SCORING);
+        scorer.score(population, 0, populationSize);
+        timer.stop(Phase.SCORING, populationSize);
+        if (scorer instanceof CachingScorer) {
+            CachingScorer cache = (CachingScorer) scorer;
+            timer.addCacheLookups(cache.getHits(), cache.getMisses());
+            cache.resetCounters();
+        }
+
+        // Get the indices of the highest scores, unless the scorer selected
+        // them while reading the scores.
+        timer.start(Phase.SELECTION);
+        int[] seedIndices = null;
+        if (scorer instanceof ExternalScorer) {
+            seedIndices = ((ExternalScorer) scorer).getSeedIndices();
+        }
+        if (seedIndices == null) {
+            seedIndices = select(population);
+        }
+        for (int seedIndex : seedIndices) {
+            hallOfFame.offer(population.getMelody(seedIndex),
+                    population.getScore(seedIndex));
+        }
+        timer.stop(Phase.SELECTION, populationSize);
+        timer.start(Phase.DIVERSITY);
+        diversity.measure(population);
+        timer.setDiversity(diversity);
+        timer.stop(Phase.DIVERSITY, populationSize);
+        if (surrogate != null) {
+            // Every generation but the first was picked by the surrogate.
+            timer.start(Phase.SURROGATE);
+            if (generation > 1) {
+                surrogate.measure(population, EvolutionaryMusic.NUMBER_SEEDS,
+                        predictions);
+                timer.setSurrogate(surrogate);
+            }
+            surrogate.train(population);
+            timer.stop(Phase.SURROGATE, populationSize);
+        }
+        if (history != null) {
+            timer.start(Phase.HISTORY);
+            history.append(generation, population, seedIndices);
+            timer.stop(Phase.HISTORY, populationSize);
+        }
+        saveMilestone(population, generation, seedIndices);
+        return seedIndices;
+    }
+
+    /**
+     * @param population the scored generation, held by the index if
+     *                   sharing is on
+     * @return indices of the seeds, best first
+     */
+    private int[] select(PopulationStore.Generation population) {
+        if (sharingRadius > 0) {
+            return EvolutionaryMusic.getSeedIndices(population, topSeeds,
+                    index);
+        }
+        return EvolutionaryMusic.getSeedIndices(population, topSeeds);
+    }
+
+    /**
+     * @param generation generation being made
+     * @param i index of a melody just made, not yet in the index
+     * @param attempts number of times the melody was made
+     * @return true if the melody should be made again, being a copy of
+     * another when dedupe is on
+     */
+    private boolean isDuplicate(PopulationStore.Generation generation, int i,
+                                int attempts) {
+        return dedupe && attempts < BREED_ATTEMPTS
+                && index.contains(generation.getMeasure(i, 0),
+                        generation.getMeasure(i, 1));
+    }
+
+    /**
+     * Adds a melody of the generation being made to the index, if any.
+     */
+    private void addToIndex(PopulationStore.Generation generation, int i) {
+        if (index != null) {
+            index.add(generation.getMeasure(i, 0),
+                    generation.getMeasure(i, 1));
+        }
+    }
+
+    /**
+     * If we have reached a milestone, save some midi files.
+     *
+     * @param population the scored generation
+     * @param generation generation number, starting from 1
+     * @param seedIndices indices of the seeds
+     */
+    private void saveMilestone(PopulationStore.Generation population,
+                               int generation, int[] seedIndices) {
+        if (!EvolutionaryMusic.MILESTONES.contains(generation)) {
+            return;
+        }
+        timer.start(Phase.MILESTONE_EXPORT);
+        final String SAVE_FOLDER =
+                directory + "/0GEN_" + generation + "SAVED";
+        EvolutionaryMusic.createFolder(SAVE_FOLDER);
+
+        for (int index : seedIndices) {
+            final String SAVE_FILE = SAVE_FOLDER + "/RANK_" + index + ".mid";
+            EvolutionaryMusic.saveMidi(population.getMelody(index),
+                    SAVE_FILE);
+        }
+        timer.stop(Phase.MILESTONE_EXPORT, seedIndices.length);
+    }
+
+    /**
+     * Trades the best seeds with another island. Immigrants take the place
+     * of the seeds they replace.
+     *
+     * @param population the scored generation
+     * @param generation generation number, starting from 1
+     * @param seedIndices indices of the seeds, best first
+     */
+    private void migrate(PopulationStore.Generation population,
+                         int generation, int[] seedIndices) {
+        Melody[] seeds = new Melody[seedIndices.length];
+        for (int j = 0; j < seeds.length; j++) {
+            seeds[j] = population.getMelody(seedIndices[j]);
+        }
+        Melody[] newSeeds = archipelago.migrate(id, generation, seeds);
+        for (int j = 0; j < seeds.length; j++) {
+            if (newSeeds[j] != seeds[j]) {
+                population.setMelody(seedIndices[j], newSeeds[j]);
+            }
+        }
+    }
+
+    /**
+     * Breeds the next generation from the seeds.
+     *
+     * @param population the scored generation
+     * @param next receives the next generation
+     * @param generation generation number of population, starting from 1
+     * @param seedIndices indices of the seeds
+     */
+    private void breed(PopulationStore.Generation population,
+                       PopulationStore.Generation next, int generation,
+                       int[] seedIndices) {
+        // Breeder to pick parents from the seeds and breed them.
+        Breeder breeder = new Breeder(EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE,
+                RandomStreams.derive(seed, generation));
+
+        // Copy over the first few from the seeds of last generation.
+        if (index != null) {
+            index.clear();
+        }
+        for (int j = 0; j < seedIndices.length; j++) {
+            int seedIndex = seedIndices[j];
+            next.setMelody(j, population.getMeasure(seedIndex, 0),
+                    population.getMeasure(seedIndex, 1));
+            next.setParents(j, seedIndex, seedIndex);
+            addToIndex(next, j);
+        }
+
+        // Breed the rest of the population.
+        if (surrogate != null) {
+            breedFromCandidates(population, next, breeder, seedIndices);
+            return;
+        }
+        for (int n = seedIndices.length; n < populationSize; n++) {
+            int attempts = 0;
+            do {
+                breeder.breed(population, seedIndices,
+                        EvolutionaryMusic.MUTATION_RATE, next, n);
+            } while (isDuplicate(next, n, ++attempts));
+            addToIndex(next, n);
+        }
+    }
+
+    /**
+     * Breeds the offspring of the next generation in batches, breeding
+     * {candidates} candidates per offspring of a batch and keeping the ones
+     * the surrogate predicts best. With dedupe on, candidates identical to
+     * a melody kept are only kept if too few others are left.
+     *
+     * @param population the scored generation
+     * @param next receives the offspring after the seeds
+     * @param breeder breeder of the generation
+     * @param seedIndices indices of the seeds
+     */
+    private void breedFromCandidates(PopulationStore.Generation population,
+                                     PopulationStore.Generation next,
+                                     Breeder breeder, int[] seedIndices) {
+        int n = seedIndices.length;
+        while (n < populationSize) {
+            int offspring = Math.min(BATCH_OFFSPRING, populationSize - n);
+            int count = offspring * candidates;
+            for (int c = 0; c < count; c++) {
+                breeder.breed(population, seedIndices,
+                        EvolutionaryMusic.MUTATION_RATE, candidatePool, c);
+            }
+
+            timer.start(Phase.SURROGATE);
+            candidateRanking.clear();
+            for (int c = 0; c < count; c++) {
+                candidatePredictions[c] = surrogate.predict(
+                        candidatePool.getMeasure(c, 0),
+                        candidatePool.getMeasure(c, 1));
+                candidateRanking.offer(c, candidatePredictions[c]);
+            }
+            int[] ranked = candidateRanking.getIndices();
+            timer.stop(Phase.SURROGATE, count);
+
+            // Keep the best, leaving out duplicates on the first pass.
+            int end = n + offspring;
+            for (int pass = 0; pass < 2 && n < end; pass++) {
+                for (int r = 0; r < ranked.length && n < end; r++) {
+                    int c = ranked[r];
+                    if (c < 0 || pass == 0 && dedupe && index.contains(
+                            candidatePool.getMeasure(c, 0),
+                            candidatePool.getMeasure(c, 1))) {
+                        continue;
+                    }
+                    next.setMelody(n, candidatePool.getMeasure(c, 0),
+                            candidatePool.getMeasure(c, 1));
+                    next.setParents(n, candidatePool.getParent(c, 0),
+                            candidatePool.getParent(c, 1));
+                    predictions[n] = candidatePredictions[c];
+                    addToIndex(next, n);
+                    ranked[r] = -1;
+                    n++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return prefix for this island's output lines, empty if it is the
+     * only island
+     */
+    private String getName() {
+        return archipelago == null ? "" : "Island " + id + ": ";
+    }
+}
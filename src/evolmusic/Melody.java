@@ -0,0 +1,305 @@
+package evolmusic;
+
+/**
+ * Genome of a two measure melody, packed into one long per measure.
+ *
+ * Each measure long holds the 12-bit chord in its lowest bits, followed by
+ * eight 6-bit note slots (one per eighth note). The low 5 bits of a slot are
+ * the index of the set bit within the note's 25-bit encoding described in
+ * {@link Translator} (0 for a rest, 1-12 for the lower octave and 13-24 for
+ * the higher octave) and the high bit is the tied-over flag. This holds
+ * exactly the information of the 424-bit encoding in 16 bytes.
+ *
+ * Melodies are immutable, and only turned into JFugue strings for playback.
+ */
+public final class Melody {
+
+    public static final int NUMBER_MEASURES = 2;
+    public static final int SLOTS_PER_MEASURE = 8; // eighth notes in 4/4
+    public static final int CHORD_BITS = 12;
+    public static final int MEASURE_BITS = SLOTS_PER_MEASURE
+            * Translator.NOTE_BITS;
+    public static final int DIMENSION = NUMBER_MEASURES
+            * (CHORD_BITS + MEASURE_BITS); // 424
+
+    public static final int REST = 0; // pitch of a rest
+    public static final long CHORD_MASK = (1L << CHORD_BITS) - 1;
+    public static final int MAX_SET_BITS = NUMBER_MEASURES
+            * (CHORD_BITS + 2 * SLOTS_PER_MEASURE);
+
+    static final int SLOT_BITS = 6;
+    static final int PITCH_MASK = 0x1F;
+    static final int TIED = 0x20;
+
+    private final long first;
+    private final long second;
+
+    public Melody(long first, long second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    /**
+     * @param measure 0 or 1
+     * @return packed chord and note slots of the measure
+     */
+    public long getMeasure(int measure) {
+        return measure == 0 ? first : second;
+    }
+
+    /**
+     * @param measure 0 or 1
+     * @return 12-bit chord mask, bit i set if Translator.NOTES[i] is played
+     */
+    public int getChord(int measure) {
+        return (int) (getMeasure(measure) & CHORD_MASK);
+    }
+
+    /**
+     * @param measure 0 or 1
+     * @param slot eighth note within the measure, 0-7
+     * @return 0 for a rest, 1-24 for a pitch in the 2-octave scale
+     */
+    public int getPitch(int measure, int slot) {
+        return slot(getMeasure(measure), slot) & PITCH_MASK;
+    }
+
+    /**
+     * @param measure 0 or 1
+     * @param slot eighth note within the measure, 0-7
+     * @return true if the slot continues the previous note
+     */
+    public boolean isTied(int measure, int slot) {
+        return (slot(getMeasure(measure), slot) & TIED) != 0;
+    }
+
+    /**
+     * Reads a single bit of the 424-bit encoding described in Translator.
+     *
+     * @param index bit index, 0-423
+     * @return true if the bit is set
+     */
+    public boolean getBit(int index) {
+        if (index < NUMBER_MEASURES * CHORD_BITS) {
+            return (getChord(index / CHORD_BITS)
+                    & (1 << (index % CHORD_BITS))) != 0;
+        }
+        index -= NUMBER_MEASURES * CHORD_BITS;
+        int measure = index / MEASURE_BITS;
+        int slot = (index % MEASURE_BITS) / Translator.NOTE_BITS;
+        int bit = index % Translator.NOTE_BITS;
+        if (bit == 0) {
+            return isTied(measure, slot);
+        }
+        return getPitch(measure, slot) == bit;
+    }
+
+    /**
+     * Lists the set bits of the 424-bit encoding in increasing order.
+     *
+     * @param indices buffer of at least MAX_SET_BITS entries
+     * @return number of indices written
+     */
+    public int getSetBits(int[] indices) {
+        return getSetBits(first, second, indices);
+    }
+
+    /**
+     * Lists the set bits of a packed melody's 424-bit encoding in
+     * increasing order, without a Melody object.
+     *
+     * @param first packed first measure
+     * @param second packed second measure
+     * @param indices buffer of at least MAX_SET_BITS entries
+     * @return number of indices written
+     */
+    public static int getSetBits(long first, long second, int[] indices) {
+        int count = 0;
+        for (int i = 0; i < CHORD_BITS; i++) {
+            if ((first & (1L << i)) != 0) {
+                indices[count++] = i;
+            }
+        }
+        for (int i = 0; i < CHORD_BITS; i++) {
+            if ((second & (1L << i)) != 0) {
+                indices[count++] = CHORD_BITS + i;
+            }
+        }
+        int offset = NUMBER_MEASURES * CHORD_BITS;
+        for (int measure = 0; measure < NUMBER_MEASURES; measure++) {
+            long packed = measure == 0 ? first : second;
+            for (int i = 0; i < SLOTS_PER_MEASURE; i++) {
+                int code = slot(packed, i);
+                if ((code & TIED) != 0) {
+                    indices[count++] = offset;
+                }
+                if ((code & PITCH_MASK) != REST) {
+                    indices[count++] = offset + (code & PITCH_MASK);
+                }
+                offset += Translator.NOTE_BITS;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param measure packed measure
+     * @param slot eighth note within the measure, 0-7
+     * @return 6-bit slot code with tie flag and pitch
+     */
+    static int slot(long measure, int slot) {
+        return (int) (measure >>> (CHORD_BITS + slot * SLOT_BITS))
+                & (TIED | PITCH_MASK);
+    }
+
+    /**
+     * @param pitch 0 for a rest, 1-24 for a pitch
+     * @param tied true if the slot continues the previous note
+     * @param slot eighth note within the measure, 0-7
+     * @return measure bits holding the given slot
+     */
+    static long slotBits(int pitch, boolean tied, int slot) {
+        long code = pitch | (tied ? TIED : 0);
+        return code << (CHORD_BITS + slot * SLOT_BITS);
+    }
+
+    /**
+     * Parses a JFugue melody string - e.x.
+     * C5w+E5w+G5w+A5iiii_D5ii_G6ii Riiii_C#6iiii
+     *
+     * @param song JFugue string of two measures separated by a space
+     * @return packed melody
+     * @pre chords use octave "5" and whole notes, melody notes use one of
+     * Translator.OCTAVES and eighth note durations, each measure is 4/4
+     */
+    public static Melody valueOf(String song) {
+        long[] measures = new long[NUMBER_MEASURES];
+        int start = 0;
+        for (int i = 0; i < NUMBER_MEASURES; i++) {
+            int end = song.indexOf(Translator.SPACE, start);
+            if (end < 0) {
+                end = song.length();
+            }
+            measures[i] = parseMeasure(song, start, end);
+            start = end + 1;
+        }
+        return new Melody(measures[0], measures[1]);
+    }
+
+    /**
+     * Parses one measure - e.x. C5w+E5w+G5w+A5iiii_D5ii_G6ii
+     *
+     * @param song JFugue string containing the measure
+     * @param start index of the first character of the measure
+     * @param end index one past the last character of the measure
+     * @return packed measure
+     */
+    private static long parseMeasure(String song, int start, int end) {
+        long measure = 0;
+
+        // Last "+" indicates end of chord string
+        int melodyStart = song.lastIndexOf(Translator.PLUS, end - 1) + 1;
+        if (melodyStart <= start) {
+            melodyStart = start;
+        }
+        int i = start;
+        while (i < melodyStart) {
+            int pitch = Translator.NOTES.indexOf(pitchName(song, i));
+            measure |= 1L << pitch;
+            i = song.indexOf(Translator.PLUS, i) + 1;
+        }
+
+        int slot = 0;
+        while (i < end) {
+            int pitch = REST;
+            if (song.charAt(i) == Translator.REST.charAt(0)) {
+                i++;
+            } else {
+                String name = pitchName(song, i);
+                i += name.length();
+                pitch = Translator.NOTES.indexOf(name) + 1;
+                if (song.charAt(i) == Translator.OCTAVES[1].charAt(0)) {
+                    pitch += 12;
+                }
+                i++;
+            }
+
+            // Each "i" is one eighth note, ties carry the pitch over.
+            boolean tied = false;
+            while (i < end && song.charAt(i) == Translator.EIGHTH_NOTE
+                    .charAt(0)) {
+                if (slot >= SLOTS_PER_MEASURE) {
+                    throw new IllegalArgumentException(
+                            "Measure is longer than 4/4: " + song);
+                }
+                measure |= slotBits(pitch, tied, slot++);
+                tied = true;
+                i++;
+            }
+            // Skip the "_" separating notes
+            i++;
+        }
+        if (slot != SLOTS_PER_MEASURE) {
+            throw new IllegalArgumentException("Measure is shorter than 4/4: "
+                    + song);
+        }
+        return measure;
+    }
+
+    /**
+     * @param song JFugue string
+     * @param index index of the first letter of a pitch
+     * @return pitch name without octave - e.x. C or C#
+     */
+    private static String pitchName(String song, int index) {
+        if (index + 1 < song.length() && song.charAt(index + 1) == '#') {
+            return song.substring(index, index + 2);
+        }
+        return song.substring(index, index + 1);
+    }
+
+    /**
+     * Canonical 64-bit fingerprint of the melody's encoding. Equal melodies
+     * always have equal fingerprints, on every run.
+     *
+     * @return well-mixed hash of both measures
+     */
+    public long fingerprint() {
+        return fingerprint(first, second);
+    }
+
+    /**
+     * @param first packed first measure
+     * @param second packed second measure
+     * @return fingerprint() of the melody with these measures
+     */
+    public static long fingerprint(long first, long second) {
+        return mix(first ^ mix(second + 0x9E3779B97F4A7C15L));
+    }
+
+    /**
+     * Murmur3's 64-bit finalizer.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Melody)) {
+            return false;
+        }
+        Melody melody = (Melody) other;
+        return first == melody.first && second == melody.second;
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = first * 31 + second;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
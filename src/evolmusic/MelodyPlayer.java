@@ -53,6 +53,17 @@ public class MelodyPlayer {
 		return "";
 	}
 
+	/**
+	 * Saves packed melody to midi file, without going through JFugue.
+	 *
+	 * @param melody packed melody
+	 * @param filename midi file to save to (.mid extension)
+	 * @return true if save was successful
+	 */
+	public boolean save(Melody melody, String filename) {
+		return MidiWriter.write(melody, filename);
+	}
+
 	/**
 	 * Saves melody to midi file.
 	 *
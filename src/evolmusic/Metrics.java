@@ -0,0 +1,615 @@
+package evolmusic;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+import jdk.jfr.EventType;
+
+/**
+ * Time and allocation of every Phase of a run, across every island.
+ *
+ * Each island times its phases with its own Timer, which also emits a
+ * PhaseEvent to the flight recorder while a recording is running.
+ * Latencies are kept in a log-linear histogram per phase, with buckets at
+ * most 1/8 apart, for percentiles: one over the whole run, and one per
+ * island for the generation being timed.
+ * Allocation is what the island's thread allocated during the phase, so
+ * scorer worker threads aren't counted.
+ *
+ * The Diversity of every generation is kept too, and how well the
+ * Surrogate predicted it if there is one. With a directory given, every
+ * finished generation appends a row per phase to metrics.csv, with the
+ * percentiles and maximum of that generation's occurrences, its
+ * diversity to diversity.csv and the surrogate's accuracy to
+ * surrogate.csv, and replaces metrics.prom with the totals so far in the
+ * Prometheus text format, e.x. for node_exporter's textfile collector.
+ *
+ * Thread-safe, islands share one Metrics.
+ */
+public class Metrics {
+
+    // Log-linear buckets: values below SUB_BUCKETS exactly, then
+    // SUB_BUCKETS buckets per power of two.
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS =
+            (Long.SIZE - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    private static final int PHASES = Phase.values().length;
+
+    // Checked before making a PhaseEvent, so a phase allocates no event
+    // unless a recording is running.
+    private static final EventType PHASE_EVENT =
+            EventType.getEventType(PhaseEvent.class);
+
+    private final long[][] histograms = new long[PHASES][BUCKETS];
+    private final long[] counts = new long[PHASES];
+    private final long[] nanos = new long[PHASES];
+    private final long[] maxNanos = new long[PHASES];
+    private final long[] allocated = new long[PHASES];
+    private final long[] melodies = new long[PHASES];
+    private long cacheHits;
+    private long cacheMisses;
+
+    // Last generation finished by each island, and its diversity.
+    private final int[] generations;
+    private final int[] unique;
+    private final double[] meanDistances;
+
+    // Sums over the generations the surrogate of each island predicted.
+    private final int[] predicted;
+    private final double[] hitRates;
+    private final double[] rankCorrelations;
+
+    private final PrintWriter csv;
+    private final PrintWriter diversityCsv;
+    private final PrintWriter surrogateCsv;
+    private final String prometheusFile;
+
+    /**
+     * @param numberIslands number of islands timed
+     * @param directory directory to write the metrics files to, or null
+     */
+    public Metrics(int numberIslands, String directory) {
+        generations = new int[numberIslands];
+        unique = new int[numberIslands];
+        meanDistances = new double[numberIslands];
+        predicted = new int[numberIslands];
+        hitRates = new double[numberIslands];
+        rankCorrelations = new double[numberIslands];
+        if (directory == null) {
+            prometheusFile = null;
+            csv = null;
+            diversityCsv = null;
+            surrogateCsv = null;
+            return;
+        }
+        prometheusFile = directory + "/metrics.prom";
+        csv = open(directory + "/metrics.csv", "generation,island,phase,"
+                + "count,total_us,allocated_bytes,melodies,p50_us,p90_us,"
+                + "p99_us,max_us");
+        diversityCsv = open(directory + "/diversity.csv",
+                "generation,island,unique,mean_distance");
+        surrogateCsv = open(directory + "/surrogate.csv",
+                "generation,island,hit_rate,rank_correlation");
+    }
+
+    /**
+     * @param filename CSV file to append to
+     * @param header header line, written if the file is new
+     * @return writer appending to the file
+     */
+    private static PrintWriter open(String filename, String header) {
+        boolean created = !new File(filename).exists();
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new FileWriter(filename, true));
+        } catch (IOException e) {
+            System.out.println("Error opening metrics file " + filename
+                    + ". Exiting.");
+            System.exit(1);
+        }
+        if (created) {
+            writer.println(header);
+        }
+        return writer;
+    }
+
+    /**
+     * @param island index of the island that will use the timer
+     * @return a timer for one island's thread
+     */
+    public Timer newTimer(int island) {
+        return new Timer(island);
+    }
+
+    /**
+     * Counts the cache lookups of a generation.
+     *
+     * @param hits scores found in the cache
+     * @param misses scores computed
+     */
+    public synchronized void addCacheLookups(long hits, long misses) {
+        cacheHits += hits;
+        cacheMisses += misses;
+    }
+
+    /**
+     * @param phase the phase
+     * @param quantile e.x. 0.99
+     * @return latency in nanoseconds that the quantile of the phase's
+     * occurrences took at most, within 1/8, or 0 if it never ran
+     */
+    public synchronized long getPercentile(Phase phase, double quantile) {
+        int p = phase.ordinal();
+        return getPercentile(histograms[p], counts[p], maxNanos[p],
+                quantile);
+    }
+
+    /**
+     * @param histogram latencies of a phase, counted per bucket
+     * @param count number of latencies in the histogram
+     * @param max largest latency in the histogram
+     * @param quantile e.x. 0.99
+     * @return latency in nanoseconds that the quantile of the latencies
+     * took at most, within 1/8, or 0 if there are none
+     */
+    private static long getPercentile(long[] histogram, long count, long max,
+                                      double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return Math.min(getUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Prints the totals of every phase that ran.
+     */
+    public synchronized void printSummary() {
+        System.out.println(String.format(Locale.ROOT,
+                "%-18s %8s %12s %10s %10s %12s", "Phase", "Count",
+                "Total ms", "p50 us", "p99 us", "Allocated"));
+        for (Phase phase : Phase.values()) {
+            int p = phase.ordinal();
+            if (counts[p] == 0) {
+                continue;
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    "%-18s %8d %12.1f %10.1f %10.1f %10.1fMB",
+                    phase.getLabel(), counts[p], nanos[p] / 1e6,
+                    getPercentile(phase, 0.5) / 1e3,
+                    getPercentile(phase, 0.99) / 1e3,
+                    allocated[p] / 1e6));
+        }
+        System.out.println("Cache hits: " + cacheHits + ", misses: "
+                + cacheMisses);
+        for (int i = 0; i < generations.length; i++) {
+            if (unique[i] > 0) {
+                System.out.println(String.format(Locale.ROOT,
+                        "Island %d: %d different melodies, mean distance "
+                                + "%.1f bits", i + 1, unique[i],
+                        meanDistances[i]));
+            }
+            if (predicted[i] > 0) {
+                System.out.println(String.format(Locale.ROOT,
+                        "Island %d: surrogate hit rate %.3f, rank "
+                                + "correlation %.3f", i + 1,
+                        hitRates[i] / predicted[i],
+                        rankCorrelations[i] / predicted[i]));
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining rows and closes the CSV files.
+     */
+    public synchronized void close() {
+        if (csv != null) {
+            csv.close();
+        }
+        if (diversityCsv != null) {
+            diversityCsv.close();
+        }
+        if (surrogateCsv != null) {
+            surrogateCsv.close();
+        }
+    }
+
+    /**
+     * Adds one occurrence of a phase to the totals.
+     */
+    private synchronized void record(int phase, long duration,
+                                     long bytes, int count) {
+        histograms[phase][getBucket(duration)]++;
+        counts[phase]++;
+        nanos[phase] += duration;
+        maxNanos[phase] = Math.max(maxNanos[phase], duration);
+        allocated[phase] += bytes;
+        melodies[phase] += count;
+    }
+
+    /**
+     * Writes an island's generation to the CSV files and the totals to the
+     * Prometheus file.
+     */
+    private synchronized void endGeneration(int island, int generation,
+                                            long[] generationCounts,
+                                            long[] generationNanos,
+                                            long[] generationAllocated,
+                                            long[] generationMelodies,
+                                            long[][] generationHistograms,
+                                            long[] generationMaxNanos,
+                                            Diversity diversity,
+                                            Surrogate surrogate) {
+        generations[island] = generation;
+        if (diversity != null) {
+            unique[island] = diversity.getUnique();
+            meanDistances[island] = diversity.getMeanDistance();
+            if (diversityCsv != null) {
+                diversityCsv.println(String.format(Locale.ROOT,
+                        "%d,%d,%d,%.3f", generation, island + 1,
+                        unique[island], meanDistances[island]));
+                diversityCsv.flush();
+            }
+        }
+        if (surrogate != null) {
+            predicted[island]++;
+            hitRates[island] += surrogate.getHitRate();
+            rankCorrelations[island] += surrogate.getRankCorrelation();
+            if (surrogateCsv != null) {
+                surrogateCsv.println(String.format(Locale.ROOT,
+                        "%d,%d,%.4f,%.4f", generation, island + 1,
+                        surrogate.getHitRate(),
+                        surrogate.getRankCorrelation()));
+                surrogateCsv.flush();
+            }
+        }
+        if (csv != null) {
+            for (Phase phase : Phase.values()) {
+                int p = phase.ordinal();
+                if (generationCounts[p] == 0) {
+                    continue;
+                }
+                csv.println(String.format(Locale.ROOT,
+                        "%d,%d,%s,%d,%.1f,%d,%d,%.1f,%.1f,%.1f,%.1f",
+                        generation, island + 1, phase.getLabel(),
+                        generationCounts[p], generationNanos[p] / 1e3,
+                        generationAllocated[p], generationMelodies[p],
+                        getPercentile(generationHistograms[p],
+                                generationCounts[p], generationMaxNanos[p],
+                                0.5) / 1e3,
+                        getPercentile(generationHistograms[p],
+                                generationCounts[p], generationMaxNanos[p],
+                                0.9) / 1e3,
+                        getPercentile(generationHistograms[p],
+                                generationCounts[p], generationMaxNanos[p],
+                                0.99) / 1e3,
+                        generationMaxNanos[p] / 1e3));
+            }
+            csv.flush();
+        }
+        if (prometheusFile != null) {
+            writePrometheus();
+        }
+    }
+
+    /**
+     * Replaces the Prometheus file with the totals, through a temporary
+     * file so a scrape never sees half of it.
+     */
+    private void writePrometheus() {
+        File temporary = new File(prometheusFile + ".tmp");
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(temporary));
+            out.println("# HELP evolmusic_phase_seconds Time spent in each "
+                    + "phase of a generation.");
+            out.println("# TYPE evolmusic_phase_seconds summary");
+            for (Phase phase : Phase.values()) {
+                int p = phase.ordinal();
+                if (counts[p] == 0) {
+                    continue;
+                }
+                String label = "phase=\"" + phase.getLabel() + "\"";
+                for (double quantile : QUANTILES) {
+                    out.println(String.format(Locale.ROOT,
+                            "evolmusic_phase_seconds{%s,quantile=\"%s\"} %.9f",
+                            label, quantile,
+                            getPercentile(phase, quantile) / 1e9));
+                }
+                out.println(String.format(Locale.ROOT,
+                        "evolmusic_phase_seconds_sum{%s} %.9f", label,
+                        nanos[p] / 1e9));
+                out.println("evolmusic_phase_seconds_count{" + label + "} "
+                        + counts[p]);
+            }
+
+            out.println("# HELP evolmusic_phase_allocated_bytes_total Bytes "
+                    + "allocated by island threads in each phase.");
+            out.println("# TYPE evolmusic_phase_allocated_bytes_total "
+                    + "counter");
+            for (Phase phase : Phase.values()) {
+                if (counts[phase.ordinal()] > 0) {
+                    out.println("evolmusic_phase_allocated_bytes_total{phase=\""
+                            + phase.getLabel() + "\"} "
+                            + allocated[phase.ordinal()]);
+                }
+            }
+
+            out.println("# HELP evolmusic_phase_melodies_total Melodies "
+                    + "each phase worked on.");
+            out.println("# TYPE evolmusic_phase_melodies_total counter");
+            for (Phase phase : Phase.values()) {
+                if (counts[phase.ordinal()] > 0) {
+                    out.println("evolmusic_phase_melodies_total{phase=\""
+                            + phase.getLabel() + "\"} "
+                            + melodies[phase.ordinal()]);
+                }
+            }
+
+            out.println("# HELP evolmusic_cache_lookups_total Fitness cache "
+                    + "lookups.");
+            out.println("# TYPE evolmusic_cache_lookups_total counter");
+            out.println("evolmusic_cache_lookups_total{result=\"hit\"} "
+                    + cacheHits);
+            out.println("evolmusic_cache_lookups_total{result=\"miss\"} "
+                    + cacheMisses);
+
+            out.println("# HELP evolmusic_generation Last generation "
+                    + "finished by each island.");
+            out.println("# TYPE evolmusic_generation gauge");
+            for (int i = 0; i < generations.length; i++) {
+                out.println("evolmusic_generation{island=\"" + (i + 1)
+                        + "\"} " + generations[i]);
+            }
+
+            out.println("# HELP evolmusic_unique_melodies Different "
+                    + "melodies in each island's last generation.");
+            out.println("# TYPE evolmusic_unique_melodies gauge");
+            for (int i = 0; i < generations.length; i++) {
+                out.println("evolmusic_unique_melodies{island=\"" + (i + 1)
+                        + "\"} " + unique[i]);
+            }
+            out.println("# HELP evolmusic_mean_distance_bits Mean Hamming "
+                    + "distance between melodies of each island's last "
+                    + "generation.");
+            out.println("# TYPE evolmusic_mean_distance_bits gauge");
+            for (int i = 0; i < generations.length; i++) {
+                out.println(String.format(Locale.ROOT,
+                        "evolmusic_mean_distance_bits{island=\"%d\"} %.3f",
+                        i + 1, meanDistances[i]));
+            }
+
+            out.println("# HELP evolmusic_surrogate_hit_rate Mean share of "
+                    + "the offspring a surrogate ranked as seeds that were.");
+            out.println("# TYPE evolmusic_surrogate_hit_rate gauge");
+            for (int i = 0; i < generations.length; i++) {
+                if (predicted[i] > 0) {
+                    out.println(String.format(Locale.ROOT,
+                            "evolmusic_surrogate_hit_rate{island=\"%d\"} "
+                                    + "%.4f", i + 1,
+                            hitRates[i] / predicted[i]));
+                }
+            }
+            out.println("# HELP evolmusic_surrogate_rank_correlation Mean "
+                    + "rank correlation of surrogate predictions and "
+                    + "scores.");
+            out.println("# TYPE evolmusic_surrogate_rank_correlation gauge");
+            for (int i = 0; i < generations.length; i++) {
+                if (predicted[i] > 0) {
+                    out.println(String.format(Locale.ROOT,
+                            "evolmusic_surrogate_rank_correlation"
+                                    + "{island=\"%d\"} %.4f", i + 1,
+                            rankCorrelations[i] / predicted[i]));
+                }
+            }
+            out.close();
+            out = null;
+
+            Files.move(temporary.toPath(), new File(prometheusFile).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Error writing metrics file "
+                    + prometheusFile + ". Exiting.");
+            System.exit(1);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * @param value a latency in nanoseconds
+     * @return its histogram bucket
+     */
+    static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BITS))
+                & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * @param bucket a histogram bucket
+     * @return the largest latency in the bucket
+     */
+    static long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS)
+                << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Times the phases of one island, on the island's thread only. Phases
+     * can be nested, but a phase can't be started again before it stops.
+     */
+    public class Timer {
+
+        private final int island;
+        private final com.sun.management.ThreadMXBean threads;
+        private int generation;
+
+        private final long[] startNanos = new long[PHASES];
+        private final long[] startAllocated = new long[PHASES];
+        private final PhaseEvent[] events = new PhaseEvent[PHASES];
+
+        // Totals of the generation being timed.
+        private final long[] generationCounts = new long[PHASES];
+        private final long[] generationNanos = new long[PHASES];
+        private final long[] generationAllocated = new long[PHASES];
+        private final long[] generationMelodies = new long[PHASES];
+        private final long[][] generationHistograms =
+                new long[PHASES][BUCKETS];
+        private final long[] generationMaxNanos = new long[PHASES];
+        private Diversity diversity;
+        private Surrogate surrogate;
+
+        private Timer(int island) {
+            this.island = island;
+            java.lang.management.ThreadMXBean bean =
+                    ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) bean)
+                    .isThreadAllocatedMemorySupported()) {
+                threads = (com.sun.management.ThreadMXBean) bean;
+            } else {
+                threads = null;
+            }
+        }
+
+        /**
+         * @param generation generation the next phases belong to
+         */
+        public void setGeneration(int generation) {
+            this.generation = generation;
+        }
+
+        /**
+         * @param phase phase starting on this thread
+         */
+        public void start(Phase phase) {
+            int p = phase.ordinal();
+            if (PHASE_EVENT.isEnabled()) {
+                events[p] = new PhaseEvent();
+                events[p].begin();
+            }
+            startAllocated[p] = getAllocated();
+            startNanos[p] = System.nanoTime();
+        }
+
+        /**
+         * @param phase phase started on this thread
+         * @param count number of melodies the phase worked on
+         */
+        public void stop(Phase phase, int count) {
+            int p = phase.ordinal();
+            long duration = System.nanoTime() - startNanos[p];
+            long bytes = getAllocated() - startAllocated[p];
+
+            // No event if no recording was running when the phase started.
+            PhaseEvent event = events[p];
+            events[p] = null;
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.phase = phase.getLabel();
+                    event.island = island + 1;
+                    event.generation = generation;
+                    event.melodies = count;
+                    event.allocated = bytes;
+                    event.commit();
+                }
+            }
+
+            generationCounts[p]++;
+            generationNanos[p] += duration;
+            generationAllocated[p] += bytes;
+            generationMelodies[p] += count;
+            generationHistograms[p][getBucket(duration)]++;
+            generationMaxNanos[p] = Math.max(generationMaxNanos[p], duration);
+            record(p, duration, bytes, count);
+        }
+
+        /**
+         * Counts the cache lookups of a generation.
+         *
+         * @param hits scores found in the cache
+         * @param misses scores computed
+         */
+        public void addCacheLookups(long hits, long misses) {
+            Metrics.this.addCacheLookups(hits, misses);
+        }
+
+        /**
+         * @param diversity diversity of the generation, reported with it
+         */
+        public void setDiversity(Diversity diversity) {
+            this.diversity = diversity;
+        }
+
+        /**
+         * @param surrogate surrogate that predicted the generation,
+         *                  reported with it
+         */
+        public void setSurrogate(Surrogate surrogate) {
+            this.surrogate = surrogate;
+        }
+
+        /**
+         * Reports the generation's phases, and starts over for the next.
+         */
+        public void endGeneration() {
+            Metrics.this.endGeneration(island, generation, generationCounts,
+                    generationNanos, generationAllocated,
+                    generationMelodies, generationHistograms,
+                    generationMaxNanos, diversity, surrogate);
+            diversity = null;
+            surrogate = null;
+            for (int p = 0; p < PHASES; p++) {
+                if (generationCounts[p] > 0) {
+                    Arrays.fill(generationHistograms[p], 0);
+                }
+                generationMaxNanos[p] = 0;
+                generationCounts[p] = 0;
+                generationNanos[p] = 0;
+                generationAllocated[p] = 0;
+                generationMelodies[p] = 0;
+            }
+        }
+
+        /**
+         * @return bytes allocated by the timed thread so far, or 0 if the
+         * JVM can't tell
+         */
+        private long getAllocated() {
+            return threads == null ? 0
+                    : threads.getThreadAllocatedBytes(
+                            Thread.currentThread().getId());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package evolmusic;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves melodies to midi files on a background thread, so evolution goes
+ * on while they are written.
+ *
+ * Saves wait in a bounded queue. When it is full the caller saves the
+ * melody itself, which slows evolution down to the speed of the exports
+ * instead of queueing without limit. close() waits for every queued save.
+ */
+public class MidiExporter {
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param queueSize number of saves that can wait for the export thread
+     */
+    public MidiExporter(int queueSize) {
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "midi-export");
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Queues a melody to be saved to a midi file.
+     *
+     * @param melody The melody to save.
+     * @param filename The midi file to save to (.mid extension).
+     */
+    public void save(final Melody melody, final String filename) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                MidiWriter.write(melody, filename);
+            }
+        });
+    }
+
+    /**
+     * Queues melodies to be saved to one midi file, a track per melody.
+     *
+     * @param melodies The melodies to save, copied before returning.
+     * @param filename The midi file to save to (.mid extension).
+     */
+    public void save(Melody[] melodies, final String filename) {
+        final Melody[] tracks = melodies.clone();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                MidiWriter.write(tracks, 0, tracks.length, filename);
+            }
+        });
+    }
+
+    /**
+     * Saves every queued melody, then stops the export thread.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            System.out.println("Midi export was interrupted. Exiting...");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
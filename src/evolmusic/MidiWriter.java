@@ -0,0 +1,186 @@
+package evolmusic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Writes melodies straight from their chord and note slots to MIDI, without
+ * building a JFugue string and having JFugue parse it.
+ *
+ * The sequence plays like the JFugue string from Notationizer: one tick per
+ * eighth note at 120 beats per minute, chords as whole notes in octave 5
+ * and the melody on top, with JFugue's note numbers (C5 is 60) and default
+ * velocity. A tied slot lengthens the note before it. A tie on the first
+ * slot of a measure continues the last note of the previous measure if it
+ * has the same pitch.
+ *
+ * Each melody is one track, so several melodies can be saved to one file.
+ * All methods are thread-safe.
+ */
+public class MidiWriter {
+
+    private static final int TICKS_PER_QUARTER = 2; // one tick per eighth
+    private static final int TICKS_PER_MEASURE = Melody.SLOTS_PER_MEASURE;
+    private static final int MICROSECONDS_PER_QUARTER = 500000; // 120 bpm
+    private static final int TEMPO = 0x51; // meta message type
+    private static final int TRACK_NAME = 0x03; // meta message type
+
+    private static final int CHANNEL = 0;
+    private static final int VELOCITY = 64;
+    private static final int FIRST_NOTE = 60; // C5
+
+    private MidiWriter() {
+    }
+
+    /**
+     * Saves a melody to a single track midi file.
+     *
+     * @param melody packed melody
+     * @param filename midi file to save to (.mid extension)
+     * @return true if save was successful
+     */
+    public static boolean write(Melody melody, String filename) {
+        return write(new Melody[]{melody}, 0, 1, filename);
+    }
+
+    /**
+     * Saves melodies to a midi file with one track per melody.
+     *
+     * @param melodies packed melodies
+     * @param from index of the first melody to save
+     * @param to index after the last melody to save
+     * @param filename midi file to save to (.mid extension)
+     * @return true if save was successful
+     */
+    public static boolean write(Melody[] melodies, int from, int to,
+                                String filename) {
+        try {
+            Sequence sequence = toSequence(melodies, from, to);
+            MidiSystem.write(sequence, 1, new File(filename));
+            return true;
+        } catch (InvalidMidiDataException e) {
+            System.out.println("Error converting melody to midi.");
+            return false;
+        } catch (IOException e) {
+            System.out.println("Error writing melody to file.");
+            return false;
+        }
+    }
+
+    /**
+     * Builds a sequence with one track per melody, the first track also
+     * holding the tempo.
+     *
+     * @param melodies packed melodies
+     * @param from index of the first melody
+     * @param to index after the last melody
+     * @return the sequence
+     * @throws InvalidMidiDataException never for melodies from Melody
+     */
+    public static Sequence toSequence(Melody[] melodies, int from, int to)
+            throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, TICKS_PER_QUARTER);
+        for (int i = from; i < to; i++) {
+            Track track = sequence.createTrack();
+            if (i == from) {
+                byte[] tempo = {
+                        (byte) (MICROSECONDS_PER_QUARTER >>> 16),
+                        (byte) (MICROSECONDS_PER_QUARTER >>> 8),
+                        (byte) MICROSECONDS_PER_QUARTER
+                };
+                track.add(new MidiEvent(
+                        new MetaMessage(TEMPO, tempo, tempo.length), 0));
+            }
+            if (to - from > 1) {
+                String trackName = "Melody " + (i - from + 1);
+                byte[] name = trackName.getBytes(StandardCharsets.US_ASCII);
+                track.add(new MidiEvent(
+                        new MetaMessage(TRACK_NAME, name, name.length), 0));
+            }
+            addMelody(track, melodies[i]);
+        }
+        return sequence;
+    }
+
+    /**
+     * Adds the chords and notes of a melody to a track.
+     *
+     * @param track track to add to
+     * @param melody packed melody
+     */
+    private static void addMelody(Track track, Melody melody)
+            throws InvalidMidiDataException {
+        // Pitch and first tick of the note being held, which ties lengthen.
+        int pitch = Melody.REST;
+        int start = 0;
+
+        for (int m = 0; m < Melody.NUMBER_MEASURES; m++) {
+            int measureStart = m * TICKS_PER_MEASURE;
+            for (int slot = 0; slot < Melody.SLOTS_PER_MEASURE; slot++) {
+                int slotPitch = melody.getPitch(m, slot);
+                boolean tied = melody.isTied(m, slot)
+                        && slotPitch != Melody.REST
+                        && (slot > 0 || slotPitch == pitch);
+                if (tied) {
+                    continue;
+                }
+                int tick = measureStart + slot;
+                addPitch(track, pitch, start, tick);
+                pitch = slotPitch;
+                start = tick;
+            }
+
+            // Events at the same tick play in the order they were added, so
+            // the chord comes after the note ending on its first tick.
+            int chord = melody.getChord(m);
+            for (int i = 0; i < Melody.CHORD_BITS; i++) {
+                if ((chord & (1 << i)) != 0) {
+                    addNote(track, FIRST_NOTE + i, measureStart,
+                            measureStart + TICKS_PER_MEASURE);
+                }
+            }
+        }
+        addPitch(track, pitch, start,
+                Melody.NUMBER_MEASURES * TICKS_PER_MEASURE);
+    }
+
+    /**
+     * Adds a note of the melody, unless it is a rest.
+     *
+     * @param track track to add to
+     * @param pitch 0 for a rest, 1-24 for a pitch in the 2-octave scale
+     * @param start tick the note starts at
+     * @param end tick the note ends at
+     */
+    private static void addPitch(Track track, int pitch, int start, int end)
+            throws InvalidMidiDataException {
+        if (pitch != Melody.REST && start < end) {
+            addNote(track, FIRST_NOTE + pitch - 1, start, end);
+        }
+    }
+
+    /**
+     * Adds the note on and note off events of one note.
+     *
+     * @param track track to add to
+     * @param note midi note number
+     * @param start tick the note starts at
+     * @param end tick the note ends at
+     */
+    private static void addNote(Track track, int note, int start, int end)
+            throws InvalidMidiDataException {
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON,
+                CHANNEL, note, VELOCITY), start));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF,
+                CHANNEL, note, VELOCITY), end));
+    }
+}
@@ -0,0 +1,257 @@
+package evolmusic;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.StringTokenizer;
+
+/**
+ * In-process version of vendor/neural-net/test. Loads a weights file once
+ * and scores melodies in memory, without writing melodies.in or running
+ * the external binary.
+ *
+ * The neural net's sources aren't part of this tree, so the weights file
+ * format and the activations below are an assumption about the binary, not
+ * checked against it. That is why the binary stays the default scorer and
+ * this one is only used with --in-process.
+ *
+ * Assumed weights file (whitespace separated):
+ * <inputs> <hidden> <outputs>
+ * one line per hidden unit: bias, then one weight per input
+ * one line per output unit: bias, then one weight per hidden unit
+ *
+ * Both layers are assumed to use the logistic sigmoid, and the score of a
+ * melody is the first output. Sums are accumulated bias first and then in
+ * input order, so if the binary does the same, scores are identical to
+ * scores.save. Inputs are 0 or 1, so only the weights of set bits are
+ * added.
+ *
+ * Scoring only reads the weights, so one instance can be shared between
+ * threads.
+ */
+public class NeuralNet implements Scorer {
+
+    private final int numberHidden;
+
+    private final double[] hiddenBias;
+    // Weight from input i to hidden unit j at [i * numberHidden + j], so
+    // that the weights of one input bit are contiguous.
+    private final double[] inputWeights;
+    private final double outputBias;
+    private final double[] outputWeights;
+
+    private NeuralNet(int numberHidden, double[] hiddenBias,
+                      double[] inputWeights, double outputBias,
+                      double[] outputWeights) {
+        this.numberHidden = numberHidden;
+        this.hiddenBias = hiddenBias;
+        this.inputWeights = inputWeights;
+        this.outputBias = outputBias;
+        this.outputWeights = outputWeights;
+    }
+
+    /**
+     * Reads a weights file written by the neural net's training program.
+     *
+     * @param filename path of the weights file - e.x.
+     * vendor/neural-net/licks.weights.save
+     * @return network with the given weights
+     */
+    public static NeuralNet load(String filename) {
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(filename));
+            Tokens tokens = new Tokens(r);
+
+            int inputs = tokens.nextInt();
+            int hidden = tokens.nextInt();
+            int outputs = tokens.nextInt();
+            if (inputs != Melody.DIMENSION || outputs < 1) {
+                System.out.println("Weights file has wrong dimensions: "
+                        + inputs + " inputs, " + outputs + " outputs. "
+                        + "Exiting.");
+                System.exit(1);
+            }
+
+            double[] hiddenBias = new double[hidden];
+            double[] inputWeights = new double[inputs * hidden];
+            for (int j = 0; j < hidden; j++) {
+                hiddenBias[j] = tokens.nextDouble();
+                for (int i = 0; i < inputs; i++) {
+                    inputWeights[i * hidden + j] = tokens.nextDouble();
+                }
+            }
+
+            // Only the first output is used as the score.
+            double outputBias = tokens.nextDouble();
+            double[] outputWeights = new double[hidden];
+            for (int j = 0; j < hidden; j++) {
+                outputWeights[j] = tokens.nextDouble();
+            }
+
+            return new NeuralNet(hidden, hiddenBias, inputWeights,
+                    outputBias, outputWeights);
+        } catch (IOException e) {
+            System.out.println("Error reading weights file " + filename
+                    + ". Exiting.");
+            System.exit(1);
+        } catch (NumberFormatException e) {
+            System.out.println("Malformed weights file " + filename
+                    + ". Exiting.");
+            System.exit(1);
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (IOException e) {
+                    System.out.println("Error while closing file");
+                    System.exit(1);
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void score(Melody[] melodies, int from, int to, double[] scores) {
+        int[] bits = new int[Melody.MAX_SET_BITS];
+        double[] hidden = new double[numberHidden];
+        for (int i = from; i < to; i++) {
+            int count = melodies[i].getSetBits(bits);
+            scores[i] = score(bits, count, hidden);
+        }
+    }
+
+    /**
+     * Scores straight from the packed measures, without Melody objects.
+     */
+    @Override
+    public void score(PopulationStore.Generation generation, int from,
+                      int to) {
+        int[] bits = new int[Melody.MAX_SET_BITS];
+        double[] hidden = new double[numberHidden];
+        for (int i = from; i < to; i++) {
+            int count = Melody.getSetBits(generation.getMeasure(i, 0),
+                    generation.getMeasure(i, 1), bits);
+            generation.setScore(i, score(bits, count, hidden));
+        }
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release, the weights are plain arrays.
+    }
+
+    /**
+     * Runs the network forward on one melody.
+     *
+     * @param bits indices of the melody's set bits, from getSetBits
+     * @param count number of set bits
+     * @param hidden scratch buffer of one entry per hidden unit
+     * @return the network's output for the melody
+     */
+    private double score(int[] bits, int count, double[] hidden) {
+        System.arraycopy(hiddenBias, 0, hidden, 0, numberHidden);
+        addInputs(bits, 0, count, hidden);
+        return getOutput(hidden);
+    }
+
+    /**
+     * @return number of hidden units
+     */
+    int getNumberHidden() {
+        return numberHidden;
+    }
+
+    /**
+     * @param hidden receives the bias of every hidden unit
+     */
+    void getHiddenBias(double[] hidden) {
+        System.arraycopy(hiddenBias, 0, hidden, 0, numberHidden);
+    }
+
+    /**
+     * Adds the weights of some set input bits to the hidden units' inputs,
+     * in order.
+     *
+     * @param bits indices of set bits
+     * @param from index in bits of the first bit to add
+     * @param to index in bits after the last bit to add
+     * @param hidden input of every hidden unit
+     */
+    void addInputs(int[] bits, int from, int to, double[] hidden) {
+        for (int b = from; b < to; b++) {
+            int row = bits[b] * numberHidden;
+            for (int j = 0; j < numberHidden; j++) {
+                hidden[j] += inputWeights[row + j];
+            }
+        }
+    }
+
+    /**
+     * @param hidden input of every hidden unit
+     * @return the network's output for those inputs
+     */
+    double getOutput(double[] hidden) {
+        double output = outputBias;
+        for (int j = 0; j < numberHidden; j++) {
+            output += outputWeights[j] * sigmoid(hidden[j]);
+        }
+        return sigmoid(output);
+    }
+
+    private static double sigmoid(double x) {
+        return 1.0 / (1.0 + Math.exp(-x));
+    }
+
+    /**
+     * Scores a PopulationFile melody file in memory and writes a
+     * PopulationFile score file. The scores come from the assumed weights
+     * format above, so they can differ from the neural net binary's.
+     *
+     * @param args weights file, melody file and score file to write
+     */
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.out.println("Usage: NeuralNet <weights> <melodies.bin> "
+                    + "<scores.bin>");
+            System.exit(1);
+        }
+        NeuralNet neuralNet = load(args[0]);
+        Melody[] melodies = PopulationFile.readMelodies(args[1]);
+        double[] scores = new double[melodies.length];
+        neuralNet.score(melodies, 0, melodies.length, scores);
+        PopulationFile.writeScores(args[2], scores);
+    }
+
+    /**
+     * Whitespace separated tokens of a text file.
+     */
+    private static class Tokens {
+        private final BufferedReader reader;
+        private StringTokenizer line = new StringTokenizer("");
+
+        Tokens(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        String next() throws IOException {
+            while (!line.hasMoreTokens()) {
+                String next = reader.readLine();
+                if (next == null) {
+                    throw new IOException("Unexpected end of file");
+                }
+                line = new StringTokenizer(next);
+            }
+            return line.nextToken();
+        }
+
+        int nextInt() throws IOException {
+            return Integer.parseInt(next());
+        }
+
+        double nextDouble() throws IOException {
+            return Double.parseDouble(next());
+        }
+    }
+}
@@ -1,19 +1,29 @@
 package evolmusic;
 
+import java.nio.ByteBuffer;
+
 /**
  *
  * Translates a 1-hot encoding of a melody into a JFugue-compatible string
  * for playback.
  *
+ * Every input is decoded in a single pass into the packed chord and note
+ * slots of a Melody, and the JFugue string is appended to a reusable
+ * StringBuilder straight from the slots. Tied notes are collapsed while
+ * appending, so no intermediate strings are built. The builder makes a
+ * Notationizer not thread-safe, use one per thread.
+ *
  * @author Kim Merrill
  * @date May 2, 2013
  *
  */
 public class Notationizer implements Translator {
 
-	private static final int NUM_NOTES = 16; // two 4/4 measures with min of eighth notes
-	private static final String NOTE = "1"; // 1-hot encoding of notes
-	private static final String TIED = "T"; // indicates if a note is tied over
+	private static final char NOTE = '1'; // 1-hot encoding of notes
+	private static final char TIED = 'T'; // indicates if a note is tied over
+	private static final String CHORD_SUFFIX = OCTAVES[0] + WHOLE_NOTE + PLUS;
+
+    private final StringBuilder song = new StringBuilder(128);
 
     /**
      * @pre bitString has dimension of 424, length of 851
@@ -21,152 +31,181 @@ public class Notationizer implements Translator {
     @Override
     public String translate(String bitString) {
         assert(bitString.length() == 851);
-        bitString = preprocess(bitString);
-        return formatSong(bitString);
+        long first = 0;
+        long second = 0;
+
+        // Ignore first number, which is the user rating, and all spaces
+        int bit = 0;
+        for (int i = bitString.indexOf(SPACE); i < bitString.length()
+                && bit < Melody.DIMENSION; i++) {
+            char c = bitString.charAt(i);
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            if (c == NOTE) {
+                if (isFirstMeasure(bit)) {
+                    first = setBit(first, bit);
+                } else {
+                    second = setBit(second, bit);
+                }
+            }
+            bit++;
+        }
+        return format(first, second);
     }
 
     /**
-     * Prepares bit string for parsing by removing spaces and
-     * user-rating characters.
+     * Translates a packed melody into a JFugue-compatible string.
      *
-     * @param bitString 1-hot encoding of melody
-     * @return parse-able bit string
+     * @param melody packed melody
+     * @return final JFugue-formatted song string
      */
-    private String preprocess(String bitString) {
-        // Ignore first number, which is the user rating
-        int firstSpace = bitString.indexOf(SPACE);
-        bitString = bitString.substring(firstSpace, bitString.length());
-        // Remove all spaces
-        return bitString.replaceAll("\\s","");
+    public String translate(Melody melody) {
+        return format(melody.getMeasure(0), melody.getMeasure(1));
     }
 
     /**
-     * Separate the bit sequences for each chord and note and convert
-     * them to their corresponding pitches.
+     * Translates a melody packed as in PopulationFile into a
+     * JFugue-compatible string.
      *
-     * @param bitString 1-hot encoding of melody
+     * @param buffer holds PopulationFile.PACKED_BYTES bytes at offset
+     * @param offset index in buffer of the melody
      * @return final JFugue-formatted song string
      */
-    private String formatSong(String bitString) {
-        String melody1 = "";
-        String melody2 = "";
-        String chord1 = parseChord(bitString.substring(0, 12));
-        String chord2 = parseChord(bitString.substring(12, 24));
-        String notes1 = bitString.substring(24, 224);
-        String notes2 = bitString.substring(224, bitString.length());
-
-        // Parse each note individually
-        for(int i = 0; i < NUM_NOTES/2; i++) {
-            melody1 += parseNote(notes1.substring(i*NOTE_BITS, i*NOTE_BITS+NOTE_BITS))
-                    + EIGHTH_NOTE + "_";
-            melody2 += parseNote(notes2.substring(i*NOTE_BITS, i*NOTE_BITS+NOTE_BITS))
-                    + EIGHTH_NOTE + "_";
+    public String translate(ByteBuffer buffer, int offset) {
+        long first = 0;
+        long second = 0;
+        for (int i = 0; i < PopulationFile.PACKED_BYTES; i++) {
+            int bits = buffer.get(offset + i) & 0xFF;
+
+            // Visit only the set bits of the byte, highest first
+            while (bits != 0) {
+                int high = Integer.numberOfLeadingZeros(bits) - 24;
+                bits &= ~(0x80 >>> high);
+                int bit = i * 8 + high;
+                if (bit >= Melody.DIMENSION) {
+                    break;
+                } else if (isFirstMeasure(bit)) {
+                    first = setBit(first, bit);
+                } else {
+                    second = setBit(second, bit);
+                }
+            }
         }
-        return formatChord(chord1) + formatMelody(melody1) + " " +
-                formatChord(chord2) + formatMelody(melody2);
+        return format(first, second);
     }
 
     /**
-     * Determines pitches of each note in the chord.
-     *
-     * @param bitString 1-hot encoding of chord
-     * @return chord string of pitches - e.x. C+E+G
+     * @param bit index in the 424-bit encoding
+     * @return true if the bit belongs to the first measure
      */
-    private String parseChord(String bitString) {
-        StringBuilder tempChord = new StringBuilder();
-        int index = bitString.indexOf(NOTE);
-        // Check if the chord has no notes
-        if (index < 0) {
-            return "";
+    private static boolean isFirstMeasure(int bit) {
+        if (bit < Melody.NUMBER_MEASURES * Melody.CHORD_BITS) {
+            return bit < Melody.CHORD_BITS;
         }
-
-        while(index >= 0) {
-            tempChord.append(NOTES.get(index) + PLUS);
-            index = bitString.indexOf(NOTE, index+1);
-        }
-        // Remove trailing "+"
-        return tempChord.deleteCharAt(tempChord.length()-1).toString();
+        return bit < Melody.NUMBER_MEASURES * Melody.CHORD_BITS
+                + Melody.MEASURE_BITS;
     }
 
     /**
-     * Determine pitch of note.
+     * Sets a bit of the 424-bit encoding in its packed measure.
      * NOTE: does not error-check - i.e. ignores 1s after the first if more
-     * than one bit is set
-     * @param bitString 1-hot encoding of a harmonic scale
-     * @return note string with pitch and octave - i.e. C5
+     * than one pitch bit of a note is set
+     *
+     * @param measure packed measure the bit belongs to
+     * @param bit index in the 424-bit encoding
+     * @return packed measure with the bit set
      */
-    private String parseNote(String bitString) {
-        String tempNote = "";
-        // Indicate tied-over notes with a "T" for future processing
-        if (bitString.indexOf(NOTE) == 0) {
-            tempNote += "T";
+    private static long setBit(long measure, int bit) {
+        if (bit < Melody.NUMBER_MEASURES * Melody.CHORD_BITS) {
+            return measure | 1L << (bit % Melody.CHORD_BITS);
         }
-        bitString = bitString.substring(1, bitString.length());
-        int index = bitString.indexOf(NOTE);
-        String octave = OCTAVES[0];
-
-        // If no bits are set, the note is a rest
-        if (index < 0) {
-            return REST;
-        } else if (index > 11) {
-            // Find the pitch and set to the higher octave
-            index = index-12;
-            octave = OCTAVES[1];
+        bit = (bit - Melody.NUMBER_MEASURES * Melody.CHORD_BITS)
+                % Melody.MEASURE_BITS;
+        int slot = bit / NOTE_BITS;
+        int pitch = bit % NOTE_BITS;
+        if (pitch == 0) {
+            return measure | Melody.slotBits(Melody.REST, true, slot);
+        } else if ((Melody.slot(measure, slot) & Melody.PITCH_MASK)
+                == Melody.REST) {
+            return measure | Melody.slotBits(pitch, false, slot);
         }
-        tempNote += NOTES.get(index) + octave;
-        return tempNote;
+        return measure;
     }
 
     /**
-     * Adds octave and duration to notes to create chord.
-     * A chord is a grouping of whole notes played simultaneously.
+     * Appends the chord and melody of each measure.
      *
-     * @param chordString notes in chord - e.x. C+E+G
-     * @return JFugue-formatted chord for prepending - e.x. C5w+E5w+G5w+
+     * @param first packed first measure
+     * @param second packed second measure
+     * @return final JFugue-formatted song string
      */
-    private String formatChord(String chordString) {
-        // If chord is a rest, do not specify octave
-        if (chordString == "") {
-            return "";
-        }
-        StringBuilder formatChord = new StringBuilder();
-        // Separate out each note in the chord
-        String[] chordArray = chordString.split("\\+");
+    private String format(long first, long second) {
+        song.setLength(0);
+        formatChord(first);
+        formatMelody(first);
+        song.append(SPACE);
+        formatChord(second);
+        formatMelody(second);
+        return song.toString();
+    }
 
-        for (String chord : chordArray) {
-            // Chords are always played in the lower octave
-            formatChord.append(chord + OCTAVES[0] + WHOLE_NOTE + PLUS);
+    /**
+     * Appends the notes of the chord with octave and duration.
+     * A chord is a grouping of whole notes played simultaneously.
+     * Chords are always played in the lower octave, e.x. C5w+E5w+G5w+
+     *
+     * @param measure packed measure
+     */
+    private void formatChord(long measure) {
+        for (int i = 0; i < Melody.CHORD_BITS; i++) {
+            if ((measure & (1L << i)) != 0) {
+                song.append(NOTES.get(i)).append(CHORD_SUFFIX);
+            }
         }
-        return formatChord.toString();
     }
 
 	/**
-	 * Collapses tied notes to be listed as a single note with a longer duration.
+	 * Appends the notes of a measure, collapsing tied notes to be listed as
+	 * a single note with a longer duration.
+	 * e.x. A6ii_G6i_A6i_F6i_D6i_C6i_B5i
 	 *
-	 * @ pre tied notes have the same pitch
+	 * @pre tied notes have the same pitch as the note before them
 	 *
-	 * @param melodyString notes in a measure with ties - e.x. A6i_TA6i_G6i_A6i_F6i_D6i_C6i_B5i
-	 * @return JFugue-formatted 4/4 measure - e.x. A6ii_G6i_A6i_F6i_D6i_C6i_B5i
+	 * @param measure packed measure
 	 */
-	private String formatMelody(String melodyString) {
-		StringBuilder formatMelody = new StringBuilder(melodyString);
-		// Remove trailing "_"
-		formatMelody.deleteCharAt(formatMelody.length()-1);
-
-        // Find all tied notes, indicated by "T", and collapse them
-        int tiedIndex = formatMelody.indexOf(TIED);
-        while (tiedIndex > 0) {
-            int ind = formatMelody.indexOf("_", tiedIndex);
-            // Check if tied note is the last note of the measure
-            if (ind < 0) {
-                formatMelody.delete(tiedIndex-1, formatMelody.length());
+	private void formatMelody(long measure) {
+        // A tie on the first note of the measure has nothing to collapse
+        // into, such measures are written with "T" marking every tie.
+        int firstSlot = Melody.slot(measure, 0);
+        boolean collapse = (firstSlot & Melody.TIED) == 0
+                || (firstSlot & Melody.PITCH_MASK) == Melody.REST;
+
+        for (int i = 0; i < Melody.SLOTS_PER_MEASURE; i++) {
+            int slot = Melody.slot(measure, i);
+            int pitch = slot & Melody.PITCH_MASK;
+            boolean tied = (slot & Melody.TIED) != 0;
+
+            // "i" indicates eighth note, "ii" indicates quarter note, etc.
+            // A tied rest is written as a separate rest.
+            if (collapse && tied && pitch != Melody.REST) {
+                song.append(EIGHTH_NOTE);
+                continue;
+            }
+            if (i > 0) {
+                song.append('_');
+            }
+            if (pitch == Melody.REST) {
+                song.append(REST);
             } else {
-                formatMelody.delete(tiedIndex, ind+1);
+                if (tied) {
+                    song.append(TIED);
+                }
+                // Pitches 13-24 are in the higher octave
+                song.append(NOTES.get((pitch - 1) % 12))
+                        .append(OCTAVES[(pitch - 1) / 12]);
             }
-            // "i" indicates eighth note, "ii" indicates quarter note, etc.
-            formatMelody.insert(tiedIndex-1, "i");
-            tiedIndex = formatMelody.indexOf(TIED);
+            song.append(EIGHTH_NOTE);
         }
-        return formatMelody.toString();
-    }
+	}
 }
@@ -0,0 +1,35 @@
+package evolmusic;
+
+/**
+ * Steps of a generation that Metrics times. Scoring includes the neural
+ * net's own steps when it runs as an external binary.
+ */
+public enum Phase {
+
+    RANDOM_GENERATION("random_generation"),
+    SCORING("scoring"),
+    BITIFY_AND_WRITE("bitify_and_write"),
+    NEURAL_NET("neural_net"),
+    SCORE_PARSE("score_parse"),
+    SELECTION("selection"),
+    DIVERSITY("diversity"),
+    SURROGATE("surrogate"),
+    HISTORY("history"),
+    MILESTONE_EXPORT("milestone_export"),
+    CHECKPOINT("checkpoint"),
+    MIGRATION("migration"),
+    BREEDING("breeding");
+
+    private final String label;
+
+    Phase(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return name of the phase in metrics files and events
+     */
+    public String getLabel() {
+        return label;
+    }
+}
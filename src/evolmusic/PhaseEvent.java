@@ -0,0 +1,39 @@
+package evolmusic;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for one phase of a generation on one island.
+ * Recorded with e.x. java -XX:StartFlightRecording=filename=run.jfr, and
+ * costs nothing when no recording is running.
+ */
+@Name("evolmusic.Phase")
+@Label("Evolution Phase")
+@Category("Evolutionary Music")
+@Description("One phase of a generation of an island")
+@StackTrace(false)
+class PhaseEvent extends jdk.jfr.Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Island")
+    int island;
+
+    @Label("Generation")
+    int generation;
+
+    @Label("Melodies")
+    @Description("Melodies the phase worked on")
+    int melodies;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by the island's thread during the phase")
+    @DataAmount
+    long allocated;
+}
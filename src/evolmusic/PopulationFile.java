@@ -0,0 +1,259 @@
+package evolmusic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary exchange format between the evolution and a scorer, read and
+ * written through memory-mapped files, as a compact alternative to the
+ * ASCII melodies.in (848+ characters per melody) and scores.save (one
+ * decimal per line).
+ *
+ * The neural net binary doesn't read or write this format, so no option
+ * uses it to run the binary. NeuralNet's main scores a melody file with
+ * the in-process net, e.x. to try the format.
+ *
+ * Melody file: 16-byte header of little-endian ints (MELODY_MAGIC,
+ * VERSION, number of melodies, Melody.DIMENSION), then PACKED_BYTES bytes
+ * per melody holding the 424-bit encoding from Translator, bit i in byte
+ * i / 8 at mask 0x80 >>> (i % 8).
+ *
+ * Score file: 16-byte header of little-endian ints (SCORE_MAGIC, VERSION,
+ * number of scores, 0), then one 8-byte little-endian double per melody,
+ * in the order of the melody file.
+ */
+public class PopulationFile {
+
+    public static final int MELODY_MAGIC = 0x504D5645; // "EVMP"
+    public static final int SCORE_MAGIC = 0x534D5645; // "EVMS"
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 16;
+    public static final int PACKED_BYTES = (Melody.DIMENSION + 7) / 8; // 53
+
+    private PopulationFile() {
+    }
+
+    /**
+     * Writes a range of the population to a melody file.
+     *
+     * @param filename melody file to create or replace
+     * @param melodies population of melodies
+     * @param from index of the first melody to write
+     * @param to index one past the last melody to write
+     */
+    public static void writeMelodies(String filename, Melody[] melodies,
+                                     int from, int to) {
+        ByteBuffer buffer = map(filename,
+                HEADER_BYTES + (long) (to - from) * PACKED_BYTES);
+        writeHeader(buffer, MELODY_MAGIC, to - from, Melody.DIMENSION);
+
+        int[] setBits = new int[Melody.MAX_SET_BITS];
+        for (int i = from; i < to; i++) {
+            pack(melodies[i], buffer, HEADER_BYTES + (i - from)
+                    * PACKED_BYTES, setBits);
+        }
+    }
+
+    /**
+     * Reads every melody of a melody file.
+     *
+     * @param filename melody file
+     * @return the melodies, in file order
+     */
+    public static Melody[] readMelodies(String filename) {
+        ByteBuffer buffer = mapExisting(filename);
+        int count = readHeader(buffer, MELODY_MAGIC, filename);
+        if (buffer.getInt(12) != Melody.DIMENSION || buffer.capacity()
+                < HEADER_BYTES + (long) count * PACKED_BYTES) {
+            System.out.println("Malformed melody file " + filename
+                    + ". Exiting.");
+            System.exit(1);
+        }
+
+        Melody[] melodies = new Melody[count];
+        for (int i = 0; i < count; i++) {
+            melodies[i] = unpack(buffer, HEADER_BYTES + i * PACKED_BYTES);
+        }
+        return melodies;
+    }
+
+    /**
+     * Writes a score file.
+     *
+     * @param filename score file to create or replace
+     * @param scores score of each melody, in melody file order
+     */
+    public static void writeScores(String filename, double[] scores) {
+        ByteBuffer buffer = map(filename,
+                HEADER_BYTES + (long) scores.length * 8);
+        writeHeader(buffer, SCORE_MAGIC, scores.length, 0);
+        for (int i = 0; i < scores.length; i++) {
+            buffer.putDouble(HEADER_BYTES + i * 8, scores[i]);
+        }
+    }
+
+    /**
+     * Reads a score file.
+     *
+     * @param filename score file
+     * @param scores receives the scores, starting at index 0
+     */
+    public static void readScores(String filename, double[] scores) {
+        ByteBuffer buffer = mapExisting(filename);
+        int count = readHeader(buffer, SCORE_MAGIC, filename);
+        if (count != scores.length
+                || buffer.capacity() < HEADER_BYTES + (long) count * 8) {
+            System.out.println("Expected " + scores.length + " scores in "
+                    + filename + ". Exiting.");
+            System.exit(1);
+        }
+        for (int i = 0; i < count; i++) {
+            scores[i] = buffer.getDouble(HEADER_BYTES + i * 8);
+        }
+    }
+
+    /**
+     * Packs the 424-bit encoding of a melody.
+     *
+     * @param melody packed melody
+     * @param buffer receives PACKED_BYTES bytes at offset
+     * @param offset index in buffer to write at
+     * @param setBits scratch buffer of Melody.MAX_SET_BITS entries
+     */
+    public static void pack(Melody melody, ByteBuffer buffer, int offset,
+                            int[] setBits) {
+        for (int i = 0; i < PACKED_BYTES; i++) {
+            buffer.put(offset + i, (byte) 0);
+        }
+        int count = melody.getSetBits(setBits);
+        for (int i = 0; i < count; i++) {
+            int index = offset + (setBits[i] >>> 3);
+            buffer.put(index, (byte) (buffer.get(index)
+                    | (0x80 >>> (setBits[i] & 7))));
+        }
+    }
+
+    /**
+     * Unpacks the 424-bit encoding of a melody. Like Notationizer, only the
+     * first pitch bit of a note counts if more than one is set.
+     *
+     * @param buffer holds PACKED_BYTES bytes at offset
+     * @param offset index in buffer to read at
+     * @return packed melody
+     */
+    public static Melody unpack(ByteBuffer buffer, int offset) {
+        long[] measures = new long[Melody.NUMBER_MEASURES];
+        int bit = 0;
+        for (int m = 0; m < Melody.NUMBER_MEASURES; m++) {
+            for (int i = 0; i < Melody.CHORD_BITS; i++, bit++) {
+                if (isSet(buffer, offset, bit)) {
+                    measures[m] |= 1L << i;
+                }
+            }
+        }
+        for (int m = 0; m < Melody.NUMBER_MEASURES; m++) {
+            for (int slot = 0; slot < Melody.SLOTS_PER_MEASURE; slot++) {
+                boolean tied = isSet(buffer, offset, bit);
+                int pitch = Melody.REST;
+                for (int p = 1; p < Translator.NOTE_BITS; p++) {
+                    if (isSet(buffer, offset, bit + p)) {
+                        pitch = p;
+                        break;
+                    }
+                }
+                measures[m] |= Melody.slotBits(pitch, tied, slot);
+                bit += Translator.NOTE_BITS;
+            }
+        }
+        return new Melody(measures[0], measures[1]);
+    }
+
+    private static boolean isSet(ByteBuffer buffer, int offset, int bit) {
+        return (buffer.get(offset + (bit >>> 3)) & (0x80 >>> (bit & 7))) != 0;
+    }
+
+    private static void writeHeader(ByteBuffer buffer, int magic, int count,
+                                    int dimension) {
+        buffer.putInt(0, magic);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, count);
+        buffer.putInt(12, dimension);
+    }
+
+    /**
+     * Checks the header of a file.
+     *
+     * @return number of entries in the file
+     */
+    private static int readHeader(ByteBuffer buffer, int magic,
+                                  String filename) {
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != magic
+                || buffer.getInt(4) != VERSION) {
+            System.out.println("Unknown file format for " + filename
+                    + ". Exiting.");
+            System.exit(1);
+        }
+        return buffer.getInt(8);
+    }
+
+    /**
+     * Creates or truncates a file to the given size and maps it for writing.
+     */
+    private static ByteBuffer map(String filename, long size) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(filename, "rw");
+            file.setLength(size);
+            MappedByteBuffer buffer = file.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } catch (IOException e) {
+            System.out.println("Error mapping file " + filename
+                    + ". Exiting.");
+            System.exit(1);
+        } finally {
+            close(file);
+        }
+        return null;
+    }
+
+    /**
+     * Maps an existing file for reading.
+     */
+    private static ByteBuffer mapExisting(String filename) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(filename, "r");
+            MappedByteBuffer buffer = file.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, file.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } catch (IOException e) {
+            System.out.println("Error mapping file " + filename
+                    + ". Exiting.");
+            System.exit(1);
+        } finally {
+            close(file);
+        }
+        return null;
+    }
+
+    /**
+     * Closes a file. Its mapping stays valid until garbage collected.
+     */
+    private static void close(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.out.println("Error while closing file");
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package evolmusic;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The current and next generation of a population, kept off the Java heap
+ * so populations of millions of melodies don't weigh on the garbage
+ * collector.
+ *
+ * Each generation is a struct of arrays in direct buffers: the two packed
+ * measures of every melody, its score, and the indices of its parents in
+ * the generation before. Offspring are written into the next generation
+ * while the current one is read, then swap() makes the next generation
+ * current. Both are allocated once and reused for the whole run.
+ *
+ * The buffers are little-endian, like PopulationFile, so a generation is
+ * saved and restored by copying them to and from a file as they are.
+ */
+public class PopulationStore {
+
+    // Parent index of a random melody.
+    public static final int NO_PARENT = -1;
+
+    private Generation current;
+    private Generation next;
+
+    /**
+     * @param size number of melodies in every generation
+     */
+    public PopulationStore(int size) {
+        current = new Generation(size);
+        next = new Generation(size);
+    }
+
+    /**
+     * @param current generation to continue from, e.x. from a Checkpoint
+     */
+    public PopulationStore(Generation current) {
+        this.current = current;
+        next = new Generation(current.size());
+    }
+
+    /**
+     * @return the generation being scored and bred from
+     */
+    public Generation getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return the generation being bred into
+     */
+    public Generation getNext() {
+        return next;
+    }
+
+    /**
+     * Makes the next generation current. The old current generation is
+     * overwritten by the following generation.
+     */
+    public void swap() {
+        Generation swap = current;
+        current = next;
+        next = swap;
+    }
+
+    /**
+     * One generation of melodies, their scores and their parents.
+     *
+     * Different melodies can be read and written from different threads,
+     * e.x. by the workers of a ShardedScorer.
+     */
+    public static class Generation {
+
+        private final int size;
+        private final LongBuffer firstMeasures;
+        private final LongBuffer secondMeasures;
+        private final DoubleBuffer scores;
+        private final IntBuffer firstParents;
+        private final IntBuffer secondParents;
+
+        // The buffers behind the views above, in file order.
+        private final ByteBuffer[] columns;
+
+        /**
+         * @param size number of melodies in the generation
+         */
+        public Generation(int size) {
+            this.size = size;
+            columns = new ByteBuffer[]{
+                    allocate(size, 8), allocate(size, 8), allocate(size, 8),
+                    allocate(size, 4), allocate(size, 4)
+            };
+            firstMeasures = columns[0].asLongBuffer();
+            secondMeasures = columns[1].asLongBuffer();
+            scores = columns[2].asDoubleBuffer();
+            firstParents = columns[3].asIntBuffer();
+            secondParents = columns[4].asIntBuffer();
+        }
+
+        /**
+         * @param size number of melodies in the generation
+         * @return number of bytes write() writes for the generation
+         */
+        public static long getBytes(int size) {
+            return (long) size * (8 + 8 + 8 + 4 + 4);
+        }
+
+        /**
+         * Writes the measures, scores and parents of every melody.
+         *
+         * @param channel channel to write getBytes(size()) bytes to
+         * @throws IOException if the channel can't be written
+         */
+        public void write(WritableByteChannel channel) throws IOException {
+            for (ByteBuffer column : columns) {
+                ByteBuffer buffer = column.duplicate();
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+
+        /**
+         * Reads what write() wrote, replacing every melody.
+         *
+         * @param channel channel to read getBytes(size()) bytes from
+         * @throws IOException if the channel can't be read or ends early
+         */
+        public void read(ReadableByteChannel channel) throws IOException {
+            for (ByteBuffer column : columns) {
+                ByteBuffer buffer = column.duplicate();
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new EOFException();
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return number of melodies in the generation
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param index index of the melody
+         * @param measure 0 or 1
+         * @return packed chord and note slots of the measure, as in Melody
+         */
+        public long getMeasure(int index, int measure) {
+            return measure == 0 ? firstMeasures.get(index)
+                    : secondMeasures.get(index);
+        }
+
+        /**
+         * @param index index of the melody
+         * @return the melody, as a new Melody
+         */
+        public Melody getMelody(int index) {
+            return new Melody(firstMeasures.get(index),
+                    secondMeasures.get(index));
+        }
+
+        /**
+         * @param from index of the first melody
+         * @param to index after the last melody
+         * @return the melodies, as new Melody objects
+         */
+        public Melody[] getMelodies(int from, int to) {
+            Melody[] melodies = new Melody[to - from];
+            for (int i = from; i < to; i++) {
+                melodies[i - from] = getMelody(i);
+            }
+            return melodies;
+        }
+
+        /**
+         * @param index index of the melody
+         * @param first packed first measure
+         * @param second packed second measure
+         */
+        public void setMelody(int index, long first, long second) {
+            firstMeasures.put(index, first);
+            secondMeasures.put(index, second);
+        }
+
+        /**
+         * @param index index of the melody
+         * @param melody the melody
+         */
+        public void setMelody(int index, Melody melody) {
+            setMelody(index, melody.getMeasure(0), melody.getMeasure(1));
+        }
+
+        /**
+         * @param index index of the melody
+         * @return its score, 0 until it is scored
+         */
+        public double getScore(int index) {
+            return scores.get(index);
+        }
+
+        /**
+         * @param from index of the first melody
+         * @param to index after the last melody
+         * @return the scores of the melodies, in a new array
+         */
+        public double[] getScores(int from, int to) {
+            double[] result = new double[to - from];
+            for (int i = from; i < to; i++) {
+                result[i - from] = scores.get(i);
+            }
+            return result;
+        }
+
+        /**
+         * @param index index of the melody
+         * @param score its score
+         */
+        public void setScore(int index, double score) {
+            scores.put(index, score);
+        }
+
+        /**
+         * @param index index of the melody
+         * @param parent 0 or 1
+         * @return index of the parent in the generation before, or
+         * NO_PARENT
+         */
+        public int getParent(int index, int parent) {
+            return parent == 0 ? firstParents.get(index)
+                    : secondParents.get(index);
+        }
+
+        /**
+         * @param index index of the melody
+         * @param first index of the first parent, or NO_PARENT
+         * @param second index of the second parent, or NO_PARENT
+         */
+        public void setParents(int index, int first, int second) {
+            firstParents.put(index, first);
+            secondParents.put(index, second);
+        }
+
+        private static ByteBuffer allocate(int size, int bytes) {
+            return ByteBuffer.allocateDirect(size * bytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
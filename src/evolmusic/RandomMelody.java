@@ -1,14 +1,20 @@
 package evolmusic;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Random;
+import java.util.List;
+import java.util.SplittableRandom;
 
 /**
  *
  * Generates a simple random melody by randomly selecting pitch, octave, and duration
  * for its contained notes.
  *
+ * Measures are drawn straight into the packed form of Melody from tables
+ * built once: every way to split a measure into eighth-note durations, and
+ * every chord of each size. A measure takes at most a fixed number of
+ * random draws, with nothing retried, and its durations come out with the
+ * same distribution as picking one valid duration at a time.
+ *
  * @author Kim Merrill
  * @date May 2, 2013
  *
@@ -16,111 +22,153 @@ import java.util.Random;
 public class RandomMelody {
 
     private static final int MAX_CHORD_NOTES = 7;
-    private static final ArrayList<String> PITCHES = Translator.NOTES;
-    private static String[] DURATIONS = {"i", "ii", "iii", "iiii", "iiiii", "iiiiii",
-            "iiiiiii", "iiiiiiii"};
-    private static HashMap<String, Double> durationMap = new HashMap<String, Double>();
-    private static Random random = new Random();
-
-    private String melody;
-
-    private int numMeasures;
-    private int bpm;
-
-    public RandomMelody(int numMeasures, int bpm) {
-        PITCHES.add(Translator.REST);
-        this.populateDurations();
-        this.numMeasures = numMeasures;
-        this.bpm = bpm;
-//        this.melody = generateMelody(numMeasures, bpm);
-    }
+    private static final int SLOTS = Melody.SLOTS_PER_MEASURE;
+    private static final int PITCH_NAMES = Translator.NOTES.size();
 
-    public String getMelodyString() {
-        return generateMelody(this.numMeasures, this.bpm);
+    // Every split of a measure into notes, as a mask of the tied slots,
+    // with the running total of how likely each split is.
+    private static final int[] COMPOSITIONS = new int[1 << (SLOTS - 1)];
+    private static final int[] CUMULATIVE_WEIGHTS =
+            new int[COMPOSITIONS.length];
+
+    // CHORDS[k] holds every chord mask of k notes.
+    private static final int[][] CHORDS = new int[MAX_CHORD_NOTES][];
+
+    static {
+        // Durations were picked one at a time, uniformly among those that
+        // fit in the rest of the measure. A note starting at slot s was
+        // one of SLOTS - s choices, so out of SLOTS! draws a split comes up
+        // SLOTS! / (product of SLOTS - s over its notes) times.
+        int total = 0;
+        for (int i = 0; i < COMPOSITIONS.length; i++) {
+            int ties = i << 1; // the first slot always starts a note
+            int weight = factorial(SLOTS);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if ((ties & (1 << slot)) == 0) {
+                    weight /= SLOTS - slot;
+                }
+            }
+            total += weight;
+            COMPOSITIONS[i] = ties;
+            CUMULATIVE_WEIGHTS[i] = total;
+        }
+
+        // Distinct notes, so a chord of k notes is any k-bit mask.
+        for (int k = 0; k < MAX_CHORD_NOTES; k++) {
+            List<Integer> chords = new ArrayList<Integer>();
+            for (int mask = 0; mask < 1 << PITCH_NAMES; mask++) {
+                if (Integer.bitCount(mask) == k) {
+                    chords.add(mask);
+                }
+            }
+            CHORDS[k] = new int[chords.size()];
+            for (int i = 0; i < CHORDS[k].length; i++) {
+                CHORDS[k][i] = chords.get(i);
+            }
+        }
     }
 
+    private final SplittableRandom random;
+    private final Notationizer notationizer = new Notationizer();
+
     /**
-     * Note durations must be divisible into eighth notes.
+     * @param numMeasures the number of measures in the melody, must be 2
+     * @param bpm the number of beats per measure, must be 4
+     * @param random random number stream, used only by this thread
      */
-    private void populateDurations() {
-        durationMap.put("iiiiiiii", 1.0);
-        durationMap.put("iiiiiii", .875);
-        durationMap.put("iiiiii", .75);
-        durationMap.put("iiiii", .625);
-        durationMap.put("iiii", .5);
-        durationMap.put("iii", .375);
-        durationMap.put("ii", .25);
-		durationMap.put("i", .125);
+    public RandomMelody(int numMeasures, int bpm, SplittableRandom random) {
+        this.random = random;
+        // Make sure the melodies fit in a Melody.
+        if (numMeasures != Melody.NUMBER_MEASURES || 2 * bpm != SLOTS) {
+            System.out.println("Measures are of the wrong length. Exiting.");
+            System.exit(1);
+        }
     }
 
+    public String getMelodyString() {
+        return notationizer.translate(getMelody());
+    }
+
+    public Melody getMelody() {
+        return new Melody(nextMeasure(), nextMeasure());
+    }
 
     /**
-     * A melody specifies pitch, octave, and duration of each note.
+     * A measure is a component of a melody that specifies
+     * the pitch, octave, and duration of each of its contained notes,
+     * played over a chord.
      *
-     * @param numMeasures the number of measures in the melody
-     * @param bpm the number of beats per measure
-     * @return a string representation of a melody
+     * @return packed measure, as in Melody
      */
-    private String generateMelody(int numMeasures, int bpm) {
-        String tempMelody = "";
-        for (int i=0; i < numMeasures; i++) {
-            tempMelody += generateChord() + generateMeasure(bpm) + " ";
+    public long nextMeasure() {
+        long measure = nextChord();
+        int ties = nextComposition();
+        int pitch = Melody.REST;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            boolean tied = (ties & (1 << slot)) != 0;
+            if (!tied) {
+                pitch = nextPitch();
+            }
+            measure |= Melody.slotBits(pitch, tied, slot);
         }
-        return tempMelody.trim();
+        return measure;
     }
 
     /**
-     * A measure is a component of a melody that specifies
-     * the pitch, octave, and duration of each of its contained notes.
+     * A chord is a grouping of 0-6 notes, played for the duration
+     * of a measure.
+     *
+     * @return 12-bit chord mask, bit i set if Translator.NOTES[i] is played
+     */
+    private int nextChord() {
+        int[] chords = CHORDS[random.nextInt(MAX_CHORD_NOTES)];
+        return chords[random.nextInt(chords.length)];
+    }
+
+    /**
+     * Picks how the measure is split into notes, by binary search of the
+     * cumulative weights.
      *
-     * @param bpm the number of beats per measure
-     * @return a string representation of a single measure
+     * @return mask of the tied slots
      */
-    private String generateMeasure(double bpm) {
-        String tempMeasure = "";
-        String dur, pitch;
-        double beatsLeft = bpm;
-        while (beatsLeft != 0) {
-            dur = DURATIONS[random.nextInt(DURATIONS.length)];
-            // If selected duration will exceed the length of the measure, try again.
-            if (beatsLeft - durationMap.get(dur)*bpm < 0) {
-                continue;
+    private int nextComposition() {
+        int total = CUMULATIVE_WEIGHTS[COMPOSITIONS.length - 1];
+        int draw = random.nextInt(total);
+        int low = 0;
+        int high = COMPOSITIONS.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (CUMULATIVE_WEIGHTS[middle] > draw) {
+                high = middle;
             } else {
-                beatsLeft -= durationMap.get(dur)*bpm;
-                pitch = PITCHES.get(random.nextInt(PITCHES.size()));
-                // If rest is selected, octave is irrelevant.
-                if (!pitch.equals(Translator.REST)) {
-                    pitch += Translator.OCTAVES[random.nextInt(Translator.OCTAVES.length)];
-                }
-                tempMeasure += pitch + dur + "_";
+                low = middle + 1;
             }
         }
-        // Remove trailing "_"
-        return tempMeasure.substring(0, tempMeasure.length()-1);
+        return COMPOSITIONS[low];
     }
 
     /**
-     * A chord is a grouping of 0-4 notes, played for the duration
-     * of a measure.
+     * Picks one of the 12 notes or a rest, and an octave for notes.
      *
-     * @return a string representation of a chord
+     * @return 0 for a rest, 1-24 for a pitch in the 2-octave scale
      */
-    private String generateChord() {
-        int numNotes = random.nextInt(MAX_CHORD_NOTES);
-        String pitch;
-        String tempChord = "";
-        if (numNotes == 0) {
-            return "";
-        }
-        for (int i=0; i < numNotes; i++) {
-            // Exclude rest from chords
-            pitch = PITCHES.get(random.nextInt(PITCHES.size()-1));
-            if (tempChord.contains(pitch)) {
-                i--;
-            } else {
-                tempChord += pitch + Translator.OCTAVES[0] + "w" + "+";
-            }
+    private int nextPitch() {
+        // Two of the draws are a rest, so a rest is as likely as any note
+        // name, which is in either octave.
+        int pitch = random.nextInt(Translator.OCTAVES.length
+                * (PITCH_NAMES + 1)) - 1;
+        return Math.max(pitch, Melody.REST);
+    }
+
+    /**
+     * @param n a small number
+     * @return n!
+     */
+    private static int factorial(int n) {
+        int result = 1;
+        for (int i = 2; i <= n; i++) {
+            result *= i;
         }
-        return tempChord;
+        return result;
     }
 }
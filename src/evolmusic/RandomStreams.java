@@ -0,0 +1,61 @@
+package evolmusic;
+
+import java.util.SplittableRandom;
+
+/**
+ * Random number streams for a whole run, all split from one seed. Each
+ * island or worker thread gets its own stream, so threads never share a
+ * generator, and a run with the same seed makes the same melodies however
+ * many threads score them.
+ *
+ * Streams depend on the order they are split in, so they are split on one
+ * thread, before the threads that use them start.
+ *
+ * A SplittableRandom can't be saved and restored, so anything that must
+ * resume from a checkpoint draws a seed from its stream once, and makes a
+ * fresh stream from that seed for every generation with derive().
+ */
+public class RandomStreams {
+
+    // Odd constant of SplittableRandom, spreads step numbers over seeds.
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final long seed;
+    private final SplittableRandom root;
+
+    /**
+     * @param seed seed of the whole run
+     */
+    public RandomStreams(long seed) {
+        this.seed = seed;
+        root = new SplittableRandom(seed);
+    }
+
+    /**
+     * @return seed of the whole run, to print so the run can be repeated
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return the next stream, independent of every other stream
+     */
+    public synchronized SplittableRandom split() {
+        return root.split();
+    }
+
+    /**
+     * Makes the stream for one step of a run from the run's seed, so the
+     * stream of a step doesn't depend on the steps before it.
+     *
+     * @param seed seed drawn from a stream of the run
+     * @param step e.x. the generation number
+     * @return stream of the step, independent of the other steps' streams
+     */
+    public static SplittableRandom derive(long seed, long step) {
+        // Consecutive seeds would give overlapping streams, splitting
+        // scrambles the seed and picks a new increment.
+        return new SplittableRandom(seed ^ step * GOLDEN_GAMMA).split();
+    }
+}
@@ -0,0 +1,328 @@
+package evolmusic;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads whitespace separated decimal scores from a stream as they are
+ * written, e.x. by the neural net binary, without making a String or any
+ * other object per score.
+ *
+ * Every score is the double Double.parseDouble would give. Decimals of up
+ * to 19 significant digits are converted directly: exactly if they fit a
+ * double's mantissa and a small power of ten, or else by Eisel and
+ * Lemire's algorithm, multiplying by a 128-bit power of five. Anything
+ * else, e.x. longer decimals, subnormals, and the C library's "nan" and
+ * "inf", goes through Double.parseDouble.
+ *
+ * Not thread-safe.
+ */
+public class ScoreParser {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Significant digits a long holds.
+    private static final int MAX_DIGITS = 19;
+
+    // Powers of ten a double holds exactly, and the largest mantissa it
+    // holds exactly.
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private static final long MAX_EXACT = 1L << 53;
+
+    // Powers of ten outside these round to zero or infinity.
+    private static final int SMALLEST_POWER = -342;
+    private static final int LARGEST_POWER = 308;
+
+    // 5^q for every power q, normalized to 128 bits, high half first.
+    private static final long[] POWERS_OF_FIVE =
+            new long[2 * (LARGEST_POWER - SMALLEST_POWER + 1)];
+
+    private static final int MANTISSA_BITS = 52;
+    private static final int EXPONENT_BIAS = 1023;
+    private static final int INFINITE_EXPONENT = 0x7FF;
+
+    static {
+        for (int q = 0; q < POWERS_OF_TEN.length; q++) {
+            POWERS_OF_TEN[q] = Double.parseDouble("1e" + q);
+        }
+
+        BigInteger five = BigInteger.valueOf(5);
+        for (int q = SMALLEST_POWER; q <= LARGEST_POWER; q++) {
+            BigInteger power;
+            if (q < 0) {
+                // Rounded up reciprocal, as in the algorithm's paper.
+                BigInteger power5 = five.pow(-q);
+                int z = power5.bitLength();
+                int shift = q >= -27 ? z + 127 : 2 * z + 128;
+                power = BigInteger.ONE.shiftLeft(shift).divide(power5)
+                        .add(BigInteger.ONE);
+                while (power.bitLength() > 128) {
+                    power = power.shiftRight(1);
+                }
+            } else {
+                power = five.pow(q);
+                int bits = power.bitLength();
+                power = bits < 128 ? power.shiftLeft(128 - bits)
+                        : power.shiftRight(bits - 128);
+            }
+            int index = 2 * (q - SMALLEST_POWER);
+            POWERS_OF_FIVE[index] = power.shiftRight(64).longValue();
+            POWERS_OF_FIVE[index + 1] = power.longValue();
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    /**
+     * @param in stream of scores, read as they become available
+     */
+    public ScoreParser(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next score, waiting for it to be written.
+     *
+     * @return the score
+     * @throws EOFException if the stream ended first
+     * @throws IOException if the stream failed or the next token isn't a
+     * number
+     */
+    public double next() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) {
+                throw new EOFException("Expected another score");
+            }
+            if (buffer[position] > ' ') {
+                break;
+            }
+            position++;
+        }
+
+        // Read on until the whitespace after the score, or the end of the
+        // stream.
+        int end = position;
+        while (true) {
+            if (end == limit) {
+                // The unread bytes move to the front even at the end of
+                // the stream.
+                int start = position;
+                boolean more = fill();
+                end -= start - position;
+                if (!more) {
+                    break;
+                }
+                continue;
+            }
+            if (buffer[end] <= ' ') {
+                break;
+            }
+            end++;
+        }
+        double score = parse(position, end);
+        position = end;
+        return score;
+    }
+
+    /**
+     * Reads more of the stream, keeping the unread bytes.
+     *
+     * @return false if the stream ended
+     */
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            throw new IOException("Score longer than " + buffer.length
+                    + " bytes");
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    /**
+     * @return the number in buffer[from] to buffer[to - 1]
+     */
+    private double parse(int from, int to) throws IOException {
+        int i = from;
+        boolean negative = buffer[i] == '-';
+        if (negative || buffer[i] == '+') {
+            i++;
+        }
+
+        // Significant digits, and the power of ten they are multiplied by.
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean truncated = false;
+        boolean point = false;
+        for (; i < to; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                if (buffer[i] != '.' || point) {
+                    break;
+                }
+                point = true;
+                continue;
+            }
+            anyDigit = true;
+            if (digits < MAX_DIGITS) {
+                if (mantissa != 0 || digit != 0) {
+                    mantissa = mantissa * 10 + digit;
+                    digits++;
+                }
+                if (point) {
+                    exponent--;
+                }
+            } else {
+                truncated |= digit != 0;
+                if (!point) {
+                    exponent++;
+                }
+            }
+        }
+
+        if (i < to && (buffer[i] == 'e' || buffer[i] == 'E')) {
+            i++;
+            boolean negativeExponent = i < to && buffer[i] == '-';
+            if (i < to && (buffer[i] == '-' || buffer[i] == '+')) {
+                i++;
+            }
+            int start = i;
+            int value = 0;
+            for (; i < to && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+                // Larger exponents round to zero or infinity anyway.
+                value = Math.min(value * 10 + buffer[i] - '0', 100000);
+            }
+            if (i == start) {
+                return parseSlowly(from, to);
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if (!anyDigit || i != to || truncated) {
+            return parseSlowly(from, to);
+        }
+
+        double value = toDouble(mantissa, exponent);
+        if (Double.isNaN(value)) {
+            return parseSlowly(from, to);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @param mantissa up to MAX_DIGITS digits, unsigned
+     * @param exponent power of ten
+     * @return mantissa * 10^exponent rounded to the nearest double, or NaN
+     * if it can't be told here
+     */
+    private static double toDouble(long mantissa, int exponent) {
+        if (mantissa == 0 || exponent < SMALLEST_POWER) {
+            return 0;
+        }
+        if (exponent > LARGEST_POWER) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        // Both exact, so one rounding.
+        if (Long.compareUnsigned(mantissa, MAX_EXACT) <= 0
+                && exponent >= -22 && exponent <= 22) {
+            return exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent]
+                    : mantissa / POWERS_OF_TEN[-exponent];
+        }
+
+        int zeros = Long.numberOfLeadingZeros(mantissa);
+        long w = mantissa << zeros;
+
+        // Top of the 192-bit product of w and 5^exponent, with the lower
+        // half of the power only when the upper half leaves the mantissa
+        // bits in doubt.
+        int index = 2 * (exponent - SMALLEST_POWER);
+        long high = multiplyHigh(w, POWERS_OF_FIVE[index]);
+        long low = w * POWERS_OF_FIVE[index];
+        long precisionMask = -1L >>> (MANTISSA_BITS + 3);
+        if ((high & precisionMask) == precisionMask) {
+            long secondHigh = multiplyHigh(w, POWERS_OF_FIVE[index + 1]);
+            low += secondHigh;
+            if (Long.compareUnsigned(secondHigh, low) > 0) {
+                high++;
+            }
+        }
+        if (low == -1L && (exponent < -27 || exponent > 55)) {
+            return Double.NaN;
+        }
+
+        int upperBit = (int) (high >>> 63);
+        int shift = upperBit + 64 - MANTISSA_BITS - 3;
+        long bits = high >>> shift;
+        int power2 = ((217706 * exponent) >> 16) + 63 + upperBit - zeros
+                + EXPONENT_BIAS;
+        if (power2 <= 0) {
+            // Subnormal.
+            return Double.NaN;
+        }
+
+        // Exactly halfway between two doubles, round to even.
+        if (Long.compareUnsigned(low, 1) <= 0 && exponent >= -4
+                && exponent <= 23 && (bits & 3) == 1
+                && bits << shift == high) {
+            bits &= ~1L;
+        }
+        bits += bits & 1;
+        bits >>>= 1;
+        if (bits >= 2L << MANTISSA_BITS) {
+            bits = 1L << MANTISSA_BITS;
+            power2++;
+        }
+        bits &= ~(1L << MANTISSA_BITS);
+        if (power2 >= INFINITE_EXPONENT) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Double.longBitsToDouble(bits
+                | (long) power2 << MANTISSA_BITS);
+    }
+
+    /**
+     * @return the upper 64 bits of the unsigned 128-bit product
+     */
+    private static long multiplyHigh(long x, long y) {
+        return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+    }
+
+    /**
+     * Parses a number the fast paths can't, making a String of it.
+     */
+    private double parseSlowly(int from, int to) throws IOException {
+        String token = new String(buffer, from, to - from,
+                StandardCharsets.US_ASCII);
+        String lower = token.toLowerCase();
+        String unsigned = lower.startsWith("-") || lower.startsWith("+")
+                ? lower.substring(1) : lower;
+        if (unsigned.equals("nan")) {
+            return Double.NaN;
+        }
+        if (unsigned.equals("inf") || unsigned.equals("infinity")) {
+            return lower.startsWith("-") ? Double.NEGATIVE_INFINITY
+                    : Double.POSITIVE_INFINITY;
+        }
+        try {
+            return Double.parseDouble(token);
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a score: " + token);
+        }
+    }
+}
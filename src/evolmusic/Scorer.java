@@ -0,0 +1,45 @@
+package evolmusic;
+
+/**
+ * Assigns a fitness score to each melody of a population.
+ */
+public interface Scorer {
+
+    /**
+     * Scores a range of the population.
+     *
+     * @param melodies population of melodies
+     * @param from index of the first melody to score
+     * @param to index one past the last melody to score
+     * @param scores receives the score of melodies[i] at scores[i]
+     */
+    public void score(Melody[] melodies, int from, int to, double[] scores);
+
+    /**
+     * Scores a range of a generation kept in a PopulationStore, storing
+     * each score with its melody. By default the range is copied into
+     * Melody objects and scored as an array. Scorers that can read the
+     * packed measures in place override this: NeuralNet, SegmentScorer,
+     * ShardedScorer, CachingScorer and ScorerProcess. ExternalScorer and
+     * ScoringCoordinator still copy every generation, so only scoring in
+     * process or through a scorer process keeps the heap flat.
+     *
+     * @param generation generation of melodies
+     * @param from index of the first melody to score
+     * @param to index one past the last melody to score
+     */
+    default void score(PopulationStore.Generation generation, int from,
+                       int to) {
+        Melody[] melodies = generation.getMelodies(from, to);
+        double[] scores = new double[melodies.length];
+        score(melodies, 0, melodies.length, scores);
+        for (int i = 0; i < scores.length; i++) {
+            generation.setScore(from + i, scores[i]);
+        }
+    }
+
+    /**
+     * Releases anything held by the scorer, such as external processes.
+     */
+    public void close();
+}
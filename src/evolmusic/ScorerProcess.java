@@ -0,0 +1,260 @@
+package evolmusic;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Keeps one vendor/neural-net/test process running for the whole evolution
+ * and streams melodies to it instead of starting it every generation.
+ *
+ * This needs a streaming mode the neural net binary must provide, it isn't
+ * how the binary is run otherwise. The process is started as
+ * "test <weights> - -", reading melodies from stdin and writing scores to
+ * stdout. Melodies are sent in frames of at most WINDOW melodies: a
+ * "<count> 424" header, then one "0.0 bit bit ..." line per melody as in
+ * melodies.in. For each frame the process answers with <count> score
+ * lines as in scores.save, flushed once the frame is scored, and then
+ * reads the next frame.
+ *
+ * A frame of one melody is scored when the process starts, so a binary
+ * without this mode fails the run right away instead of leaving it
+ * waiting for scores.
+ *
+ * A scorer process is not thread-safe. Use one per thread.
+ */
+public class ScorerProcess implements Scorer {
+
+    // Melodies per frame. The next frame is written before the scores of
+    // the last are read, and two frames of scores fit in the pipe buffer,
+    // so neither side blocks the other.
+    private static final int WINDOW = 64;
+
+    // Time the process has to score the first frame, loading its weights.
+    private static final int STARTUP_MILLIS = 30000;
+
+    private final String[] command;
+    private final Process process;
+    private final Writer in;
+    private final ScoreParser out;
+    private final Bitifier bitifier = new Bitifier();
+
+    /**
+     * Starts the scorer process.
+     *
+     * @param neuralNet path of the neural net binary
+     * @param weightsFile path of the weights file
+     */
+    public ScorerProcess(String neuralNet, String weightsFile) {
+        command = new String[]{neuralNet, weightsFile, "-", "-"};
+        Process started = null;
+        try {
+            started = new ProcessBuilder(command).start();
+        } catch (IOException e) {
+            System.out.println(
+                    "Error running command: " + Arrays.toString(command)
+            );
+            e.printStackTrace();
+            System.exit(1);
+        }
+        process = started;
+        in = new BufferedWriter(new OutputStreamWriter(
+                process.getOutputStream()));
+        out = new ScoreParser(process.getInputStream());
+        printErrors(process.getErrorStream());
+
+        checkStarted();
+    }
+
+    @Override
+    public void score(Melody[] melodies, int from, int to, double[] scores) {
+        if (from == to) {
+            return;
+        }
+        try {
+            // Write a frame ahead of the one whose scores are read.
+            int written = writeFrame(melodies, from, to);
+            int read = from;
+            while (read < to) {
+                int end = written < to ? writeFrame(melodies, written, to)
+                        : to;
+                for (; read < written; read++) {
+                    scores[read] = readScore();
+                }
+                written = end;
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Scores a range of a generation straight from its packed measures, so
+     * nothing is copied into Melody objects.
+     */
+    @Override
+    public void score(PopulationStore.Generation generation, int from,
+                      int to) {
+        if (from == to) {
+            return;
+        }
+        try {
+            int written = writeFrame(generation, from, to);
+            int read = from;
+            while (read < to) {
+                int end = written < to ? writeFrame(generation, written, to)
+                        : to;
+                for (; read < written; read++) {
+                    generation.setScore(read, readScore());
+                }
+                written = end;
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Writes the next frame of melodies and flushes it to the process.
+     *
+     * @return index one past the last melody written
+     */
+    private int writeFrame(Melody[] melodies, int from, int to)
+            throws IOException {
+        int end = Math.min(from + WINDOW, to);
+        in.write((end - from) + " " + Melody.DIMENSION + "\n");
+        for (int i = from; i < end; i++) {
+            bitifier.write(melodies[i], in);
+        }
+        in.flush();
+        return end;
+    }
+
+    /**
+     * Writes the next frame of a generation and flushes it to the process.
+     *
+     * @return index one past the last melody written
+     */
+    private int writeFrame(PopulationStore.Generation generation, int from,
+                           int to) throws IOException {
+        int end = Math.min(from + WINDOW, to);
+        in.write((end - from) + " " + Melody.DIMENSION + "\n");
+        for (int i = from; i < end; i++) {
+            bitifier.write(generation.getMeasure(i, 0),
+                    generation.getMeasure(i, 1), in);
+        }
+        in.flush();
+        return end;
+    }
+
+    /**
+     * Scores a frame of one melody, exiting if the process doesn't answer
+     * in time, e.x. because the binary has no streaming mode.
+     */
+    private void checkStarted() {
+        final Melody[] probe = {new Melody(0, 0)};
+        final IOException[] error = new IOException[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeFrame(probe, 0, 1);
+                    readScore();
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        }, "scorer-process-check");
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            thread.join(STARTUP_MILLIS);
+        } catch (InterruptedException e) {
+            System.out.println("Command was interrupted while executing." +
+                    " Exiting...");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        if (thread.isAlive() || error[0] != null) {
+            System.out.println("Command " + Arrays.toString(command)
+                    + (error[0] != null ? " failed: " + error[0].getMessage()
+                    : " wrote no score within " + STARTUP_MILLIS / 1000
+                    + " seconds") + ". --process needs a neural net that "
+                    + "scores frames of melodies from stdin to stdout. "
+                    + "Exiting.");
+            process.destroy();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the next score written by the process
+     * @throws IOException if the process exited or wrote something else
+     */
+    private double readScore() throws IOException {
+        try {
+            return out.next();
+        } catch (EOFException e) {
+            throw new IOException("Scorer process exited");
+        }
+    }
+
+    /**
+     * Closes the process's stdin and waits for it to exit.
+     */
+    @Override
+    public void close() {
+        try {
+            in.close();
+            process.waitFor();
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            System.out.println("Command was interrupted while executing." +
+                    " Exiting...");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private void fail(IOException e) {
+        System.out.println(
+                "Error talking to command: " + Arrays.toString(command)
+        );
+        e.printStackTrace();
+        process.destroy();
+        System.exit(1);
+    }
+
+    /**
+     * Copies the process's stderr to our output so it can never fill up and
+     * block the process.
+     *
+     * @param errors stderr of the process
+     */
+    private static void printErrors(final InputStream errors) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader r = new BufferedReader(
+                        new InputStreamReader(errors));
+                try {
+                    String line;
+                    while ((line = r.readLine()) != null) {
+                        System.out.println(line);
+                    }
+                } catch (IOException e) {
+                    // Process is gone, nothing left to print.
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
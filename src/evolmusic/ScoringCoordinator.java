@@ -0,0 +1,418 @@
+package evolmusic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scores melodies on ScoringWorkers connected over TCP, e.x. running on
+ * other machines.
+ *
+ * A population is cut into batches of BATCH_SIZE melodies, and every
+ * worker takes the next batch as soon as it sent the scores of its last,
+ * so faster workers score more batches. Once no batch is left, an idle
+ * worker also scores a batch that has been running for more than
+ * STRAGGLER_FACTOR times as long as batches take, and the first scores
+ * back are kept, so one slow worker doesn't hold up the generation. The
+ * batch of a worker that disconnects or stops sending heartbeats is
+ * handed to the next worker.
+ *
+ * Workers must score with the same weights, which they prove with a
+ * checksum when they connect. Scores come back as the doubles computed by
+ * the workers, so they don't depend on which worker scored a melody.
+ *
+ * Thread-safe, islands can share one coordinator.
+ */
+public class ScoringCoordinator implements Scorer {
+
+    public static final int BATCH_SIZE = 1024;
+
+    // Workers scoring one batch at most, and how much longer than usual a
+    // batch runs before another worker scores it too.
+    private static final int MAX_COPIES = 2;
+    private static final int STRAGGLER_FACTOR = 2;
+
+    // How often an idle worker looks for a straggling batch.
+    private static final int STEAL_CHECK_MILLIS = 10;
+
+    private final ServerSocket server;
+    private final long checksum;
+
+    // Batches waiting for a worker, and batches being scored.
+    private final ArrayDeque<Batch> pending = new ArrayDeque<Batch>();
+    private final List<Batch> running = new ArrayList<Batch>();
+
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private int connections;
+    private long nextId;
+    private long meanNanos;
+    private boolean closed;
+
+    /**
+     * A range of melodies scored by one worker, or more if it straggles.
+     */
+    private static class Batch {
+        final long id;
+        final Melody[] melodies;
+        final int from;
+        final int to;
+        final double[] scores;
+        int copies;
+        long started;
+        boolean done;
+
+        Batch(long id, Melody[] melodies, int from, int to,
+              double[] scores) {
+            this.id = id;
+            this.melodies = melodies;
+            this.from = from;
+            this.to = to;
+            this.scores = scores;
+        }
+    }
+
+    /**
+     * Listens for workers in the background.
+     *
+     * @param port port to listen on
+     * @param weightsFile weights every worker must score with
+     */
+    public ScoringCoordinator(int port, String weightsFile) {
+        checksum = FitnessCache.checksum(weightsFile);
+        ServerSocket opened = null;
+        try {
+            opened = new ServerSocket(port);
+        } catch (IOException e) {
+            System.out.println("Error listening for scoring workers on port "
+                    + port + ". Exiting.");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        server = opened;
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "coordinator");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Listening for scoring workers on port "
+                + server.getLocalPort());
+    }
+
+    /**
+     * @return the port workers connect to
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @throws IllegalStateException if the coordinator is closed before
+     * every melody is scored
+     */
+    @Override
+    public void score(Melody[] melodies, int from, int to, double[] scores) {
+        List<Batch> batches = new ArrayList<Batch>();
+        synchronized (this) {
+            for (int start = from; start < to; start += BATCH_SIZE) {
+                Batch batch = new Batch(nextId++, melodies, start,
+                        Math.min(start + BATCH_SIZE, to), scores);
+                batches.add(batch);
+                pending.add(batch);
+            }
+            notifyAll();
+
+            boolean waiting = false;
+            try {
+                while (!isDone(batches)) {
+                    // No worker is left to score them.
+                    if (closed) {
+                        throw new IllegalStateException("The scoring "
+                                + "coordinator was closed");
+                    }
+                    if (connections == 0 && !waiting) {
+                        System.out.println("Waiting for a scoring worker "
+                                + "on port " + getPort());
+                        waiting = true;
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                System.out.println("Scoring was interrupted. Exiting...");
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Stops listening and disconnects every worker. Workers go on trying
+     * to connect, e.x. to the next run.
+     */
+    @Override
+    public void close() {
+        List<Socket> open;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            open = new ArrayList<Socket>(sockets);
+            notifyAll();
+        }
+        closeQuietly(server);
+        for (Socket socket : open) {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Accepts workers until closed, serving each on its own thread.
+     */
+    private void accept() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (!closed) {
+                        System.out.println("Stopped accepting scoring "
+                                + "workers: " + e.getMessage());
+                    }
+                }
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "worker-" + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Hands batches to one worker until it disconnects or the coordinator
+     * is closed.
+     *
+     * @param socket connection to the worker
+     */
+    private void serve(Socket socket) {
+        String worker = String.valueOf(socket.getRemoteSocketAddress());
+        boolean registered = false;
+        try {
+            socket.setSoTimeout(ScoringProtocol.TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+
+            ScoringProtocol.Frame hello = ScoringProtocol.read(in);
+            if (hello.getType() != ScoringProtocol.HELLO) {
+                throw new IOException("Expected a hello");
+            }
+            if (hello.getChecksum() != checksum) {
+                throw new IOException("Scores with other weights");
+            }
+            registered = register(socket);
+            if (!registered) {
+                return;
+            }
+            System.out.println("Scoring worker " + worker + " connected");
+
+            while (true) {
+                Batch batch = take();
+                if (batch == null) {
+                    synchronized (this) {
+                        if (closed) {
+                            return;
+                        }
+                    }
+                    ScoringProtocol.writeHeartbeat(out);
+                    continue;
+                }
+                try {
+                    ScoringProtocol.writeBatch(out, batch.id,
+                            batch.melodies, batch.from, batch.to);
+                    complete(batch, readScores(in, batch));
+                } finally {
+                    release(batch);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!closed) {
+                    System.out.println("Lost scoring worker " + worker
+                            + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            if (registered) {
+                unregister(socket);
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * @return the scores of the batch, skipping heartbeats
+     * @throws IOException if the worker disconnected, stopped sending
+     * heartbeats or sent something else
+     */
+    private static double[] readScores(DataInputStream in, Batch batch)
+            throws IOException {
+        while (true) {
+            ScoringProtocol.Frame frame = ScoringProtocol.read(in);
+            if (frame.getType() == ScoringProtocol.HEARTBEAT) {
+                continue;
+            }
+            if (frame.getType() != ScoringProtocol.SCORES
+                    || frame.getBatchId() != batch.id) {
+                throw new IOException("Expected the scores of batch "
+                        + batch.id);
+            }
+            double[] scores = frame.getScores();
+            if (scores.length != batch.to - batch.from) {
+                throw new IOException("Expected " + (batch.to - batch.from)
+                        + " scores, got " + scores.length);
+            }
+            return scores;
+        }
+    }
+
+    /**
+     * Waits up to a heartbeat interval for a batch to score.
+     *
+     * @return the batch, or null if there was none or the coordinator was
+     * closed
+     */
+    private synchronized Batch take() {
+        long deadline = System.currentTimeMillis()
+                + ScoringProtocol.HEARTBEAT_MILLIS;
+        try {
+            while (!closed) {
+                Batch batch = pending.poll();
+                if (batch == null) {
+                    batch = getStraggler();
+                }
+                if (batch != null) {
+                    if (batch.copies == 0) {
+                        batch.started = System.nanoTime();
+                        running.add(batch);
+                    }
+                    batch.copies++;
+                    return batch;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                wait(running.isEmpty() ? remaining
+                        : Math.min(remaining, STEAL_CHECK_MILLIS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * @return the longest running batch that is overdue and scored by
+     * fewer than MAX_COPIES workers, or null if there is none
+     */
+    private Batch getStraggler() {
+        if (meanNanos == 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        for (Batch batch : running) {
+            if (batch.copies < MAX_COPIES
+                    && now - batch.started > STRAGGLER_FACTOR * meanNanos) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keeps the first scores of a batch.
+     */
+    private synchronized void complete(Batch batch, double[] scores) {
+        if (batch.done) {
+            return;
+        }
+        System.arraycopy(scores, 0, batch.scores, batch.from,
+                scores.length);
+        batch.done = true;
+        running.remove(batch);
+
+        long nanos = System.nanoTime() - batch.started;
+        meanNanos = meanNanos == 0 ? nanos : (7 * meanNanos + nanos) / 8;
+        notifyAll();
+    }
+
+    /**
+     * Gives a batch back once a worker is done with it, to be scored again
+     * if no worker could score it.
+     */
+    private synchronized void release(Batch batch) {
+        batch.copies--;
+        if (!batch.done && batch.copies == 0) {
+            running.remove(batch);
+            pending.addFirst(batch);
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return false if the coordinator is closed
+     */
+    private synchronized boolean register(Socket socket) {
+        if (closed) {
+            return false;
+        }
+        sockets.add(socket);
+        connections++;
+        notifyAll();
+        return true;
+    }
+
+    private synchronized void unregister(Socket socket) {
+        sockets.remove(socket);
+        connections--;
+        notifyAll();
+    }
+
+    private static boolean isDone(List<Batch> batches) {
+        for (Batch batch : batches) {
+            if (!batch.done) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do with it.
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package evolmusic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Framed binary protocol between a ScoringCoordinator and the
+ * ScoringWorkers connected to it over TCP.
+ *
+ * A frame is the length of its payload (int), its type (byte), then the
+ * payload, big-endian:
+ *
+ * HELLO, worker to coordinator once connected: MAGIC (int), VERSION (int),
+ * checksum of the worker's weights file (long).
+ * BATCH, coordinator to worker: batch id (long), number of melodies (int),
+ * then every melody packed as by PopulationFile, PACKED_BYTES each.
+ * SCORES, worker to coordinator: batch id (long), number of scores (int),
+ * then every score (double) in the order of the batch.
+ * HEARTBEAT, either way, no payload.
+ *
+ * Both sides send a heartbeat every HEARTBEAT_MILLIS while connected and
+ * give up on the other side after TIMEOUT_MILLIS without a frame from it.
+ * A worker sends heartbeats while it scores a batch, so a slow batch isn't
+ * taken for a dead worker.
+ */
+public class ScoringProtocol {
+
+    public static final int MAGIC = 0x524D5645; // "EVMR"
+    public static final int VERSION = 1;
+
+    public static final byte HELLO = 1;
+    public static final byte BATCH = 2;
+    public static final byte SCORES = 3;
+    public static final byte HEARTBEAT = 4;
+
+    public static final int HEARTBEAT_MILLIS = 1000;
+    public static final int TIMEOUT_MILLIS = 5 * HEARTBEAT_MILLIS;
+
+    // Bytes of a batch before its melodies, and of a scores frame before
+    // its scores.
+    private static final int BATCH_HEADER = 12;
+
+    // Larger frames are taken for a corrupt stream.
+    private static final int MAX_PAYLOAD = 1 << 26;
+
+    private ScoringProtocol() {
+    }
+
+    /**
+     * A frame read from a stream.
+     */
+    public static class Frame {
+        private final byte type;
+        private final ByteBuffer payload;
+
+        Frame(byte type, ByteBuffer payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        /**
+         * @return HELLO, BATCH, SCORES or HEARTBEAT
+         */
+        public byte getType() {
+            return type;
+        }
+
+        /**
+         * @return id of a BATCH or SCORES frame
+         */
+        public long getBatchId() {
+            return payload.getLong(0);
+        }
+
+        /**
+         * @return the melodies of a BATCH frame
+         */
+        public Melody[] getMelodies() throws IOException {
+            int count = getCount(PopulationFile.PACKED_BYTES);
+            Melody[] melodies = new Melody[count];
+            for (int i = 0; i < count; i++) {
+                melodies[i] = PopulationFile.unpack(payload, BATCH_HEADER
+                        + i * PopulationFile.PACKED_BYTES);
+            }
+            return melodies;
+        }
+
+        /**
+         * @return the scores of a SCORES frame
+         */
+        public double[] getScores() throws IOException {
+            int count = getCount(8);
+            double[] scores = new double[count];
+            for (int i = 0; i < count; i++) {
+                scores[i] = payload.getDouble(BATCH_HEADER + i * 8);
+            }
+            return scores;
+        }
+
+        /**
+         * @return checksum of the weights of a HELLO frame
+         * @throws IOException if the worker speaks another protocol
+         */
+        public long getChecksum() throws IOException {
+            if (payload.capacity() != 16 || payload.getInt(0) != MAGIC
+                    || payload.getInt(4) != VERSION) {
+                throw new IOException("Not a scoring worker of version "
+                        + VERSION);
+            }
+            return payload.getLong(8);
+        }
+
+        /**
+         * @param entryBytes bytes of every entry after the header
+         * @return number of entries of a BATCH or SCORES frame
+         */
+        private int getCount(int entryBytes) throws IOException {
+            int count = payload.getInt(8);
+            if (count < 0 || payload.capacity()
+                    != BATCH_HEADER + (long) count * entryBytes) {
+                throw new IOException("Frame of " + payload.capacity()
+                        + " bytes can't hold " + count + " entries");
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Reads the next frame, waiting for it at most as long as the socket's
+     * timeout.
+     *
+     * @param in stream of a socket
+     * @return the frame
+     * @throws IOException if the stream ended, timed out or is corrupt
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            throw new EOFException("Connection closed");
+        }
+        byte type = in.readByte();
+        if (length < 0 || length > MAX_PAYLOAD || type < HELLO
+                || type > HEARTBEAT) {
+            throw new IOException("Corrupt frame of type " + type + " and "
+                    + length + " bytes");
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * @param out stream of a socket
+     * @param checksum checksum of the weights file scored with
+     */
+    public static void writeHello(DataOutputStream out, long checksum)
+            throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(16);
+        payload.putInt(0, MAGIC);
+        payload.putInt(4, VERSION);
+        payload.putLong(8, checksum);
+        write(out, HELLO, payload);
+    }
+
+    /**
+     * @param out stream of a socket
+     * @param id id of the batch
+     * @param melodies melodies of the batch are melodies[from] to
+     *                 melodies[to - 1]
+     */
+    public static void writeBatch(DataOutputStream out, long id,
+                                  Melody[] melodies, int from, int to)
+            throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(BATCH_HEADER
+                + (to - from) * PopulationFile.PACKED_BYTES);
+        payload.putLong(0, id);
+        payload.putInt(8, to - from);
+        int[] setBits = new int[Melody.MAX_SET_BITS];
+        for (int i = from; i < to; i++) {
+            PopulationFile.pack(melodies[i], payload, BATCH_HEADER
+                    + (i - from) * PopulationFile.PACKED_BYTES, setBits);
+        }
+        write(out, BATCH, payload);
+    }
+
+    /**
+     * @param out stream of a socket
+     * @param id id of the batch scored
+     * @param scores score of every melody of the batch
+     */
+    public static void writeScores(DataOutputStream out, long id,
+                                   double[] scores) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(BATCH_HEADER
+                + scores.length * 8);
+        payload.putLong(0, id);
+        payload.putInt(8, scores.length);
+        for (int i = 0; i < scores.length; i++) {
+            payload.putDouble(BATCH_HEADER + i * 8, scores[i]);
+        }
+        write(out, SCORES, payload);
+    }
+
+    /**
+     * @param out stream of a socket
+     */
+    public static void writeHeartbeat(DataOutputStream out)
+            throws IOException {
+        write(out, HEARTBEAT, ByteBuffer.allocate(0));
+    }
+
+    /**
+     * Writes and flushes a frame. Frames written by different threads to
+     * one stream don't interleave.
+     */
+    private static void write(DataOutputStream out, byte type,
+                              ByteBuffer payload) throws IOException {
+        synchronized (out) {
+            out.writeInt(payload.capacity());
+            out.writeByte(type);
+            out.write(payload.array(), 0, payload.capacity());
+            out.flush();
+        }
+    }
+}
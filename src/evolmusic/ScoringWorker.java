@@ -0,0 +1,185 @@
+package evolmusic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Daemon that scores batches of melodies for a ScoringCoordinator, e.x.
+ * on another machine than the evolution. It streams melodies to long-running
+ * neural net processes, or scores with the in-process NeuralNet, and
+ * connects to the coordinator again whenever it loses it, so one worker
+ * serves run after run.
+ *
+ * Usage: ScoringWorker HOST PORT [--workers N] [--weights FILE]
+ * [--in-process]
+ * "--workers N" scores every batch in N shards at a time (defaults to the
+ * number of processors), "--weights FILE" reads other weights than the
+ * evolution's default, which must be the coordinator's too, and
+ * "--in-process" scores with a NeuralNet instead of the binary.
+ */
+public class ScoringWorker {
+
+    // Time between attempts to connect to the coordinator.
+    private static final int RECONNECT_MILLIS = 2000;
+
+    private final String host;
+    private final int port;
+    private final Scorer scorer;
+    private final long checksum;
+
+    /**
+     * @param host host of the coordinator
+     * @param port port of the coordinator
+     * @param scorer scores the batches
+     * @param checksum checksum of the weights the scorer scores with
+     */
+    public ScoringWorker(String host, int port, Scorer scorer,
+                         long checksum) {
+        this.host = host;
+        this.port = port;
+        this.scorer = scorer;
+        this.checksum = checksum;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: ScoringWorker HOST PORT "
+                    + "[--workers N] [--weights FILE] [--in-process]");
+            System.exit(1);
+        }
+        List<String> options = Arrays.asList(args);
+        int port = 0;
+        try {
+            port = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            System.out.println("PORT needs a number. Exiting.");
+            System.exit(1);
+        }
+        int numWorkers = EvolutionaryMusic.getOption(options, "--workers",
+                Runtime.getRuntime().availableProcessors());
+        String weightsFile = EvolutionaryMusic.getOption(options,
+                "--weights", EvolutionaryMusic.WEIGHTS_FILE);
+
+        // A neural net process per shard, or one NeuralNet shared by them.
+        Scorer[] workers = new Scorer[numWorkers];
+        if (options.contains("--in-process")) {
+            Arrays.fill(workers, NeuralNet.load(weightsFile));
+        } else {
+            for (int j = 0; j < workers.length; j++) {
+                workers[j] = new ScorerProcess(EvolutionaryMusic.NEURAL_NET,
+                        weightsFile);
+            }
+        }
+        Scorer scorer = numWorkers > 1 ? new ShardedScorer(workers)
+                : workers[0];
+        new ScoringWorker(args[0], port, scorer,
+                FitnessCache.checksum(weightsFile)).run();
+    }
+
+    /**
+     * Serves the coordinator, connecting again whenever the connection is
+     * lost. Never returns.
+     */
+    public void run() {
+        boolean waiting = false;
+        while (true) {
+            Socket socket = null;
+            try {
+                socket = new Socket(host, port);
+                waiting = false;
+                System.out.println("Connected to coordinator " + host + ":"
+                        + port);
+                serve(socket);
+            } catch (IOException e) {
+                // Only report a coordinator that isn't up once.
+                if (socket != null) {
+                    System.out.println("Lost coordinator " + host + ":"
+                            + port + ": " + e.getMessage());
+                } else if (!waiting) {
+                    System.out.println("Waiting for coordinator " + host
+                            + ":" + port);
+                    waiting = true;
+                }
+            } finally {
+                close(socket);
+            }
+
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                System.out.println("Worker was interrupted. Exiting...");
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Scores batches until the connection is lost.
+     *
+     * @param socket connection to the coordinator
+     * @throws IOException once the connection is lost
+     */
+    private void serve(final Socket socket) throws IOException {
+        socket.setSoTimeout(ScoringProtocol.TIMEOUT_MILLIS);
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+        ScoringProtocol.writeHello(out, checksum);
+
+        // Heartbeats go on while a batch is scored.
+        Thread heartbeat = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!socket.isClosed()) {
+                        Thread.sleep(ScoringProtocol.HEARTBEAT_MILLIS);
+                        ScoringProtocol.writeHeartbeat(out);
+                    }
+                } catch (IOException e) {
+                    // The scoring loop finds out too.
+                } catch (InterruptedException e) {
+                    // Stopped with the connection.
+                }
+            }
+        }, "heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+
+        try {
+            while (true) {
+                ScoringProtocol.Frame frame = ScoringProtocol.read(in);
+                if (frame.getType() == ScoringProtocol.HEARTBEAT) {
+                    continue;
+                }
+                if (frame.getType() != ScoringProtocol.BATCH) {
+                    throw new IOException("Expected a batch");
+                }
+                Melody[] melodies = frame.getMelodies();
+                double[] scores = new double[melodies.length];
+                scorer.score(melodies, 0, melodies.length, scores);
+                ScoringProtocol.writeScores(out, frame.getBatchId(), scores);
+            }
+        } finally {
+            heartbeat.interrupt();
+        }
+    }
+
+    private static void close(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with it.
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package evolmusic;
+
+import java.util.Arrays;
+
+/**
+ * Scores melodies with a NeuralNet from cached partial sums of its first
+ * layer, one per segment of a melody: the chord of either measure and the
+ * note slots of either measure.
+ *
+ * Breeder makes offspring from whole chords and whole measure melodies of
+ * their parents, so most segments of an offspring were seen before. The
+ * hidden units' inputs are then the bias plus four cached partial sums,
+ * rather than the weights of every set bit. The partial sums of chords are
+ * kept for every chord, those of the note slots in a direct-mapped cache.
+ *
+ * The partial sums are added in a different order than NeuralNet adds the
+ * weights, so scores can differ from NeuralNet's in the last bits. A
+ * melody's score doesn't depend on what is cached.
+ *
+ * Not thread-safe, every worker needs its own SegmentScorer.
+ */
+public class SegmentScorer implements Scorer {
+
+    // Set bits before these are in the first chord, the second chord and
+    // the first measure's slots.
+    private static final int FIRST_CHORD_END = Melody.CHORD_BITS;
+    private static final int CHORDS_END = Melody.NUMBER_MEASURES
+            * Melody.CHORD_BITS;
+    private static final int FIRST_MEASURE_END = CHORDS_END
+            + Melody.MEASURE_BITS;
+
+    // The two chords, then the slots of either measure.
+    private static final int SEGMENTS = 2 * Melody.NUMBER_MEASURES;
+
+    // Key of an empty cache entry, slots hold at most 48 bits.
+    private static final long EMPTY = -1;
+
+    private final NeuralNet neuralNet;
+    private final int numberHidden;
+
+    // Partial sums of every chord of either measure, made on first use.
+    private final double[][][] chordSums = new double[Melody.NUMBER_MEASURES]
+            [1 << Melody.CHORD_BITS][];
+
+    // Slots of a measure and its number, and their partial sums, in
+    // numberHidden entries per key.
+    private final int mask;
+    private final long[] keys;
+    private final double[] slotSums;
+
+    // Set bits of the melody being scored, listed on the first miss, and
+    // where each segment's bits start.
+    private final int[] bits = new int[Melody.MAX_SET_BITS];
+    private final int[] segmentStarts = new int[SEGMENTS + 1];
+    private boolean listed;
+
+    private final double[] hidden;
+    private final double[] partial;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param neuralNet network to score with
+     * @param cacheSize number of note slot sums kept, rounded up to a power
+     *                  of two
+     */
+    public SegmentScorer(NeuralNet neuralNet, int cacheSize) {
+        this.neuralNet = neuralNet;
+        numberHidden = neuralNet.getNumberHidden();
+        int size = Integer.highestOneBit(Math.max(1, cacheSize) * 2 - 1);
+        mask = size - 1;
+        keys = new long[size];
+        Arrays.fill(keys, EMPTY);
+        slotSums = new double[size * numberHidden];
+        hidden = new double[numberHidden];
+        partial = new double[numberHidden];
+    }
+
+    @Override
+    public void score(Melody[] melodies, int from, int to, double[] scores) {
+        for (int i = from; i < to; i++) {
+            scores[i] = score(melodies[i].getMeasure(0),
+                    melodies[i].getMeasure(1));
+        }
+    }
+
+    @Override
+    public void score(PopulationStore.Generation generation, int from,
+                      int to) {
+        for (int i = from; i < to; i++) {
+            generation.setScore(i, score(generation.getMeasure(i, 0),
+                    generation.getMeasure(i, 1)));
+        }
+    }
+
+    /**
+     * @return number of note slot sums found in the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of note slot sums computed
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release, the cache is plain arrays.
+    }
+
+    /**
+     * @param first packed first measure
+     * @param second packed second measure
+     * @return the network's output for the melody
+     */
+    private double score(long first, long second) {
+        listed = false;
+        neuralNet.getHiddenBias(hidden);
+        add(getChordSum(0, first, second));
+        add(getChordSum(1, first, second));
+        addSlotSum(0, first, second);
+        addSlotSum(1, first, second);
+        return neuralNet.getOutput(hidden);
+    }
+
+    /**
+     * @param measure 0 or 1
+     * @return partial sum of the chord of the measure
+     */
+    private double[] getChordSum(int measure, long first, long second) {
+        long packed = measure == 0 ? first : second;
+        int chord = (int) (packed & Melody.CHORD_MASK);
+        double[] sum = chordSums[measure][chord];
+        if (sum == null) {
+            sum = new double[numberHidden];
+            addSegment(measure, first, second, sum);
+            chordSums[measure][chord] = sum;
+        }
+        return sum;
+    }
+
+    /**
+     * Adds the partial sum of the note slots of a measure, computing it if
+     * it isn't cached.
+     *
+     * @param measure 0 or 1
+     */
+    private void addSlotSum(int measure, long first, long second) {
+        long packed = measure == 0 ? first : second;
+        long key = (packed >>> Melody.CHORD_BITS) << 1 | measure;
+        int slot = (int) (Melody.fingerprint(key, 0) >>> 32) & mask;
+        int offset = slot * numberHidden;
+        if (keys[slot] == key) {
+            hits++;
+        } else {
+            misses++;
+            keys[slot] = key;
+            Arrays.fill(partial, 0);
+            addSegment(Melody.NUMBER_MEASURES + measure, first, second,
+                    partial);
+            System.arraycopy(partial, 0, slotSums, offset, numberHidden);
+        }
+        for (int j = 0; j < numberHidden; j++) {
+            hidden[j] += slotSums[offset + j];
+        }
+    }
+
+    /**
+     * Adds the weights of a segment's set bits, listing the melody's set
+     * bits if they aren't yet.
+     *
+     * @param segment 0 or 1 for a chord, 2 or 3 for a measure's slots
+     * @param sum receives the partial sum of the segment
+     */
+    private void addSegment(int segment, long first, long second,
+                            double[] sum) {
+        if (!listed) {
+            int count = Melody.getSetBits(first, second, bits);
+            segmentStarts[1] = findBit(FIRST_CHORD_END, 0, count);
+            segmentStarts[2] = findBit(CHORDS_END, segmentStarts[1], count);
+            segmentStarts[3] = findBit(FIRST_MEASURE_END, segmentStarts[2],
+                    count);
+            segmentStarts[4] = count;
+            listed = true;
+        }
+        neuralNet.addInputs(bits, segmentStarts[segment],
+                segmentStarts[segment + 1], sum);
+    }
+
+    private void add(double[] sum) {
+        for (int j = 0; j < numberHidden; j++) {
+            hidden[j] += sum[j];
+        }
+    }
+
+    /**
+     * @return index of the first of bits[from] to bits[to - 1] that is at
+     * least bit, or to if none is
+     */
+    private int findBit(int bit, int from, int to) {
+        while (from < to && bits[from] < bit) {
+            from++;
+        }
+        return from;
+    }
+}
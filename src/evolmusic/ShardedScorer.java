@@ -0,0 +1,108 @@
+package evolmusic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a population into one shard per worker and scores the shards at
+ * the same time. Each worker scores its shard into the same scores array,
+ * so the scores come back in population order.
+ *
+ * Workers can be separate scorer processes, or the same in-process
+ * NeuralNet repeated, since it is safe to share between threads.
+ */
+public class ShardedScorer implements Scorer {
+
+    private final Scorer[] workers;
+    private final ExecutorService executor;
+
+    /**
+     * @param workers scorers to run in parallel, one thread each
+     */
+    public ShardedScorer(Scorer[] workers) {
+        this.workers = workers.clone();
+        executor = Executors.newFixedThreadPool(workers.length);
+    }
+
+    @Override
+    public void score(final Melody[] melodies, int from, int to,
+                      final double[] scores) {
+        int shardSize = (to - from + workers.length - 1) / workers.length;
+        List<Future<?>> shards = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < workers.length; i++) {
+            final Scorer worker = workers[i];
+            final int shardFrom = Math.min(from + i * shardSize, to);
+            final int shardTo = Math.min(shardFrom + shardSize, to);
+            if (shardFrom == shardTo) {
+                break;
+            }
+            shards.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    worker.score(melodies, shardFrom, shardTo, scores);
+                }
+            }));
+        }
+        await(shards);
+    }
+
+    @Override
+    public void score(final PopulationStore.Generation generation, int from,
+                      int to) {
+        int shardSize = (to - from + workers.length - 1) / workers.length;
+        List<Future<?>> shards = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < workers.length; i++) {
+            final Scorer worker = workers[i];
+            final int shardFrom = Math.min(from + i * shardSize, to);
+            final int shardTo = Math.min(shardFrom + shardSize, to);
+            if (shardFrom == shardTo) {
+                break;
+            }
+            shards.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    worker.score(generation, shardFrom, shardTo);
+                }
+            }));
+        }
+        await(shards);
+    }
+
+    /**
+     * Waits for every shard to be scored.
+     *
+     * @param shards the submitted shards
+     */
+    private static void await(List<Future<?>> shards) {
+        try {
+            for (Future<?> shard : shards) {
+                shard.get();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Scoring was interrupted. Exiting...");
+            e.printStackTrace();
+            System.exit(1);
+        } catch (ExecutionException e) {
+            System.out.println("Error scoring melodies. Exiting...");
+            e.getCause().printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Stops the worker threads and closes every worker.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        for (Scorer worker : workers) {
+            worker.close();
+        }
+    }
+}
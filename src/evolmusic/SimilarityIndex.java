@@ -0,0 +1,336 @@
+package evolmusic;
+
+import java.util.Arrays;
+
+/**
+ * Finds the melodies of a population that are identical or close to a
+ * given melody, by Hamming distance between their 424-bit encodings,
+ * without comparing it to every melody.
+ *
+ * The distance is computed from the packed measures: the differing chord
+ * bits, one bit per differing tie flag, and for a slot with a different
+ * pitch one bit for each of the two that isn't a rest.
+ *
+ * Near melodies are found by multi-index hashing. The chords and slots of
+ * a melody are cut into radius + 1 chunks, and every chunk is hashed to the
+ * melodies holding it. The distance of two melodies is the sum of the
+ * distances of their chunks, so two melodies at most the radius apart hold
+ * at least one same chunk, and only the melodies sharing a chunk with the
+ * given melody are compared to it. Melodies are mostly held notes, so
+ * chunks are kept as few and as long as the radius allows.
+ *
+ * Identical melodies are kept once with a count. Melodies are added one at
+ * a time, e.x. as they are bred, and the index is cleared for the next
+ * generation. Not thread-safe.
+ */
+public class SimilarityIndex {
+
+    // Wider radii cut melodies into chunks too short to tell them apart.
+    public static final int MAX_RADIUS = 5;
+
+    // Chords and slots of a melody, each kept whole in one chunk, and the
+    // bits of a packed measure.
+    private static final int UNITS = Melody.NUMBER_MEASURES
+            * (1 + Melody.SLOTS_PER_MEASURE);
+    private static final int MEASURE_BITS = Melody.CHORD_BITS
+            + Melody.SLOTS_PER_MEASURE * Melody.SLOT_BITS;
+
+    // Pitch bits and tie flags of every slot of a measure.
+    private static final long PITCHES = slotMask(Melody.PITCH_MASK);
+    private static final long TIES = slotMask(Melody.TIED);
+
+    private static final int EMPTY = -1;
+
+    private final int radius;
+    private final int mask;
+
+    // Number of melodies added, and of different ones.
+    private int size;
+    private int unique;
+
+    // Every different melody, its count and its niche count once asked.
+    private final long[] firsts;
+    private final long[] seconds;
+    private final int[] counts;
+    private final double[] niches;
+    private boolean nichesKept;
+
+    // Open-addressed table from a melody's fingerprint to its position + 1.
+    private final int[] exact;
+
+    // First bit of every chunk in the two measures, and one past the last.
+    private final int[] chunkStarts;
+
+    // Per chunk, open-addressed tables from a chunk to the first position
+    // holding it, and a list through the other positions holding it.
+    private final long[][] chunkKeys;
+    private final int[][] chunkHeads;
+    private final int[][] chunkNext;
+
+    /**
+     * @param capacity largest number of melodies added between clears
+     * @param radius largest distance of near melodies, up to MAX_RADIUS,
+     *               or 0 to only find identical melodies
+     */
+    public SimilarityIndex(int capacity, int radius) {
+        if (radius < 0 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("Radius " + radius);
+        }
+        this.radius = radius;
+        // Tables at most half full.
+        int tableSize = Integer.highestOneBit(Math.max(1, capacity) * 2 - 1)
+                * 2;
+        mask = tableSize - 1;
+        firsts = new long[capacity];
+        seconds = new long[capacity];
+        counts = new int[capacity];
+        niches = new double[capacity];
+        exact = new int[tableSize];
+
+        int chunks = radius > 0 ? radius + 1 : 0;
+        chunkStarts = new int[chunks + 1];
+        for (int c = 0; c <= chunks; c++) {
+            chunkStarts[c] = getUnitStart(c * UNITS / Math.max(1, chunks));
+        }
+        chunkKeys = new long[chunks][tableSize];
+        chunkHeads = new int[chunks][tableSize];
+        chunkNext = new int[chunks][capacity];
+        clear();
+    }
+
+    /**
+     * @return number of melodies added since the last clear
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of different melodies added since the last clear
+     */
+    public int getUnique() {
+        return unique;
+    }
+
+    /**
+     * Forgets every melody, e.x. before the next generation.
+     */
+    public void clear() {
+        size = 0;
+        unique = 0;
+        Arrays.fill(exact, 0);
+        for (int[] heads : chunkHeads) {
+            Arrays.fill(heads, EMPTY);
+        }
+    }
+
+    /**
+     * Adds a melody. Niche counts asked for before are forgotten.
+     *
+     * @param first packed first measure
+     * @param second packed second measure
+     */
+    public void add(long first, long second) {
+        size++;
+        if (nichesKept) {
+            Arrays.fill(niches, 0, unique, Double.NaN);
+            nichesKept = false;
+        }
+        int position = find(first, second);
+        if (position >= 0) {
+            counts[position]++;
+            return;
+        }
+
+        position = unique++;
+        firsts[position] = first;
+        seconds[position] = second;
+        counts[position] = 1;
+        niches[position] = Double.NaN;
+        int slot = hash(Melody.fingerprint(first, second));
+        while (exact[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        exact[slot] = position + 1;
+
+        for (int c = 0; c < chunkKeys.length; c++) {
+            long key = getChunk(first, second, c);
+            slot = findChunk(c, key);
+            if (chunkHeads[c][slot] == EMPTY) {
+                chunkKeys[c][slot] = key;
+            }
+            chunkNext[c][position] = chunkHeads[c][slot];
+            chunkHeads[c][slot] = position;
+        }
+    }
+
+    /**
+     * @param first packed first measure
+     * @param second packed second measure
+     * @return true if an identical melody was added
+     */
+    public boolean contains(long first, long second) {
+        return find(first, second) >= 0;
+    }
+
+    /**
+     * Niche count of fitness sharing: every melody added at distance d of
+     * at most the radius counts 1 - d / (radius + 1), so identical melodies
+     * count 1 each, including the melody itself if it was added.
+     *
+     * @param first packed first measure
+     * @param second packed second measure
+     * @return niche count of the melody, 0 if no melody is near it
+     */
+    public double getNiche(long first, long second) {
+        if (radius == 0) {
+            throw new IllegalStateException("The index has no radius");
+        }
+        int position = find(first, second);
+        if (position >= 0 && !Double.isNaN(niches[position])) {
+            return niches[position];
+        }
+
+        double niche = 0;
+        for (int c = 0; c < chunkKeys.length; c++) {
+            int slot = findChunk(c, getChunk(first, second, c));
+            for (int j = chunkHeads[c][slot]; j != EMPTY;
+                 j = chunkNext[c][j]) {
+                // A melody sharing an earlier chunk was counted already.
+                if (sharesChunk(first, second, firsts[j], seconds[j], c)) {
+                    continue;
+                }
+                int distance = getDistance(first, second, firsts[j],
+                        seconds[j]);
+                if (distance <= radius) {
+                    niche += counts[j]
+                            * (1 - (double) distance / (radius + 1));
+                }
+            }
+        }
+        if (position >= 0) {
+            niches[position] = niche;
+            nichesKept = true;
+        }
+        return niche;
+    }
+
+    /**
+     * @return Hamming distance between the 424-bit encodings of two packed
+     * melodies
+     */
+    public static int getDistance(long first, long second,
+                                  long otherFirst, long otherSecond) {
+        return getDistance(first, otherFirst)
+                + getDistance(second, otherSecond);
+    }
+
+    /**
+     * @return Hamming distance between the encodings of two packed
+     * measures
+     */
+    static int getDistance(long measure, long other) {
+        int chords = Long.bitCount((measure ^ other) & Melody.CHORD_MASK);
+        int ties = Long.bitCount((measure ^ other) & TIES);
+
+        // Adding the pitch mask to a slot's pitch carries into its tie bit
+        // if the pitch isn't 0.
+        long pitches = measure & PITCHES;
+        long otherPitches = other & PITCHES;
+        long differ = ((pitches ^ otherPitches) + PITCHES) & TIES;
+        long notes = (pitches + PITCHES) & TIES;
+        long otherNotes = (otherPitches + PITCHES) & TIES;
+        return chords + ties + Long.bitCount(differ & notes)
+                + Long.bitCount(differ & otherNotes);
+    }
+
+    /**
+     * @return position of an identical melody, or -1 if none was added
+     */
+    private int find(long first, long second) {
+        int slot = hash(Melody.fingerprint(first, second));
+        while (exact[slot] != 0) {
+            int position = exact[slot] - 1;
+            if (firsts[position] == first && seconds[position] == second) {
+                return position;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return slot of a chunk's table holding the key, or the empty slot
+     * where it goes
+     */
+    private int findChunk(int chunk, long key) {
+        long[] keys = chunkKeys[chunk];
+        int[] heads = chunkHeads[chunk];
+        int slot = hash(key);
+        while (heads[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return true if two melodies share one of the chunks before the
+     * given one
+     */
+    private boolean sharesChunk(long first, long second, long otherFirst,
+                                long otherSecond, int chunk) {
+        for (int c = 0; c < chunk; c++) {
+            if (getChunk(first, second, c)
+                    == getChunk(otherFirst, otherSecond, c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param chunk 0 to radius
+     * @return bits of the chunk of a packed melody, the first measure's
+     * bits before the second's
+     */
+    private long getChunk(long first, long second, int chunk) {
+        int start = chunkStarts[chunk];
+        int length = chunkStarts[chunk + 1] - start;
+        long bits;
+        if (start >= MEASURE_BITS) {
+            bits = second >>> (start - MEASURE_BITS);
+        } else {
+            bits = first >>> start | second << (MEASURE_BITS - start);
+        }
+        return bits & ((1L << length) - 1);
+    }
+
+    /**
+     * @param unit index of a chord or slot, up to UNITS
+     * @return its first bit in the two measures
+     */
+    private static int getUnitStart(int unit) {
+        int measure = unit / (UNITS / Melody.NUMBER_MEASURES);
+        int inMeasure = unit % (UNITS / Melody.NUMBER_MEASURES);
+        int start = inMeasure == 0 ? 0
+                : Melody.CHORD_BITS + (inMeasure - 1) * Melody.SLOT_BITS;
+        return measure * MEASURE_BITS + start;
+    }
+
+    private int hash(long key) {
+        return (int) (Melody.fingerprint(key, 0) >>> 32) & mask;
+    }
+
+    /**
+     * @param code bits of one slot code
+     * @return the bits in every slot of a measure
+     */
+    private static long slotMask(int code) {
+        long bits = 0;
+        for (int slot = 0; slot < Melody.SLOTS_PER_MEASURE; slot++) {
+            bits |= (long) code << (Melody.CHORD_BITS
+                    + slot * Melody.SLOT_BITS);
+        }
+        return bits;
+    }
+}
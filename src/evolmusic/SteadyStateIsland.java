@@ -0,0 +1,338 @@
+package evolmusic;
+
+import java.util.SplittableRandom;
+
+/**
+ * One population evolving without generations. Every worker thread breeds
+ * an offspring from the current seeds, scores it, and puts it in place of
+ * the worst melody in the population, then starts on the next one. The
+ * scorer never waits for the rest of a generation to be scored or bred.
+ *
+ * The run scores as many melodies as the generational Island creates.
+ * Every population size - NUMBER_SEEDS offspring count as a generation for
+ * milestones and reports. Melodies replace each other in the order workers
+ * finish them, so only a run with one worker repeats exactly from a seed.
+ */
+public class SteadyStateIsland implements Runnable {
+
+    private final Scorer[] workers;
+    private final SplittableRandom random;
+    private final HallOfFame hallOfFame;
+    private final String directory;
+
+    private final Melody[] population;
+    private final double[] scores;
+
+    // Offspring bred per generation of the generational Island.
+    private final int offspringPerGeneration;
+
+    // Random melodies of the first generation, then the offspring.
+    private final long totalEvaluations;
+
+    // Melodies handed out to workers, and melodies scored, so far.
+    private long started;
+    private long evaluations;
+    private int filled;
+
+    // Indices of the scored melodies in a min-heap of their scores, the
+    // worst melody at the root.
+    private final int[] heap;
+
+    // Indices of the seeds, best first, kept once the first generation is
+    // scored.
+    private int[] seedIndices;
+    private final boolean[] isSeed;
+
+    // Current seeds, replaced rather than changed so workers can breed
+    // from them outside the lock.
+    private Melody[] seeds;
+    private long start;
+
+    /**
+     * @param workers scorers to keep busy, one thread each
+     * @param populationSize number of melodies in the population
+     * @param hallOfFame best melodies of the run
+     * @param directory directory for this island's files
+     * @param random random number stream, split into one per worker
+     */
+    public SteadyStateIsland(Scorer[] workers, int populationSize,
+                             HallOfFame hallOfFame, String directory,
+                             SplittableRandom random) {
+        this.workers = workers.clone();
+        population = new Melody[populationSize];
+        scores = new double[populationSize];
+        heap = new int[populationSize];
+        isSeed = new boolean[populationSize];
+        offspringPerGeneration =
+                populationSize - EvolutionaryMusic.NUMBER_SEEDS;
+        totalEvaluations = populationSize
+                + (long) (EvolutionaryMusic.NUMBER_GENERATIONS - 1)
+                * offspringPerGeneration;
+        this.random = random;
+        this.hallOfFame = hallOfFame;
+        this.directory = directory;
+    }
+
+    @Override
+    public void run() {
+        start = System.nanoTime();
+        Thread[] threads = new Thread[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            final Scorer worker = workers[i];
+            final SplittableRandom workerRandom = random.split();
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    evolve(worker, workerRandom);
+                }
+            }, "steady-state-" + (i + 1));
+            threads[i].start();
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Evolution was interrupted. Exiting...");
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        int hits = 0;
+        int misses = 0;
+        for (Scorer worker : workers) {
+            if (worker instanceof CachingScorer) {
+                hits += ((CachingScorer) worker).getHits();
+                misses += ((CachingScorer) worker).getMisses();
+            }
+        }
+        System.out.println("Cache hits: " + hits + ", misses: " + misses);
+        System.out.println("Evaluations per second: "
+                + EvolutionaryMusic.getRate(evaluations, start));
+    }
+
+    /**
+     * Breeds and scores melodies one at a time until the run is over.
+     *
+     * @param scorer scorer used only by this thread
+     * @param random random number stream used only by this thread
+     */
+    private void evolve(Scorer scorer, SplittableRandom random) {
+        RandomMelody randomGenerator = new RandomMelody(
+                EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE, random);
+        Breeder breeder = new Breeder(EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE, random);
+        Melody[] melody = new Melody[1];
+        double[] score = new double[1];
+
+        while (true) {
+            long ticket;
+            Melody[] parents;
+            synchronized (this) {
+                if (started == totalEvaluations) {
+                    return;
+                }
+                ticket = started++;
+
+                // Breeding waits until the first generation is scored.
+                while (ticket >= population.length
+                        && filled < population.length) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        System.out.println("Evolution was interrupted. " +
+                                "Exiting...");
+                        e.printStackTrace();
+                        System.exit(1);
+                    }
+                }
+                parents = seeds;
+            }
+
+            if (ticket < population.length) {
+                melody[0] = randomGenerator.getMelody();
+            } else {
+                melody[0] = breeder.breed(parents,
+                        EvolutionaryMusic.MUTATION_RATE);
+            }
+            scorer.score(melody, 0, 1, score);
+            hallOfFame.offer(melody[0], score[0]);
+
+            synchronized (this) {
+                replace((int) Math.min(ticket, population.length),
+                        melody[0], score[0]);
+            }
+        }
+    }
+
+    /**
+     * Puts a scored melody in the population.
+     *
+     * @param index index of a melody of the first generation, or the
+     * population size for offspring, which replace the worst melody
+     * @param melody the melody
+     * @param score its score
+     */
+    private void replace(int index, Melody melody, double score) {
+        boolean replacedSeed = false;
+        if (index < population.length) {
+            population[index] = melody;
+            scores[index] = score;
+            siftUp(filled++, index);
+        } else {
+            index = heap[0];
+            replacedSeed = isSeed[index];
+            population[index] = melody;
+            scores[index] = score;
+            siftDown(0, index);
+        }
+
+        if (filled == population.length) {
+            if (seeds == null || replacedSeed) {
+                selectSeeds();
+                notifyAll();
+            } else if (ranksAbove(index,
+                    seedIndices[seedIndices.length - 1])) {
+                insertSeed(index);
+            }
+        }
+
+        evaluations++;
+        long offspring = evaluations - population.length;
+        if (offspring >= 0 && offspring % offspringPerGeneration == 0) {
+            endGeneration((int) (offspring / offspringPerGeneration) + 1);
+        }
+    }
+
+    /**
+     * Moves a melody up the heap from a position to where it belongs.
+     */
+    private void siftUp(int position, int index) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!isWorse(index, heap[parent])) {
+                break;
+            }
+            heap[position] = heap[parent];
+            position = parent;
+        }
+        heap[position] = index;
+    }
+
+    /**
+     * Moves a melody down the full heap from a position to where it
+     * belongs.
+     */
+    private void siftDown(int position, int index) {
+        while (2 * position + 1 < heap.length) {
+            // Move towards the worse child.
+            int child = 2 * position + 1;
+            if (child + 1 < heap.length
+                    && isWorse(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!isWorse(heap[child], index)) {
+                break;
+            }
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = index;
+    }
+
+    /**
+     * @return true if melody i is replaced before melody j: NaN first,
+     * then the lower score, then the lower index
+     */
+    private boolean isWorse(int i, int j) {
+        double score = scores[i];
+        double other = scores[j];
+        if (Double.isNaN(score) || Double.isNaN(other)) {
+            return Double.isNaN(score) && (!Double.isNaN(other) || i < j);
+        }
+        return score < other || (score == other && i < j);
+    }
+
+    /**
+     * @return true if melody i ranks above melody j for seeds, as in TopK
+     */
+    private boolean ranksAbove(int i, int j) {
+        double score = Double.isNaN(scores[i]) ? Double.NEGATIVE_INFINITY
+                : scores[i];
+        double other = Double.isNaN(scores[j]) ? Double.NEGATIVE_INFINITY
+                : scores[j];
+        return score > other || (score == other && i < j);
+    }
+
+    /**
+     * Picks the NUMBER_SEEDS best melodies of the whole population as
+     * seeds, once the first generation is scored or when a seed was
+     * replaced.
+     */
+    private void selectSeeds() {
+        if (seedIndices != null) {
+            for (int seedIndex : seedIndices) {
+                isSeed[seedIndex] = false;
+            }
+        }
+        seedIndices = TopK.select(scores, EvolutionaryMusic.NUMBER_SEEDS);
+        for (int seedIndex : seedIndices) {
+            isSeed[seedIndex] = true;
+        }
+        publishSeeds();
+    }
+
+    /**
+     * Puts a melody that ranks above the lowest seed among the seeds, in
+     * place of that seed.
+     */
+    private void insertSeed(int index) {
+        int position = seedIndices.length - 1;
+        isSeed[seedIndices[position]] = false;
+        while (position > 0 && ranksAbove(index,
+                seedIndices[position - 1])) {
+            seedIndices[position] = seedIndices[position - 1];
+            position--;
+        }
+        seedIndices[position] = index;
+        isSeed[index] = true;
+        publishSeeds();
+    }
+
+    /**
+     * Hands the melodies of the seed indices to the workers.
+     */
+    private void publishSeeds() {
+        Melody[] newSeeds = new Melody[seedIndices.length];
+        for (int i = 0; i < newSeeds.length; i++) {
+            newSeeds[i] = population[seedIndices[i]];
+        }
+        seeds = newSeeds;
+    }
+
+    /**
+     * Saves the seeds at milestones, as the generational Island does.
+     *
+     * @param generation number of generations' worth of melodies scored
+     */
+    private void endGeneration(int generation) {
+        if (!EvolutionaryMusic.MILESTONES.contains(generation)) {
+            return;
+        }
+        System.out.println("Generation " + generation + ": "
+                + EvolutionaryMusic.getRate(evaluations, start)
+                + " evaluations per second");
+
+        final String SAVE_FOLDER =
+                directory + "/0GEN_" + generation + "SAVED";
+        EvolutionaryMusic.createFolder(SAVE_FOLDER);
+        for (int i = 0; i < seeds.length; i++) {
+            // Named by population index, as the generational Island does.
+            final String SAVE_FILE = SAVE_FOLDER + "/RANK_" + seedIndices[i]
+                    + ".mid";
+            EvolutionaryMusic.saveMidi(seeds[i], SAVE_FILE);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package evolmusic;
+
+import java.util.Arrays;
+
+/**
+ * Cheap stand-in for the neural net, to rank offspring before they are
+ * scored: a logistic model over the 424 bits of a melody's encoding,
+ * learned online from the real scores of every generation.
+ *
+ * Only the order of predictions matters, so predict() returns the model's
+ * logit rather than a score. measure() compares the predictions made for a
+ * generation to its real scores: the hit rate is the share of the melodies
+ * ranked in the top NUMBER_SEEDS that really are, and the rank correlation
+ * is Spearman's between predictions and scores.
+ *
+ * Not thread-safe, every island learns its own Surrogate.
+ */
+public class Surrogate {
+
+    public static final int WEIGHTS = Melody.DIMENSION + 1; // with bias
+
+    private static final double LEARNING_RATE = 0.5;
+
+    // Weight of every bit, then the bias.
+    private final double[] weights;
+    private final int[] setBits = new int[Melody.MAX_SET_BITS];
+
+    private double hitRate;
+    private double rankCorrelation;
+
+    public Surrogate() {
+        this(new double[WEIGHTS]);
+    }
+
+    /**
+     * @param weights WEIGHTS weights of a model learned before, e.x. from a
+     *                Checkpoint
+     */
+    public Surrogate(double[] weights) {
+        if (weights.length != WEIGHTS) {
+            throw new IllegalArgumentException("Expected " + WEIGHTS
+                    + " weights");
+        }
+        this.weights = weights.clone();
+    }
+
+    /**
+     * @return the weights of the model, in a new array
+     */
+    public double[] getWeights() {
+        return weights.clone();
+    }
+
+    /**
+     * @param first packed first measure
+     * @param second packed second measure
+     * @return logit of the predicted score, higher for a better melody
+     */
+    public double predict(long first, long second) {
+        int count = Melody.getSetBits(first, second, setBits);
+        return predict(count);
+    }
+
+    /**
+     * Learns from the real scores of a generation, one melody at a time.
+     *
+     * @param generation the scored generation
+     */
+    public void train(PopulationStore.Generation generation) {
+        for (int i = 0; i < generation.size(); i++) {
+            int count = Melody.getSetBits(generation.getMeasure(i, 0),
+                    generation.getMeasure(i, 1), setBits);
+            double prediction = 1 / (1 + Math.exp(-predict(count)));
+
+            // Gradient of the cross entropy with the score as the target,
+            // spread over the bits set.
+            double step = LEARNING_RATE * (generation.getScore(i)
+                    - prediction) / (count + 1);
+            weights[Melody.DIMENSION] += step;
+            for (int j = 0; j < count; j++) {
+                weights[setBits[j]] += step;
+            }
+        }
+    }
+
+    /**
+     * Compares predictions to the real scores of the melodies they were
+     * made for.
+     *
+     * @param generation the scored generation
+     * @param from index of the first melody predicted
+     * @param predictions prediction of every melody, by index
+     */
+    public void measure(PopulationStore.Generation generation, int from,
+                        double[] predictions) {
+        int size = generation.size() - from;
+        double[] predicted = Arrays.copyOfRange(predictions, from,
+                generation.size());
+        double[] scores = generation.getScores(from, generation.size());
+
+        int k = Math.min(EvolutionaryMusic.NUMBER_SEEDS, size);
+        int[] best = TopK.select(scores, k);
+        Arrays.sort(best);
+        int hits = 0;
+        for (int index : TopK.select(predicted, k)) {
+            if (Arrays.binarySearch(best, index) >= 0) {
+                hits++;
+            }
+        }
+        hitRate = k == 0 ? 0 : (double) hits / k;
+        rankCorrelation = getCorrelation(getRanks(predicted),
+                getRanks(scores));
+    }
+
+    /**
+     * @return hit rate of the last generation measured
+     */
+    public double getHitRate() {
+        return hitRate;
+    }
+
+    /**
+     * @return Spearman's rank correlation of the last generation measured
+     */
+    public double getRankCorrelation() {
+        return rankCorrelation;
+    }
+
+    /**
+     * @param count number of set bits in setBits
+     * @return logit of the melody with the set bits
+     */
+    private double predict(int count) {
+        double logit = weights[Melody.DIMENSION];
+        for (int j = 0; j < count; j++) {
+            logit += weights[setBits[j]];
+        }
+        return logit;
+    }
+
+    /**
+     * @param values some values
+     * @return rank of every value, starting from 1, ties getting the mean
+     * of their ranks
+     */
+    private static double[] getRanks(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double[] ranks = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            int low = lowerBound(sorted, values[i]);
+            int high = lowerBound(sorted, Math.nextUp(values[i]));
+            ranks[i] = (low + high + 1) / 2.0;
+        }
+        return ranks;
+    }
+
+    /**
+     * @return index of the first value in sorted that isn't below value
+     */
+    private static int lowerBound(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return Pearson's correlation of two samples, 0 if either is
+     * constant
+     */
+    private static double getCorrelation(double[] x, double[] y) {
+        int n = x.length;
+        double meanX = 0;
+        double meanY = 0;
+        for (int i = 0; i < n; i++) {
+            meanX += x[i] / n;
+            meanY += y[i] / n;
+        }
+        double covariance = 0;
+        double varianceX = 0;
+        double varianceY = 0;
+        for (int i = 0; i < n; i++) {
+            covariance += (x[i] - meanX) * (y[i] - meanY);
+            varianceX += (x[i] - meanX) * (x[i] - meanX);
+            varianceY += (y[i] - meanY) * (y[i] - meanY);
+        }
+        if (varianceX == 0 || varianceY == 0) {
+            return 0;
+        }
+        return covariance / Math.sqrt(varianceX * varianceY);
+    }
+}
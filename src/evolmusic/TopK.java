@@ -0,0 +1,146 @@
+package evolmusic;
+
+/**
+ * Keeps the indices of the K highest scores seen so far, in a bounded
+ * min-heap over primitive arrays. Offering n scores costs O(n log K).
+ *
+ * Equal scores are ranked by index, lowest index first, so the selection
+ * never depends on the order scores are offered in. NaN counts as the
+ * lowest possible score.
+ *
+ * Not thread-safe.
+ */
+public class TopK {
+
+    private final int[] indices;
+    private final double[] scores;
+    private int size;
+
+    /**
+     * @param k number of indices to keep
+     */
+    public TopK(int k) {
+        indices = new int[k];
+        scores = new double[k];
+    }
+
+    /**
+     * Selects the top K of a whole population in one pass.
+     *
+     * @param populationScores score of each melody in the population
+     * @param k number of indices wanted
+     * @return indices of the top min(k, n) scores, best first
+     */
+    public static int[] select(double[] populationScores, int k) {
+        TopK top = new TopK(k);
+        for (int i = 0; i < populationScores.length; i++) {
+            top.offer(i, populationScores[i]);
+        }
+        return top.getIndices();
+    }
+
+    /**
+     * Considers one more score.
+     *
+     * @param index index of the melody in the population
+     * @param score the melody's score
+     */
+    public void offer(int index, double score) {
+        if (Double.isNaN(score)) {
+            score = Double.NEGATIVE_INFINITY;
+        }
+        if (size < indices.length) {
+            siftUp(size++, index, score);
+        } else if (size > 0 && isBetter(score, index, scores[0],
+                indices[0])) {
+            siftDown(0, index, score, size);
+        }
+    }
+
+    /**
+     * @return number of indices kept so far, at most K
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return lowest score kept, or negative infinity if fewer than K
+     * scores were offered
+     */
+    public double getThreshold() {
+        return size < indices.length ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+    /**
+     * @return indices kept, best score first
+     */
+    public int[] getIndices() {
+        int[] heapIndices = indices.clone();
+        double[] heapScores = scores.clone();
+        int[] sorted = new int[size];
+
+        // Pop the worst off a copy of the heap until it is empty.
+        for (int n = size; n > 0; n--) {
+            sorted[n - 1] = heapIndices[0];
+            int lastIndex = heapIndices[n - 1];
+            double lastScore = heapScores[n - 1];
+            siftDown(heapIndices, heapScores, 0, lastIndex, lastScore, n - 1);
+        }
+        return sorted;
+    }
+
+    /**
+     * Forgets every score, e.x. before the next generation.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    private void siftUp(int position, int index, double score) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!isBetter(scores[parent], indices[parent], score, index)) {
+                break;
+            }
+            indices[position] = indices[parent];
+            scores[position] = scores[parent];
+            position = parent;
+        }
+        indices[position] = index;
+        scores[position] = score;
+    }
+
+    private void siftDown(int position, int index, double score, int n) {
+        siftDown(indices, scores, position, index, score, n);
+    }
+
+    private static void siftDown(int[] indices, double[] scores, int position,
+                                 int index, double score, int n) {
+        while (2 * position + 1 < n) {
+            // Move towards the worse child.
+            int child = 2 * position + 1;
+            if (child + 1 < n && isBetter(scores[child], indices[child],
+                    scores[child + 1], indices[child + 1])) {
+                child++;
+            }
+            if (!isBetter(score, index, scores[child], indices[child])) {
+                break;
+            }
+            indices[position] = indices[child];
+            scores[position] = scores[child];
+            position = child;
+        }
+        indices[position] = index;
+        scores[position] = score;
+    }
+
+    /**
+     * @return true if (score, index) ranks above (otherScore, otherIndex)
+     */
+    private static boolean isBetter(double score, int index,
+                                    double otherScore, int otherIndex) {
+        return score > otherScore || (score == otherScore
+                && index < otherIndex);
+    }
+}
@@ -0,0 +1,177 @@
+package evolmusic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CheckpointTest {
+
+    private static final int POPULATION_SIZE = 60;
+    private static final int INTERVAL = 10;
+    private static final long WEIGHTS = 0x1234567890L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatWasSaved() throws IOException {
+        SplittableRandom random = new SplittableRandom(1);
+        RandomMelody generator = new RandomMelody(
+                EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE, random);
+        PopulationStore.Generation population =
+                new PopulationStore.Generation(POPULATION_SIZE);
+        HallOfFame hallOfFame = new HallOfFame(EvolutionaryMusic.NUMBER_SEEDS);
+        for (int i = 0; i < POPULATION_SIZE; i++) {
+            population.setMelody(i, generator.getMelody());
+            population.setScore(i, random.nextDouble());
+            population.setParents(i, i - 1, random.nextInt(POPULATION_SIZE));
+            hallOfFame.offer(generator.getMelody(), random.nextDouble());
+        }
+
+        String filename = new File(folder.getRoot(), "CHECKPOINT").getPath();
+        Checkpoint checkpoint = new Checkpoint(filename, INTERVAL, 7,
+                WEIGHTS, POPULATION_SIZE, 1, 25, 3, true, true, 2, 0,
+                hallOfFame);
+        checkpoint.save(0, 30, population, null);
+
+        HallOfFame resumedHallOfFame =
+                new HallOfFame(EvolutionaryMusic.NUMBER_SEEDS);
+        Checkpoint resumed = Checkpoint.read(filename, INTERVAL, WEIGHTS,
+                resumedHallOfFame);
+        assertEquals(30, resumed.getGeneration());
+        assertEquals(7, resumed.getSeed());
+        assertEquals(POPULATION_SIZE, resumed.getPopulationSize());
+        assertEquals(1, resumed.getNumberIslands());
+        assertEquals(25, resumed.getMigrationInterval());
+        assertEquals(3, resumed.getMigrants());
+        assertEquals(true, resumed.isRing());
+        assertEquals(true, resumed.isDedupe());
+        assertEquals(2, resumed.getSharingRadius());
+        assertEquals(0, resumed.getCandidates());
+
+        assertArrayEquals(hallOfFame.getMelodies(),
+                resumedHallOfFame.getMelodies());
+        assertArrayEquals(hallOfFame.getScores(),
+                resumedHallOfFame.getScores(), 0);
+        PopulationStore.Generation read = resumed.getPopulation(0);
+        for (int i = 0; i < POPULATION_SIZE; i++) {
+            assertEquals(population.getMelody(i), read.getMelody(i));
+            assertEquals(population.getScore(i), read.getScore(i), 0);
+            assertEquals(population.getParent(i, 0), read.getParent(i, 0));
+            assertEquals(population.getParent(i, 1), read.getParent(i, 1));
+        }
+    }
+
+    @Test
+    public void resumedRunEvolvesTheSameGenerations() throws IOException {
+        assertResumesTheSame(false, 0, 0, 500);
+    }
+
+    @Test
+    public void resumedRunKeepsItsSimilarityIndexAndSurrogate()
+            throws IOException {
+        assertResumesTheSame(true, 2, 2, 300);
+    }
+
+    /**
+     * Runs an island to the end, saving snapshots, and runs it again from
+     * the snapshot of one generation. Both runs must score the same
+     * generations from there on and end with the same hall of fame.
+     */
+    private void assertResumesTheSame(boolean dedupe, int sharingRadius,
+                                      int candidates, int resumeAt)
+            throws IOException {
+        String filename = new File(folder.getRoot(), "CHECKPOINT").getPath();
+        String snapshot = new File(folder.getRoot(), "SNAPSHOT").getPath();
+
+        HallOfFame hallOfFame = new HallOfFame(EvolutionaryMusic.NUMBER_SEEDS);
+        Checkpoint checkpoint = new Checkpoint(filename, INTERVAL, 7,
+                WEIGHTS, POPULATION_SIZE, 1, 0, 0, false, dedupe,
+                sharingRadius, candidates, hallOfFame);
+        RecordingScorer full = new RecordingScorer(filename, snapshot,
+                resumeAt);
+        run(full, hallOfFame, checkpoint, "full");
+
+        HallOfFame resumedHallOfFame =
+                new HallOfFame(EvolutionaryMusic.NUMBER_SEEDS);
+        Checkpoint resumed = Checkpoint.read(snapshot, INTERVAL, WEIGHTS,
+                resumedHallOfFame);
+        assertEquals(resumeAt, resumed.getGeneration());
+        RecordingScorer rest = new RecordingScorer(null, null, 0);
+        run(rest, resumedHallOfFame, resumed, "resumed");
+
+        assertEquals(EvolutionaryMusic.NUMBER_GENERATIONS,
+                full.generations.size());
+        assertEquals(full.generations.subList(resumeAt,
+                full.generations.size()), rest.generations);
+        assertArrayEquals(hallOfFame.getMelodies(),
+                resumedHallOfFame.getMelodies());
+        assertArrayEquals(hallOfFame.getScores(),
+                resumedHallOfFame.getScores(), 0);
+    }
+
+    private void run(Scorer scorer, HallOfFame hallOfFame,
+                     Checkpoint checkpoint, String directory) {
+        Island island = new Island(0, POPULATION_SIZE, scorer, null,
+                hallOfFame, folder.getRoot() + "/" + directory, null,
+                checkpoint, checkpoint.isDedupe(),
+                checkpoint.getSharingRadius(), checkpoint.getCandidates(),
+                new Metrics(1, null).newTimer(0), new SplittableRandom(7));
+        island.run();
+    }
+
+    /**
+     * Scores melodies by their fingerprints and records a digest of every
+     * generation scored. Copies the snapshot of one generation before the
+     * next overwrites it.
+     */
+    private static class RecordingScorer implements Scorer {
+        final List<Long> generations = new ArrayList<Long>();
+        private final String filename;
+        private final String snapshot;
+        private final int copyAfter;
+
+        RecordingScorer(String filename, String snapshot, int copyAfter) {
+            this.filename = filename;
+            this.snapshot = snapshot;
+            this.copyAfter = copyAfter;
+        }
+
+        @Override
+        public void score(Melody[] melodies, int from, int to,
+                          double[] scores) {
+            if (snapshot != null && generations.size() == copyAfter) {
+                try {
+                    Files.copy(new File(filename).toPath(),
+                            new File(snapshot).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            long digest = 0;
+            for (int i = from; i < to; i++) {
+                long fingerprint = melodies[i].fingerprint();
+                scores[i] = (fingerprint >>> 11) * 0x1.0p-53;
+                digest = digest * 31 + fingerprint;
+            }
+            generations.add(digest);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package evolmusic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.SplittableRandom;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FitnessCacheTest {
+
+    private static final int CAPACITY = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsAsManyScoresAsItsCapacity() {
+        FitnessCache cache = new FitnessCache(CAPACITY);
+        assertTrue(Double.isNaN(cache.get(42)));
+
+        // Consecutive fingerprints fill every slot without collisions.
+        for (long fingerprint = 0; fingerprint < CAPACITY; fingerprint++) {
+            cache.put(fingerprint, fingerprint / 8.0);
+        }
+        for (long fingerprint = 0; fingerprint < CAPACITY; fingerprint++) {
+            assertEquals(fingerprint / 8.0, cache.get(fingerprint), 0);
+        }
+
+        // A new score replaces the least recently used of its slots.
+        cache.get(0);
+        cache.put(CAPACITY, -1);
+        assertEquals(-1, cache.get(CAPACITY), 0);
+        assertEquals(0, cache.get(0), 0);
+        assertTrue(Double.isNaN(cache.get(1)));
+        for (long fingerprint = 2; fingerprint < CAPACITY; fingerprint++) {
+            assertEquals(fingerprint / 8.0, cache.get(fingerprint), 0);
+        }
+
+        // And the score of a melody scored again is replaced in place.
+        cache.put(5, 0.25);
+        assertEquals(0.25, cache.get(5), 0);
+    }
+
+    @Test
+    public void doesNotStoreNaN() {
+        FitnessCache cache = new FitnessCache(CAPACITY);
+        cache.put(7, Double.NaN);
+        assertTrue(Double.isNaN(cache.get(7)));
+        cache.put(7, 0.5);
+        cache.put(7, Double.NaN);
+        assertEquals(0.5, cache.get(7), 0);
+    }
+
+    @Test
+    public void keepsScoresOnDiskForTheSameWeights() throws IOException {
+        String weights = writeWeights("1 2 3\n");
+        String file = new File(folder.getRoot(), "cache").getPath();
+        long[] fingerprints = makeFingerprints();
+
+        FitnessCache cache = new FitnessCache(1, file, weights);
+        for (int i = 0; i < fingerprints.length; i++) {
+            cache.put(fingerprints[i], i / 4.0);
+        }
+        cache.close();
+
+        // Memory holds one score, so the rest are read from disk.
+        cache = new FitnessCache(1, file, weights);
+        for (int i = 0; i < fingerprints.length; i++) {
+            assertEquals(i / 4.0, cache.get(fingerprints[i]), 0);
+        }
+        cache.close();
+    }
+
+    @Test
+    public void clearsScoresOfOtherWeights() throws IOException {
+        String weights = writeWeights("1 2 3\n");
+        String file = new File(folder.getRoot(), "cache").getPath();
+        long[] fingerprints = makeFingerprints();
+
+        FitnessCache cache = new FitnessCache(1, file, weights);
+        for (int i = 0; i < fingerprints.length; i++) {
+            cache.put(fingerprints[i], i / 4.0);
+        }
+        cache.close();
+
+        // Same length, so only the CRC tells the weights apart.
+        long checksum = FitnessCache.checksum(weights);
+        writeWeights(weights, "1 2 4\n");
+        assertNotEquals(checksum, FitnessCache.checksum(weights));
+        cache = new FitnessCache(1, file, weights);
+        for (long fingerprint : fingerprints) {
+            assertTrue(Double.isNaN(cache.get(fingerprint)));
+        }
+        cache.close();
+
+        // The old scores are gone, not only hidden.
+        writeWeights(weights, "1 2 3\n");
+        assertEquals(checksum, FitnessCache.checksum(weights));
+        cache = new FitnessCache(1, file, weights);
+        for (long fingerprint : fingerprints) {
+            assertTrue(Double.isNaN(cache.get(fingerprint)));
+        }
+        cache.close();
+    }
+
+    private String writeWeights(String contents) throws IOException {
+        String filename = folder.newFile().getPath();
+        writeWeights(filename, contents);
+        return filename;
+    }
+
+    private static void writeWeights(String filename, String contents)
+            throws IOException {
+        Writer w = new FileWriter(filename);
+        try {
+            w.write(contents);
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * @return fingerprints of random melodies, and the fingerprint 0
+     */
+    private static long[] makeFingerprints() {
+        RandomMelody generator = new RandomMelody(
+                EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE,
+                new SplittableRandom(1));
+        long[] fingerprints = new long[1000];
+        for (int i = 1; i < fingerprints.length; i++) {
+            fingerprints[i] = generator.getMelody().fingerprint();
+        }
+        return fingerprints;
+    }
+}
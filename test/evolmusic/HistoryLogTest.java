@@ -0,0 +1,161 @@
+package evolmusic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.SplittableRandom;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HistoryLogTest {
+
+    private static final int POPULATION_SIZE = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void packsRandomMelodiesExactly() {
+        RandomMelody generator = new RandomMelody(
+                EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE, new SplittableRandom(1));
+        for (int i = 0; i < 10000; i++) {
+            Melody melody = generator.getMelody();
+            assertEquals(melody, roundTrip(melody));
+        }
+    }
+
+    @Test
+    public void packsBredMelodiesExactly() {
+        SplittableRandom random = new SplittableRandom(2);
+        RandomMelody generator = new RandomMelody(
+                EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE, random);
+        Breeder breeder = new Breeder(EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE, random);
+        Melody[] seeds = new Melody[EvolutionaryMusic.NUMBER_SEEDS];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = generator.getMelody();
+        }
+
+        // Offspring become seeds, so later ones are bred from bred ones.
+        for (int i = 0; i < 10000; i++) {
+            Melody offspring = breeder.breed(seeds,
+                    EvolutionaryMusic.MUTATION_RATE);
+            assertEquals(offspring, roundTrip(offspring));
+            seeds[i % seeds.length] = offspring;
+        }
+    }
+
+    @Test
+    public void dropsTiesThatDontHoldThePitchBefore() {
+        // A tie on the first slot, and a tie to another pitch, can't be
+        // told apart from a note in a record, so they come back untied.
+        long measure = Melody.slotBits(3, true, 0)
+                | Melody.slotBits(3, true, 1)
+                | Melody.slotBits(7, true, 2);
+        long untied = Melody.slotBits(3, false, 0)
+                | Melody.slotBits(3, true, 1)
+                | Melody.slotBits(7, false, 2);
+        assertEquals(new Melody(untied, untied),
+                roundTrip(new Melody(measure, measure)));
+    }
+
+    @Test
+    public void resumesAfterTheCheckpointedGeneration() throws IOException {
+        String directory = folder.getRoot().getPath() + "/HISTORY";
+        HistoryLog log = new HistoryLog(directory, POPULATION_SIZE, 0, 0);
+        for (int generation = 1; generation <= 250; generation++) {
+            append(log, generation, generation);
+        }
+        log.close();
+
+        // As if the run was killed while writing an index entry.
+        FileOutputStream index = new FileOutputStream(
+                HistoryLog.getIndexFile(directory), true);
+        index.write(new byte[HistoryLog.INDEX_BYTES / 2]);
+        index.close();
+
+        // Generations after 120 are logged again with other melodies.
+        log = new HistoryLog(directory, POPULATION_SIZE, 0, 120);
+        for (int generation = 121; generation <= 130; generation++) {
+            append(log, generation, 1000 + generation);
+        }
+        log.close();
+
+        assertFalse(HistoryLog.getSegmentFile(directory, 2).exists());
+        assertEquals(30 * getGenerationBytes(),
+                HistoryLog.getSegmentFile(directory, 1).length());
+        assertEquals(130 * HistoryLog.INDEX_BYTES,
+                HistoryLog.getIndexFile(directory).length());
+
+        HistoryReader reader = new HistoryReader(directory);
+        assertEquals(1, reader.getFirstGeneration());
+        assertEquals(130, reader.getLastGeneration());
+        for (int generation = 1; generation <= 130; generation++) {
+            PopulationStore.Generation expected = makeGeneration(
+                    generation <= 120 ? generation : 1000 + generation);
+            assertEquals(POPULATION_SIZE, reader.size(generation));
+            for (int i = 0; i < POPULATION_SIZE; i++) {
+                assertEquals(expected.getMelody(i),
+                        reader.getMelody(generation, i));
+                assertEquals(expected.getScore(i),
+                        reader.getScore(generation, i), 0);
+            }
+            int[] seedIndices = getSeedIndices(expected);
+            int[] ranked = new int[reader.getRanked(generation)];
+            for (int rank = 0; rank < ranked.length; rank++) {
+                ranked[rank] = reader.getIndex(generation, rank);
+            }
+            assertArrayEquals(seedIndices, ranked);
+        }
+    }
+
+    private static Melody roundTrip(Melody melody) {
+        ByteBuffer buffer = ByteBuffer.allocate(HistoryLog.MELODY_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        HistoryLog.pack(melody.getMeasure(0), melody.getMeasure(1), buffer);
+        assertEquals(HistoryLog.MELODY_BYTES, buffer.position());
+        return HistoryLog.unpack(buffer, 0);
+    }
+
+    private static void append(HistoryLog log, int generation, long seed) {
+        PopulationStore.Generation population = makeGeneration(seed);
+        log.append(generation, population, getSeedIndices(population));
+    }
+
+    /**
+     * @return random melodies and scores, the same for the same seed
+     */
+    private static PopulationStore.Generation makeGeneration(long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        RandomMelody generator = new RandomMelody(
+                EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE, random);
+        PopulationStore.Generation population =
+                new PopulationStore.Generation(POPULATION_SIZE);
+        for (int i = 0; i < POPULATION_SIZE; i++) {
+            population.setMelody(i, generator.getMelody());
+            population.setScore(i, random.nextDouble());
+        }
+        return population;
+    }
+
+    private static int[] getSeedIndices(PopulationStore.Generation population) {
+        return TopK.select(population.getScores(0, population.size()),
+                EvolutionaryMusic.NUMBER_SEEDS);
+    }
+
+    private static long getGenerationBytes() {
+        return (long) POPULATION_SIZE * HistoryLog.RECORD_BYTES
+                + 4 * EvolutionaryMusic.NUMBER_SEEDS;
+    }
+}
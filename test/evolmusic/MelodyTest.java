@@ -0,0 +1,176 @@
+package evolmusic;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+public class MelodyTest {
+
+    // A melody written by hand, as a line of the neural net's input file
+    // and as its JFugue string.
+    private static final String EXAMPLE_LINE = "0.0 "
+            + "1 0 1 0 0 1 0 0 0 1 0 0 0 0 1 0 0 1 0 1 0 0 0 1 "
+            + notes(new int[]{10, 10, 15, 15, 17, 17, 15, 15},
+                    new int[]{0, 1, 0, 1, 0, 1, 0, 1})
+            + notes(new int[]{22, 22, 17, 17, 13, 13, 15, 15},
+                    new int[]{0, 1, 0, 1, 0, 1, 0, 1});
+    private static final String EXAMPLE_SONG =
+            "C5w+D5w+F5w+A5w+A5ii_D6ii_E6ii_D6ii "
+                    + "D5w+F5w+G5w+B5w+A6ii_E6ii_C6ii_D6ii";
+
+    private final Bitifier bitifier = new Bitifier();
+    private final Notationizer notationizer = new Notationizer();
+
+    @Test
+    public void decodesAHandWrittenMelody() {
+        Melody melody = Melody.valueOf(notationizer.translate(
+                EXAMPLE_LINE.trim()));
+        assertEquals(EXAMPLE_SONG, notationizer.translate(melody));
+        assertEquals(EXAMPLE_LINE, getLine(melody));
+        assertEquals(melody, Melody.valueOf(EXAMPLE_SONG));
+    }
+
+    @Test
+    public void encodesEveryBitAsTranslatorDescribes() {
+        RandomMelody generator = newGenerator(new SplittableRandom(1));
+        int[] setBits = new int[Melody.MAX_SET_BITS];
+        for (int i = 0; i < 10000; i++) {
+            Melody melody = generator.getMelody();
+            String expected = getBits(melody);
+            assertEquals(expected, bitifier.translate(melody));
+
+            // Set bits in order, and single bits, agree with the string.
+            int count = melody.getSetBits(setBits);
+            StringBuilder fromSetBits = new StringBuilder(
+                    zeros(Melody.DIMENSION));
+            for (int b = 0; b < count; b++) {
+                fromSetBits.setCharAt(setBits[b], '1');
+                if (b > 0) {
+                    assertEquals(true, setBits[b] > setBits[b - 1]);
+                }
+            }
+            assertEquals(expected, fromSetBits.toString());
+            for (int b = 0; b < Melody.DIMENSION; b++) {
+                assertEquals(expected.charAt(b) == '1', melody.getBit(b));
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsThroughBitifierAndNotationizer() {
+        RandomMelody generator = newGenerator(new SplittableRandom(2));
+        ByteBuffer packed = ByteBuffer.allocate(PopulationFile.PACKED_BYTES);
+        int[] setBits = new int[Melody.MAX_SET_BITS];
+        for (int i = 0; i < 10000; i++) {
+            Melody melody = generator.getMelody();
+            String song = notationizer.translate(melody);
+
+            // Bits to JFugue and back, and JFugue to bits and back. A tied
+            // rest is written as a rest, so only its tie is lost.
+            String line = getLine(melody);
+            assertEquals(song, notationizer.translate(line.trim()));
+            Melody untied = untieRests(melody);
+            assertEquals(untied, Melody.valueOf(song));
+            assertEquals(bitifier.translate(untied), bitifier.translate(song));
+            assertEquals(song, notationizer.translate(untied));
+
+            PopulationFile.pack(melody, packed, 0, setBits);
+            assertEquals(melody, PopulationFile.unpack(packed, 0));
+            assertEquals(song, notationizer.translate(packed, 0));
+        }
+    }
+
+    @Test
+    public void fingerprintsEqualMelodiesEqually() {
+        RandomMelody generator = newGenerator(new SplittableRandom(3));
+        for (int i = 0; i < 1000; i++) {
+            Melody melody = generator.getMelody();
+            Melody copy = new Melody(melody.getMeasure(0),
+                    melody.getMeasure(1));
+            assertEquals(melody, copy);
+            assertEquals(melody.hashCode(), copy.hashCode());
+            assertEquals(melody.fingerprint(), copy.fingerprint());
+            assertEquals(melody.fingerprint(), Melody.fingerprint(
+                    melody.getMeasure(0), melody.getMeasure(1)));
+        }
+    }
+
+    /**
+     * @return the melody's 424 bits, built from its chords, pitches and
+     * ties as Translator describes them
+     */
+    private static String getBits(Melody melody) {
+        StringBuilder bits = new StringBuilder();
+        for (int measure = 0; measure < Melody.NUMBER_MEASURES; measure++) {
+            for (int i = 0; i < Melody.CHORD_BITS; i++) {
+                bits.append((melody.getChord(measure) & (1 << i)) != 0
+                        ? '1' : '0');
+            }
+        }
+        for (int measure = 0; measure < Melody.NUMBER_MEASURES; measure++) {
+            for (int slot = 0; slot < Melody.SLOTS_PER_MEASURE; slot++) {
+                bits.append(melody.isTied(measure, slot) ? '1' : '0');
+                int pitch = melody.getPitch(measure, slot);
+                for (int p = 1; p < Translator.NOTE_BITS; p++) {
+                    bits.append(p == pitch ? '1' : '0');
+                }
+            }
+        }
+        return bits.toString();
+    }
+
+    /**
+     * @return the melody without the tie flags of its rests
+     */
+    private static Melody untieRests(Melody melody) {
+        long[] measures = new long[Melody.NUMBER_MEASURES];
+        for (int measure = 0; measure < measures.length; measure++) {
+            measures[measure] = melody.getMeasure(measure);
+            for (int slot = 0; slot < Melody.SLOTS_PER_MEASURE; slot++) {
+                if (melody.getPitch(measure, slot) == Melody.REST) {
+                    measures[measure] &= ~Melody.slotBits(0, true, slot);
+                }
+            }
+        }
+        return new Melody(measures[0], measures[1]);
+    }
+
+    /**
+     * @return the melody's line of the neural net's input file
+     */
+    private String getLine(Melody melody) {
+        char[] line = new char[Bitifier.LINE_LENGTH];
+        bitifier.encode(melody, line, 0);
+        return new String(line, 0, Bitifier.LINE_LENGTH - 1) + " ";
+    }
+
+    /**
+     * @return the bits of eight note slots, separated by spaces
+     */
+    private static String notes(int[] pitches, int[] ties) {
+        StringBuilder bits = new StringBuilder();
+        for (int slot = 0; slot < pitches.length; slot++) {
+            bits.append(ties[slot]).append(' ');
+            for (int p = 1; p < Translator.NOTE_BITS; p++) {
+                bits.append(p == pitches[slot] ? "1 " : "0 ");
+            }
+        }
+        return bits.toString();
+    }
+
+    private static String zeros(int count) {
+        StringBuilder zeros = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            zeros.append('0');
+        }
+        return zeros.toString();
+    }
+
+    private static RandomMelody newGenerator(SplittableRandom random) {
+        return new RandomMelody(EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE, random);
+    }
+}
@@ -0,0 +1,140 @@
+package evolmusic;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NeuralNetTest {
+
+    private static final int HIDDEN = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void scoresAHandComputedNetwork() throws IOException {
+        // No input weights, so every hidden unit is sigmoid(ln 3) = 3/4,
+        // and the output is sigmoid(4/3 * ln 3 * 3/4) = 3/4 too.
+        double ln3 = Math.log(3);
+        double[][] hidden = new double[HIDDEN][1 + Melody.DIMENSION];
+        for (double[] unit : hidden) {
+            unit[0] = ln3;
+        }
+        double[] output = {0, 4 * ln3 / 3, 0};
+        NeuralNet neuralNet = NeuralNet.load(writeWeights(hidden, output));
+
+        SplittableRandom random = new SplittableRandom(1);
+        Melody[] melodies = makeMelodies(random, 10);
+        double[] scores = new double[melodies.length];
+        neuralNet.score(melodies, 0, melodies.length, scores);
+        for (double score : scores) {
+            assertEquals(0.75, score, 1e-15);
+        }
+    }
+
+    @Test
+    public void addsTheWeightsOfTheSetBits() throws IOException {
+        // Weights that tell every input apart, of the two hidden units,
+        // and a second output that must be ignored.
+        double[][] hidden = new double[HIDDEN][1 + Melody.DIMENSION];
+        hidden[0][0] = -2;
+        hidden[1][0] = 0.5;
+        for (int i = 0; i < Melody.DIMENSION; i++) {
+            hidden[0][1 + i] = 0.25;
+            hidden[1][1 + i] = (i % 7 - 3) / 8.0;
+        }
+        double[] output = {-1, 1.5, -0.75, 9, 9, 9};
+        NeuralNet neuralNet = NeuralNet.load(writeWeights(hidden, output));
+
+        SplittableRandom random = new SplittableRandom(2);
+        Melody[] melodies = makeMelodies(random, 1000);
+        double[] scores = new double[melodies.length];
+        neuralNet.score(melodies, 0, melodies.length, scores);
+        Bitifier bitifier = new Bitifier();
+        for (int m = 0; m < melodies.length; m++) {
+            String bits = bitifier.translate(melodies[m]);
+            double first = hidden[0][0];
+            double second = hidden[1][0];
+            for (int i = 0; i < Melody.DIMENSION; i++) {
+                if (bits.charAt(i) == '1') {
+                    first += hidden[0][1 + i];
+                    second += hidden[1][1 + i];
+                }
+            }
+            double expected = sigmoid(output[0]
+                    + output[1] * sigmoid(first)
+                    + output[2] * sigmoid(second));
+            assertEquals(expected, scores[m], 1e-12);
+        }
+
+        // Packed measures score the same as Melody objects.
+        PopulationStore.Generation generation =
+                new PopulationStore.Generation(melodies.length);
+        for (int m = 0; m < melodies.length; m++) {
+            generation.setMelody(m, melodies[m]);
+        }
+        neuralNet.score(generation, 0, melodies.length);
+        for (int m = 0; m < melodies.length; m++) {
+            assertEquals(scores[m], generation.getScore(m), 0);
+        }
+    }
+
+    /**
+     * Writes a weights file in the format NeuralNet assumes.
+     *
+     * @param hidden per hidden unit, its bias and then its input weights
+     * @param output per output unit, its bias and its hidden weights
+     * @return path of the weights file
+     */
+    private String writeWeights(double[][] hidden, double[] output)
+            throws IOException {
+        File file = folder.newFile();
+        Writer w = new FileWriter(file);
+        try {
+            int outputs = output.length / (1 + HIDDEN);
+            w.write(Melody.DIMENSION + " " + HIDDEN + " " + outputs + "\n");
+            for (double[] unit : hidden) {
+                writeLine(w, unit, 0, unit.length);
+            }
+            for (int o = 0; o < outputs; o++) {
+                writeLine(w, output, o * (1 + HIDDEN), (o + 1) * (1 + HIDDEN));
+            }
+        } finally {
+            w.close();
+        }
+        return file.getPath();
+    }
+
+    private static void writeLine(Writer w, double[] values, int from,
+                                  int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            w.write(String.format(Locale.ROOT, "%.17g ", values[i]));
+        }
+        w.write("\n");
+    }
+
+    private static Melody[] makeMelodies(SplittableRandom random,
+                                         int count) {
+        RandomMelody generator = new RandomMelody(
+                EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE, random);
+        Melody[] melodies = new Melody[count];
+        for (int i = 0; i < count; i++) {
+            melodies[i] = generator.getMelody();
+        }
+        return melodies;
+    }
+
+    private static double sigmoid(double x) {
+        return 1.0 / (1.0 + Math.exp(-x));
+    }
+}
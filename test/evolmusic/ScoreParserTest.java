@@ -0,0 +1,284 @@
+package evolmusic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ScoreParserTest {
+
+    // Size of the parser's buffer.
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    @Test
+    public void parsesWhatTheNeuralNetWrites() throws IOException {
+        Random random = new Random(1);
+        List<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < 100000; i++) {
+            double score = random.nextDouble();
+            switch (i % 4) {
+                case 0:
+                    tokens.add(String.format(Locale.ROOT, "%.17g", score));
+                    break;
+                case 1:
+                    tokens.add(String.format(Locale.ROOT, "%.6f", score));
+                    break;
+                case 2:
+                    tokens.add(String.format(Locale.ROOT, "%.15e",
+                            random.nextGaussian()));
+                    break;
+                default:
+                    tokens.add(Double.toString(score));
+                    break;
+            }
+        }
+        assertParses(tokens, random);
+    }
+
+    @Test
+    public void parsesAnyDouble() throws IOException {
+        Random random = new Random(2);
+        List<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < 100000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (!Double.isNaN(value)) {
+                tokens.add(Double.toString(value));
+            }
+        }
+        assertParses(tokens, random);
+    }
+
+    @Test
+    public void parsesRandomDigitsAndExponents() throws IOException {
+        Random random = new Random(3);
+        List<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < 100000; i++) {
+            StringBuilder token = new StringBuilder();
+            if (random.nextBoolean()) {
+                token.append(random.nextBoolean() ? '-' : '+');
+            }
+            int digits = 1 + random.nextInt(25);
+            for (int d = 0; d < digits; d++) {
+                token.append((char) ('0' + random.nextInt(10)));
+            }
+            if (random.nextBoolean()) {
+                token.insert(token.length() - random.nextInt(digits), '.');
+            }
+            token.append(random.nextBoolean() ? 'e' : 'E')
+                    .append(random.nextInt(700) - 350);
+            tokens.add(token.toString());
+        }
+        assertParses(tokens, random);
+    }
+
+    @Test
+    public void roundsHalfwayCasesToEven() throws IOException {
+        Random random = new Random(4);
+        List<String> tokens = new ArrayList<String>(Arrays.asList(
+                "9007199254740993", "9007199254740995", "9007199254740997",
+                "1.00000000000000011102230246251565404236316680908203125",
+                "1.00000000000000033306690738754696212708950042724609375"));
+        for (int i = 0; i < 20000; i++) {
+            // Exactly between a double and the next one up.
+            double value = random.nextDouble()
+                    * Math.pow(10, random.nextInt(40) - 20);
+            BigDecimal halfway = new BigDecimal(value)
+                    .add(new BigDecimal(Math.nextUp(value)))
+                    .divide(BigDecimal.valueOf(2));
+            tokens.add(halfway.toString());
+            tokens.add(halfway.toPlainString());
+        }
+        assertParses(tokens, random);
+    }
+
+    @Test
+    public void parsesNineteenDigits() throws IOException {
+        Random random = new Random(5);
+        List<String> tokens = new ArrayList<String>(Arrays.asList(
+                "9223372036854775807", "9223372036854775808",
+                "9999999999999999999", "1000000000000000000",
+                "18446744073709551615", "0.9999999999999999999",
+                "0.1000000000000000055", "9.999999999999999999e307",
+                "1.000000000000000000e-300"));
+        for (int i = 0; i < 50000; i++) {
+            // Mantissas above and below 2^63, as a long holds them unsigned.
+            StringBuilder token = new StringBuilder();
+            token.append((char) ('1' + random.nextInt(9)));
+            for (int d = 1; d < 19; d++) {
+                token.append((char) ('0' + random.nextInt(10)));
+            }
+            int point = random.nextInt(20);
+            if (point < 19) {
+                token.insert(point + 1, '.');
+            }
+            if (random.nextBoolean()) {
+                token.append('e').append(random.nextInt(600) - 300);
+            }
+            tokens.add(token.toString());
+        }
+        assertParses(tokens, random);
+    }
+
+    @Test
+    public void parsesSpecialValues() throws IOException {
+        List<String> tokens = Arrays.asList("0", "-0", "0.0", "+0e5", "1",
+                "00012.5000", "1e22", "1e23", "4.9e-324",
+                "2.4703282292062328e-324", "2.2250738585072014e-308",
+                "1.7976931348623157e308", "1.8e308", "1e-400", "1e400",
+                "123456789012345678901234567890",
+                "0.000000000000000000000000001", "nan", "-nan", "NaN",
+                "inf", "-inf", "Infinity", "-Infinity");
+        assertParses(tokens, new Random(6));
+    }
+
+    @Test
+    public void parsesScoresSplitAcrossTheBuffer() throws IOException {
+        String token = "0.12345678901234567";
+        for (int before = 1; before < token.length(); before++) {
+            // The first read fills the buffer, ending in the first
+            // characters of the score.
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < BUFFER_SIZE - before - 2; i++) {
+                text.append(i % 80 == 79 ? '\n' : ' ');
+            }
+            text.append("1 ").append(token).append("\n2\n");
+            ScoreParser parser = new ScoreParser(new ByteArrayInputStream(
+                    text.toString().getBytes(StandardCharsets.US_ASCII)));
+            assertEquals(1, parser.next(), 0);
+            assertEquals(Double.parseDouble(token), parser.next(), 0);
+            assertEquals(2, parser.next(), 0);
+            assertEnds(parser);
+        }
+
+        // Many scores over many buffers, the last without a newline.
+        Random random = new Random(7);
+        List<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < 3 * BUFFER_SIZE / token.length(); i++) {
+            tokens.add(String.format(Locale.ROOT, "%.17g",
+                    random.nextDouble()));
+        }
+        StringBuilder text = new StringBuilder();
+        for (String score : tokens) {
+            text.append(text.length() == 0 ? "" : "\n").append(score);
+        }
+        ScoreParser parser = new ScoreParser(new ByteArrayInputStream(
+                text.toString().getBytes(StandardCharsets.US_ASCII)));
+        for (String score : tokens) {
+            assertEquals(Double.parseDouble(score), parser.next(), 0);
+        }
+        assertEnds(parser);
+    }
+
+    @Test
+    public void rejectsWhatIsNotAScore() throws IOException {
+        ScoreParser parser = new ScoreParser(new ByteArrayInputStream(
+                "0.5 Scoring melodies\n".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(0.5, parser.next(), 0);
+        try {
+            parser.next();
+            fail("Parsed a word");
+        } catch (EOFException e) {
+            fail("Ended at a word");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void rejectsScoresLongerThanTheBuffer() {
+        byte[] text = new byte[BUFFER_SIZE + 10];
+        Arrays.fill(text, (byte) '1');
+        ScoreParser parser = new ScoreParser(new ByteArrayInputStream(text));
+        try {
+            parser.next();
+            fail("Parsed a score longer than the buffer");
+        } catch (EOFException e) {
+            fail("Ended in a long score");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Parses the tokens, separated by random whitespace and read in random
+     * small pieces, and compares them to Double.parseDouble bit for bit.
+     */
+    private static void assertParses(List<String> tokens, Random random)
+            throws IOException {
+        String[] separators = {"\n", " ", " \t ", "\r\n", "\n\n"};
+        StringBuilder text = new StringBuilder();
+        for (String token : tokens) {
+            text.append(token)
+                    .append(separators[random.nextInt(separators.length)]);
+        }
+        ScoreParser parser = new ScoreParser(new PieceInputStream(
+                text.toString().getBytes(StandardCharsets.US_ASCII),
+                random.nextLong()));
+        for (String token : tokens) {
+            double expected = parseDouble(token);
+            double score = parser.next();
+            if (Double.doubleToLongBits(score)
+                    != Double.doubleToLongBits(expected)) {
+                fail(token + " parsed as " + score + ", not " + expected);
+            }
+        }
+        assertEnds(parser);
+    }
+
+    /**
+     * @return the token as Double.parseDouble reads it, or as the C
+     * library writes NaN and infinity
+     */
+    private static double parseDouble(String token) {
+        String lower = token.toLowerCase(Locale.ROOT);
+        if (lower.endsWith("nan")) {
+            return Double.NaN;
+        }
+        if (lower.endsWith("inf")) {
+            return lower.startsWith("-") ? Double.NEGATIVE_INFINITY
+                    : Double.POSITIVE_INFINITY;
+        }
+        return Double.parseDouble(token);
+    }
+
+    private static void assertEnds(ScoreParser parser) throws IOException {
+        try {
+            parser.next();
+            fail("Parsed past the end");
+        } catch (EOFException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Gives at most a few thousand bytes per read, as a pipe from a
+     * process writing them does.
+     */
+    private static class PieceInputStream extends FilterInputStream {
+        private final Random random;
+
+        PieceInputStream(byte[] bytes, long seed) {
+            super(new ByteArrayInputStream(bytes));
+            random = new Random(seed);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+                throws IOException {
+            return super.read(buffer, offset,
+                    Math.min(length, 1 + random.nextInt(5000)));
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package evolmusic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ScoringCoordinatorTest {
+
+    private static final int TIMEOUT_MILLIS = 60000;
+
+    // Released once a test is over, so blocked scorers go on.
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ScoringCoordinator coordinator;
+    private long checksum;
+
+    @Before
+    public void setUp() throws IOException {
+        // Weights of their own, so workers of an earlier test still trying
+        // to connect are turned away.
+        File weights = folder.newFile("weights");
+        FileOutputStream out = new FileOutputStream(weights);
+        out.write(String.valueOf(System.nanoTime()).getBytes("US-ASCII"));
+        out.close();
+        coordinator = new ScoringCoordinator(0, weights.getPath());
+        checksum = FitnessCache.checksum(weights.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        finished.countDown();
+        coordinator.close();
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void scoresOnEveryWorker() throws InterruptedException {
+        Melody[] melodies = makeMelodies(10 * ScoringCoordinator.BATCH_SIZE
+                + 17);
+        CountingScorer[] scorers = new CountingScorer[3];
+        for (int i = 0; i < scorers.length; i++) {
+            scorers[i] = new CountingScorer();
+            startWorker(scorers[i]);
+        }
+
+        // Only part of the melodies, as an island scoring offspring.
+        double[] scores = new double[melodies.length];
+        coordinator.score(melodies, 5, melodies.length, scores);
+        double[] expected = getScores(melodies);
+        for (int i = 0; i < 5; i++) {
+            expected[i] = 0;
+        }
+        assertArrayEquals(expected, scores, 0);
+
+        // And again, on workers that are still connected.
+        coordinator.score(melodies, 0, melodies.length, scores);
+        assertArrayEquals(getScores(melodies), scores, 0);
+        int scored = 0;
+        for (CountingScorer scorer : scorers) {
+            scored += scorer.getScored();
+        }
+        assertTrue(scored >= 2 * melodies.length - 5);
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void scoresTheBatchOfADroppedWorkerAgain() throws Exception {
+        Melody[] melodies = makeMelodies(3 * ScoringCoordinator.BATCH_SIZE);
+        Scoring scoring = new Scoring(melodies);
+        scoring.start();
+
+        // A worker that takes a batch and disconnects without scoring it.
+        Socket socket = new Socket("localhost", coordinator.getPort());
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+        ScoringProtocol.writeHello(out, checksum);
+        ScoringProtocol.Frame frame;
+        do {
+            frame = ScoringProtocol.read(in);
+        } while (frame.getType() != ScoringProtocol.BATCH);
+        assertTrue(frame.getMelodies().length > 0);
+        socket.close();
+
+        startWorker(new CountingScorer());
+        scoring.join();
+        scoring.check();
+        assertArrayEquals(getScores(melodies), scoring.scores, 0);
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void stealsTheBatchOfAStraggler() throws Exception {
+        Melody[] melodies = makeMelodies(4 * ScoringCoordinator.BATCH_SIZE);
+
+        // A worker that never finishes its batch, but keeps sending
+        // heartbeats, so only stealing it gets the melodies scored.
+        BlockingScorer straggler = new BlockingScorer();
+        startWorker(straggler);
+        Scoring scoring = new Scoring(melodies);
+        scoring.start();
+        assertTrue(straggler.started.await(TIMEOUT_MILLIS,
+                TimeUnit.MILLISECONDS));
+
+        startWorker(new CountingScorer());
+        scoring.join();
+        scoring.check();
+        assertArrayEquals(getScores(melodies), scoring.scores, 0);
+        assertFalse(straggler.done);
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void stopsWaitingWhenClosed() throws InterruptedException {
+        // No worker ever connects.
+        Scoring scoring = new Scoring(makeMelodies(10));
+        scoring.start();
+        while (scoring.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+
+        coordinator.close();
+        scoring.join();
+        assertTrue(scoring.error instanceof IllegalStateException);
+    }
+
+    /**
+     * Runs a ScoringWorker with the scorer until the JVM exits.
+     */
+    private void startWorker(Scorer scorer) {
+        final ScoringWorker worker = new ScoringWorker("localhost",
+                coordinator.getPort(), scorer, checksum);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                worker.run();
+            }
+        }, "scoring-worker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static Melody[] makeMelodies(int count) {
+        RandomMelody generator = new RandomMelody(
+                EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE, new SplittableRandom(1));
+        Melody[] melodies = new Melody[count];
+        for (int i = 0; i < count; i++) {
+            melodies[i] = generator.getMelody();
+        }
+        return melodies;
+    }
+
+    /**
+     * @return a score that only depends on the melody
+     */
+    private static double getScore(Melody melody) {
+        return (melody.fingerprint() >>> 11) * 0x1.0p-53;
+    }
+
+    private static double[] getScores(Melody[] melodies) {
+        double[] scores = new double[melodies.length];
+        for (int i = 0; i < melodies.length; i++) {
+            scores[i] = getScore(melodies[i]);
+        }
+        return scores;
+    }
+
+    /**
+     * Scores every melody from the coordinator on its own thread.
+     */
+    private class Scoring extends Thread {
+        final Melody[] melodies;
+        final double[] scores;
+        volatile Throwable error;
+
+        Scoring(Melody[] melodies) {
+            super("scoring");
+            this.melodies = melodies;
+            scores = new double[melodies.length];
+        }
+
+        @Override
+        public void run() {
+            try {
+                coordinator.score(melodies, 0, melodies.length, scores);
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+
+        void check() {
+            if (error != null) {
+                throw new AssertionError(error);
+            }
+        }
+    }
+
+    /**
+     * Scores with getScore(), counting the melodies scored.
+     */
+    private static class CountingScorer implements Scorer {
+        private int scored;
+
+        @Override
+        public synchronized void score(Melody[] melodies, int from, int to,
+                                       double[] scores) {
+            for (int i = from; i < to; i++) {
+                scores[i] = getScore(melodies[i]);
+            }
+            scored += to - from;
+        }
+
+        synchronized int getScored() {
+            return scored;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Blocks on its first batch until the test is over.
+     */
+    private class BlockingScorer implements Scorer {
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile boolean done;
+
+        @Override
+        public void score(Melody[] melodies, int from, int to,
+                          double[] scores) {
+            started.countDown();
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (int i = from; i < to; i++) {
+                scores[i] = getScore(melodies[i]);
+            }
+            done = true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
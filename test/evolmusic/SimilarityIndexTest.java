@@ -0,0 +1,176 @@
+package evolmusic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+public class SimilarityIndexTest {
+
+    private static final int PITCHES = 24;
+
+    private final Bitifier bitifier = new Bitifier();
+
+    @Test
+    public void distanceIsHammingDistanceOfBitifierEncodings() {
+        SplittableRandom random = new SplittableRandom(1);
+        RandomMelody generator = newGenerator(random);
+        Breeder breeder = new Breeder(EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE, random);
+        Melody[] seeds = new Melody[EvolutionaryMusic.NUMBER_SEEDS];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = generator.getMelody();
+        }
+
+        for (int i = 0; i < 20000; i++) {
+            Melody melody = generator.getMelody();
+            Melody other;
+            switch (i % 3) {
+                case 0:
+                    other = generator.getMelody();
+                    break;
+                case 1:
+                    other = breeder.breed(seeds,
+                            EvolutionaryMusic.MUTATION_RATE);
+                    break;
+                default:
+                    other = mutate(melody, random, 1 + random.nextInt(6));
+                    break;
+            }
+            assertDistance(melody, other);
+            assertDistance(melody, melody);
+        }
+    }
+
+    @Test
+    public void distanceCountsEveryKindOfChange() {
+        SplittableRandom random = new SplittableRandom(2);
+        RandomMelody generator = newGenerator(random);
+        for (int i = 0; i < 20000; i++) {
+            Melody melody = generator.getMelody();
+            assertDistance(melody, mutate(melody, random, 1));
+        }
+    }
+
+    @Test
+    public void nicheCountsEveryMelodyWithinTheRadius() {
+        for (int radius = 1; radius <= SimilarityIndex.MAX_RADIUS;
+             radius++) {
+            SplittableRandom random = new SplittableRandom(radius);
+            RandomMelody generator = newGenerator(random);
+
+            // Clusters of near and identical melodies, as in a population
+            // bred from few seeds.
+            Melody[] centers = new Melody[20];
+            for (int i = 0; i < centers.length; i++) {
+                centers[i] = generator.getMelody();
+            }
+            Melody[] population = new Melody[2000];
+            for (int i = 0; i < population.length; i++) {
+                Melody center = centers[random.nextInt(centers.length)];
+                population[i] = random.nextInt(4) == 0 ? center
+                        : mutate(center, random, random.nextInt(4));
+            }
+
+            SimilarityIndex index = new SimilarityIndex(population.length,
+                    radius);
+            for (Melody melody : population) {
+                index.add(melody.getMeasure(0), melody.getMeasure(1));
+            }
+            assertEquals(population.length, index.size());
+
+            // Melodies of the population, and melodies that were not added.
+            int near = 0;
+            for (int i = 0; i < 3000; i++) {
+                Melody melody = i < population.length ? population[i]
+                        : mutate(centers[random.nextInt(centers.length)],
+                        random, random.nextInt(2 * radius + 1));
+                double expected = getNiche(population, melody, radius);
+                if (expected > 0) {
+                    near++;
+                }
+                assertEquals("Radius " + radius + ", melody " + i, expected,
+                        index.getNiche(melody.getMeasure(0),
+                                melody.getMeasure(1)), 1e-9);
+            }
+            assertTrue(near > 0);
+        }
+    }
+
+    /**
+     * Checks getDistance against the Bitifier encodings, both ways round.
+     */
+    private void assertDistance(Melody melody, Melody other) {
+        String bits = bitifier.translate(melody);
+        String otherBits = bitifier.translate(other);
+        assertEquals(Melody.DIMENSION, bits.length());
+        int expected = 0;
+        for (int i = 0; i < Melody.DIMENSION; i++) {
+            if (bits.charAt(i) != otherBits.charAt(i)) {
+                expected++;
+            }
+        }
+        assertEquals(expected, SimilarityIndex.getDistance(
+                melody.getMeasure(0), melody.getMeasure(1),
+                other.getMeasure(0), other.getMeasure(1)));
+        assertEquals(expected, SimilarityIndex.getDistance(
+                other.getMeasure(0), other.getMeasure(1),
+                melody.getMeasure(0), melody.getMeasure(1)));
+    }
+
+    /**
+     * @return niche count of the melody, comparing it to every melody
+     */
+    private static double getNiche(Melody[] population, Melody melody,
+                                   int radius) {
+        double niche = 0;
+        for (Melody other : population) {
+            int distance = SimilarityIndex.getDistance(melody.getMeasure(0),
+                    melody.getMeasure(1), other.getMeasure(0),
+                    other.getMeasure(1));
+            if (distance <= radius) {
+                niche += 1 - (double) distance / (radius + 1);
+            }
+        }
+        return niche;
+    }
+
+    /**
+     * @return the melody with random chord bits flipped, slots given a
+     * random pitch or rest, and tie flags flipped
+     */
+    private static Melody mutate(Melody melody, SplittableRandom random,
+                                 int changes) {
+        long[] measures = {melody.getMeasure(0), melody.getMeasure(1)};
+        for (int i = 0; i < changes; i++) {
+            int measure = random.nextInt(Melody.NUMBER_MEASURES);
+            int slot = random.nextInt(Melody.SLOTS_PER_MEASURE);
+            int code = Melody.slot(measures[measure], slot);
+            int pitch = code & Melody.PITCH_MASK;
+            boolean tied = (code & Melody.TIED) != 0;
+            switch (random.nextInt(3)) {
+                case 0:
+                    measures[measure] ^= 1L << random.nextInt(
+                            Melody.CHORD_BITS);
+                    continue;
+                case 1:
+                    pitch = random.nextInt(PITCHES + 1);
+                    break;
+                default:
+                    tied = !tied;
+                    break;
+            }
+            measures[measure] &= ~Melody.slotBits(Melody.PITCH_MASK, true,
+                    slot);
+            measures[measure] |= Melody.slotBits(pitch, tied, slot);
+        }
+        return new Melody(measures[0], measures[1]);
+    }
+
+    private static RandomMelody newGenerator(SplittableRandom random) {
+        return new RandomMelody(EvolutionaryMusic.NUMBER_MEASURES,
+                EvolutionaryMusic.BEATS_PER_MEASURE, random);
+    }
+}
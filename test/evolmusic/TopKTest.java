@@ -0,0 +1,110 @@
+package evolmusic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TopKTest {
+
+    @Test
+    public void selectsTheHighestScoresBestFirst() {
+        double[] scores = {0.3, 0.9, 0.1, 0.7, 0.5, 0.8};
+        assertArrayEquals(new int[]{1, 5, 3}, TopK.select(scores, 3));
+        assertArrayEquals(new int[]{1, 5, 3, 4, 0, 2},
+                TopK.select(scores, 6));
+        assertArrayEquals(new int[]{1, 5, 3, 4, 0, 2},
+                TopK.select(scores, 10));
+        assertArrayEquals(new int[0], TopK.select(new double[0], 3));
+    }
+
+    @Test
+    public void givesTiesToTheLowerIndex() {
+        double[] scores = {0.5, 0.7, 0.5, 0.7, 0.5, 0.7, 0.5};
+        assertArrayEquals(new int[]{1, 3, 5, 0}, TopK.select(scores, 4));
+
+        // Whatever order the scores are offered in.
+        TopK top = new TopK(4);
+        for (int i = scores.length - 1; i >= 0; i--) {
+            top.offer(i, scores[i]);
+        }
+        assertArrayEquals(new int[]{1, 3, 5, 0}, top.getIndices());
+    }
+
+    @Test
+    public void ranksNaNLowest() {
+        double nan = Double.NaN;
+        double[] scores = {nan, Double.NEGATIVE_INFINITY, nan, -1, nan};
+        assertArrayEquals(new int[]{3, 0, 1, 2, 4}, TopK.select(scores, 5));
+        assertArrayEquals(new int[]{3, 0}, TopK.select(scores, 2));
+        assertArrayEquals(new int[]{3}, TopK.select(
+                new double[]{nan, nan, nan, 0.25}, 1));
+    }
+
+    @Test
+    public void matchesSortingTheWholePopulation() {
+        Random random = new Random(1);
+        for (int n = 0; n < 500; n++) {
+            // Few distinct scores, so there are many ties, and some NaN.
+            int size = 1 + random.nextInt(300);
+            int k = 1 + random.nextInt(60);
+            double[] scores = new double[size];
+            for (int i = 0; i < size; i++) {
+                scores[i] = random.nextInt(10) == 0 ? Double.NaN
+                        : random.nextInt(20) / 4.0;
+            }
+            assertArrayEquals(sort(scores, k), TopK.select(scores, k));
+        }
+    }
+
+    @Test
+    public void startsOverWhenCleared() {
+        TopK top = new TopK(2);
+        top.offer(0, 0.9);
+        top.offer(1, 0.8);
+        top.offer(2, 0.1);
+        assertEquals(2, top.size());
+        assertEquals(0.8, top.getThreshold(), 0);
+
+        top.clear();
+        assertEquals(0, top.size());
+        assertEquals(Double.NEGATIVE_INFINITY, top.getThreshold(), 0);
+        top.offer(3, 0.2);
+        assertEquals(Double.NEGATIVE_INFINITY, top.getThreshold(), 0);
+        top.offer(4, 0.3);
+        assertArrayEquals(new int[]{4, 3}, top.getIndices());
+        assertArrayEquals(new int[]{4, 3}, top.getIndices());
+    }
+
+    /**
+     * @return the first k indices of a stable sort by descending score,
+     * with NaN last
+     */
+    private static int[] sort(final double[] scores, int k) {
+        List<Integer> indices = new ArrayList<Integer>();
+        for (int i = 0; i < scores.length; i++) {
+            indices.add(i);
+        }
+        Collections.sort(indices, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(rank(scores[b]), rank(scores[a]));
+            }
+        });
+        int[] top = new int[Math.min(k, scores.length)];
+        for (int i = 0; i < top.length; i++) {
+            top[i] = indices.get(i);
+        }
+        return top;
+    }
+
+    private static double rank(double score) {
+        return Double.isNaN(score) ? Double.NEGATIVE_INFINITY : score;
+    }
+}